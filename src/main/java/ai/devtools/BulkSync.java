@@ -0,0 +1,203 @@
+package ai.devtools;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ai.devtools.utils.ClientRegistry;
+import ai.devtools.utils.ExponentialBackoff;
+import ai.devtools.utils.TelemetryLog;
+import ai.devtools.utils.TelemetryReplayer;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+
+/**
+ * Uploads the training data archived by drivers running with {@code deferTraining}, e.g. once a nightly run is over:
+ *
+ * <pre>
+ * java -cp ai-devtools.jar ai.devtools.BulkSync [--server URL] [--workers N] [--attempts N] [archive dir...]
+ * </pre>
+ *
+ * The archive directory defaults to {@code .devtools-ai/training}, and the server to {@code DEVTOOLSAI_URL} or the production server. Each record is marked done
+ * in the archive as soon as the server took it, so a sync which was interrupted picks up where it stopped, and a screenshot is uploaded only once per label and sync.
+ * The archives drivers spilled to while another process held the archive directory, its {@code pid-} subdirectories, are synced along with it.
+ * The exit status is {@code 0} once every archive is empty and the server took every record, and non-zero if any record was refused or had been dropped
+ * because its archive was full, or if an archive directory does not exist.
+ */
+public class BulkSync
+{
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(BulkSync.class);
+
+	/**
+	 * The production server
+	 */
+	private static final String PROD_URL = "https://smartdriver.dev-tools.ai";
+
+	/**
+	 * The archive directory used by drivers if none was set
+	 */
+	private static final String DEFAULT_ARCHIVE = ".devtools-ai/training";
+
+	/**
+	 * The size of a new segment file, which is irrelevant here since nothing is appended
+	 */
+	private static final int SEGMENT_BYTES = 1 << 20;
+
+	/**
+	 * Uploads an archive, and the archives in its {@code pid-} subdirectories.
+	 *
+	 * @param dir The archive directory
+	 * @param client The client to upload with
+	 * @param serverURL The base URL of the server
+	 * @param workers The maximum number of records uploaded at a time
+	 * @param attempts The maximum number of passes over the archive, waiting longer after each pass which left records behind
+	 * @return The number of records which were not uploaded: those left in the archive, those the server refused, and those dropped because the archive was
+	 *         full. A subdirectory still in use by its
+	 *         driver counts as one record left.
+	 * @throws IOException If the archive does not exist, could not be read, or is in use by a driver
+	 */
+	public static int sync(Path dir, OkHttpClient client, HttpUrl serverURL, int workers, int attempts) throws IOException
+	{
+		// opening a log creates its directory, which would hide a mistyped path
+		if (!Files.isDirectory(dir))
+			throw new NoSuchFileException(dir.toString(), null, "no training archive there");
+
+		int left = syncOne(dir, client, serverURL, workers, attempts);
+		try (DirectoryStream<Path> subdirs = Files.newDirectoryStream(dir, TelemetryLog.PROCESS_DIR_PREFIX + "*"))
+		{
+			for (Path subdir : subdirs)
+			{
+				try
+				{
+					left += syncOne(subdir, client, serverURL, workers, attempts);
+				}
+				catch (TelemetryLog.LockedException e)
+				{
+					log.warn("Skipping {}, its driver is still running", subdir);
+					left++;
+				}
+			}
+		}
+		return left;
+	}
+
+	/**
+	 * Uploads a single archive directory.
+	 *
+	 * @param dir The archive directory
+	 * @param client The client to upload with
+	 * @param serverURL The base URL of the server
+	 * @param workers The maximum number of records uploaded at a time
+	 * @param attempts The maximum number of passes over the archive
+	 * @return The number of records which were not uploaded, including those dropped because the archive was full.
+	 * @throws IOException If the archive could not be read, or is in use by a driver
+	 */
+	private static int syncOne(Path dir, OkHttpClient client, HttpUrl serverURL, int workers, int attempts) throws IOException
+	{
+		try (TelemetryLog archive = new TelemetryLog(dir, SEGMENT_BYTES, Long.MAX_VALUE);
+				TelemetryReplayer replayer = new TelemetryReplayer(archive, client, serverURL, () -> true, workers, 0))
+		{
+			ExponentialBackoff backoff = new ExponentialBackoff(attempts, 1000, 60000, 0);
+			long start = System.currentTimeMillis();
+			for (int attempt = 1; archive.size() > 0; attempt++)
+			{
+				replayer.drain();
+				if (archive.size() == 0)
+					break;
+
+				long delay = backoff.nextDelay(attempt, System.currentTimeMillis() - start, false);
+				if (delay < 0)
+					break;
+
+				log.info("{} records left in {}, retrying in {} ms", archive.size(), dir, delay);
+				Thread.sleep(delay);
+			}
+
+			long evicted = archive.evicted();
+			if (evicted > 0)
+			{
+				log.error("{} records were dropped from {} before this sync because it was full, raise telemetryLogMaxMb to keep them", evicted, dir);
+				archive.clearEvicted();
+			}
+			log.info("Synced {}: {} uploaded, {} duplicate screenshots skipped, {} refused by the server, {} lost to a full archive, {} left", dir,
+					replayer.replayed(), replayer.deduplicated(), replayer.dropped(), evicted, archive.size());
+			return archive.size() + (int) (replayer.dropped() + evicted);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while syncing " + dir, e);
+		}
+	}
+
+	/**
+	 * Entry point, see the class documentation for the arguments.
+	 *
+	 * @param args The command-line arguments
+	 */
+	public static void main(String[] args)
+	{
+		HttpUrl serverURL = HttpUrl.parse(Objects.requireNonNullElse(System.getenv("DEVTOOLSAI_URL"), PROD_URL));
+		int workers = 8;
+		int attempts = 5;
+		List<Path> dirs = new ArrayList<>();
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				switch (args[i])
+				{
+					case "--server":
+						serverURL = HttpUrl.get(args[++i]);
+						break;
+					case "--workers":
+						workers = Integer.parseInt(args[++i]);
+						break;
+					case "--attempts":
+						attempts = Integer.parseInt(args[++i]);
+						break;
+					default:
+						if (args[i].startsWith("--"))
+							throw new IllegalArgumentException("Unknown option " + args[i]);
+						dirs.add(Paths.get(args[i]));
+				}
+			}
+		}
+		catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e)
+		{
+			System.err.println("Usage: BulkSync [--server URL] [--workers N] [--attempts N] [archive dir...]");
+			System.exit(2);
+		}
+		if (dirs.isEmpty())
+			dirs.add(Paths.get(DEFAULT_ARCHIVE));
+
+		OkHttpClient client = serverURL.equals(HttpUrl.parse(PROD_URL)) ? ClientRegistry.unsafe() : ClientRegistry.basic();
+
+		int left = 0;
+		for (Path dir : dirs)
+		{
+			try
+			{
+				left += sync(dir, client, serverURL, workers, attempts);
+			}
+			catch (IOException e)
+			{
+				log.error("Could not sync {}: {}", dir, e.getMessage());
+				left++;
+			}
+		}
+		System.exit(left == 0 ? 0 : 1);
+	}
+}
@@ -1,25 +1,50 @@
 package ai.devtools.appium;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.logging.Level;
 
-import javax.imageio.ImageIO;
-
+import ai.devtools.utils.ActionInfoBatcher;
+import ai.devtools.utils.AdaptiveLimit;
+import ai.devtools.utils.Cassette;
+import ai.devtools.utils.CircuitBreaker;
+import ai.devtools.utils.CircuitBreakers;
+import ai.devtools.utils.ClientRegistry;
 import ai.devtools.utils.CollectionUtils;
+import ai.devtools.utils.Deadline;
+import ai.devtools.utils.FileSpanExporter;
+import ai.devtools.utils.ExponentialBackoff;
+import ai.devtools.utils.FrozenStatusCache;
+import ai.devtools.utils.Hedger;
+import ai.devtools.utils.JdkTransport;
 import ai.devtools.utils.JsonUtils;
 import ai.devtools.utils.NetUtils;
+import ai.devtools.utils.OkHttpTransport;
+import ai.devtools.utils.PredictionCache;
+import ai.devtools.utils.RequestCompression;
+import ai.devtools.utils.RequestScheduler;
+import ai.devtools.utils.RetryPolicy;
+import ai.devtools.utils.Screenshot;
+import ai.devtools.utils.ScreenshotIndex;
+import ai.devtools.utils.ServerCapabilities;
+import ai.devtools.utils.ServerPool;
+import ai.devtools.utils.ServerSession;
+import ai.devtools.utils.SingleFlight;
+import ai.devtools.utils.Span;
+import ai.devtools.utils.SpanExporter;
+import ai.devtools.utils.TelemetryLog;
+import ai.devtools.utils.TelemetryReplayer;
+import ai.devtools.utils.Tracer;
+import ai.devtools.utils.TrainingPipeline;
+import ai.devtools.utils.Transport;
 import ai.devtools.utils.Utils;
 import com.google.gson.JsonNull;
 import io.appium.java_client.ios.IOSDriver;
@@ -42,8 +67,12 @@ import org.slf4j.helpers.MessageFormatter;
 
 import com.google.gson.JsonObject;
 
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Headers;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
+import okhttp3.Response;
 import io.appium.java_client.AppiumDriver;
 import io.appium.java_client.MobileElement;
 
@@ -85,10 +114,40 @@ public class SmartDriver<T extends MobileElement> {
 
 
     /**
-     * The base URL of the target server (e.g. {@code https://smartdriver.dev-tools.ai})
+     * The base URL of the target server (e.g. {@code https://smartdriver.dev-tools.ai}). If several servers were specified, this is the primary one.
      */
     private HttpUrl serverURL;
 
+    /**
+     * Traces the calls to the server, or {@code null} if tracing is disabled.
+     */
+    private Tracer tracer;
+
+    /**
+     * Records the exchanges with the server, or replays them without touching the network, or {@code null} if neither is enabled.
+     */
+    private Cassette cassette;
+
+    /**
+     * The circuit breakers guarding the server's endpoints, or {@code null} if circuit breaking is disabled.
+     */
+    private CircuitBreakers circuitBreakers;
+
+    /**
+     * Schedules the calls to the server by priority, or {@code null} if scheduling is disabled.
+     */
+    private RequestScheduler scheduler;
+
+    /**
+     * The servers requests are balanced across, or {@code null} if only one server was specified.
+     */
+    private ServerPool serverPool;
+
+    /**
+     * Carries the requests to the server
+     */
+    private Transport transport;
+
     private String prodUrl = "https://smartdriver.dev-tools.ai";
 
     /**
@@ -108,6 +167,16 @@ public class SmartDriver<T extends MobileElement> {
     private Dimension windowSize;
     private Dimension imSize;
     private Boolean useClassifierDuringCreation;
+
+    /**
+     * Decides if and when failed AI lookups are retried
+     */
+    private RetryPolicy retryPolicy;
+
+    /**
+     * The time allowed for an AI lookup, in milliseconds. Calls still in flight when it runs out are cancelled.
+     */
+    private long findTimeoutMillis;
     private Boolean testCaseCreationMode;
 
     private String refScreenshotUUID;
@@ -116,6 +185,82 @@ public class SmartDriver<T extends MobileElement> {
 
     private String automationName;
 
+    /**
+     * The background workers used to send training data for elements found by Appium. {@code null} unless async training was enabled.
+     */
+    private TrainingPipeline trainingPipeline;
+
+    /**
+     * The maximum amount of time to wait for queued training tasks when the driver quits, in milliseconds.
+     */
+    private static final long TRAINING_DRAIN_TIMEOUT = 30000;
+
+    /**
+     * Where deferred training data goes if no telemetry log directory was set
+     */
+    private static final String DEFAULT_TRAINING_ARCHIVE = ".devtools-ai/training";
+
+    /**
+     * Collects action infos so they can be sent in batches. {@code null} unless action info batching was enabled.
+     */
+    private ActionInfoBatcher actionInfoBatcher;
+
+    /**
+     * Holds the training telemetry which could not be sent, until the server is back. {@code null} unless a telemetry log directory was set.
+     */
+    private TelemetryLog telemetryLog;
+
+    /**
+     * Sends the records of {@code telemetryLog} once the server is back, or {@code null} if there is no telemetry log.
+     */
+    private TelemetryReplayer telemetryReplayer;
+
+    /**
+     * Set {@code true} to only write training data to {@code telemetryLog}, for {@code ai.devtools.BulkSync} to upload later, instead of sending it during the test.
+     * The log is then only bounded if {@code telemetryLogMaxMb} is set, since a full log drops its oldest records.
+     */
+    private boolean trainingDeferred;
+
+    /**
+     * The hashes and labels of the screenshots written to {@code telemetryLog} for deferred training, so each screenshot is written only once per label
+     */
+    private final Set<String> archivedScreenshots = ConcurrentHashMap.newKeySet();
+
+    /**
+     * How long the frozen status of a label is cached for, in milliseconds. Set 0 to always ask the server.
+     */
+    private long frozenCacheTtl;
+
+    /**
+     * The screenshots which the server is known to have, shared by every driver using the same API key.
+     */
+    private ScreenshotIndex screenshotIndex;
+
+    /**
+     * Set {@code false} to always send screenshots as base64 inside the json payload, even if the server accepts them as binary.
+     */
+    private boolean binaryScreenshots;
+
+    /**
+     * Hedges slow {@code detect} requests, or {@code null} if hedging is disabled.
+     */
+    private Hedger detectHedger;
+
+    /**
+     * Coalesces identical concurrent lookups with other drivers using the same server and API key, or {@code null} if coalescing is disabled.
+     */
+    private SingleFlight singleFlight;
+
+    /**
+     * Remembers the answers to lookups so that repeating one only costs a revalidation, or {@code null} if the cache is disabled.
+     */
+    private PredictionCache predictionCache;
+
+    /**
+     * The session opened with the server at check-in, which shortens the payloads of later requests
+     */
+    private ServerSession session;
+
     /**
      * Constructor, creates a new SmartDriver.
      *
@@ -149,6 +294,21 @@ public class SmartDriver<T extends MobileElement> {
         if (initializationDict.get("useClassifierDuringCreation") != null) {
             this.useClassifierDuringCreation = (Boolean) initializationDict.get("useClassifierDuringCreation");
         };
+        if (initializationDict.get("classifyRetryPolicy") != null) {
+            this.retryPolicy = (RetryPolicy) initializationDict.get("classifyRetryPolicy");
+        } else {
+            int classifyMaxRetries = initializationDict.get("classifyMaxRetries") == null ? 1 : (Integer) initializationDict.get("classifyMaxRetries");
+            long retryBaseDelay = initializationDict.get("classifyRetryBaseDelayMs") == null ? 500 : ((Number) initializationDict.get("classifyRetryBaseDelayMs")).longValue();
+            long retryMaxDelay = initializationDict.get("classifyRetryMaxDelayMs") == null ? 4000 : ((Number) initializationDict.get("classifyRetryMaxDelayMs")).longValue();
+            long retryBudget = initializationDict.get("classifyRetryBudgetMs") == null ? 15000 : ((Number) initializationDict.get("classifyRetryBudgetMs")).longValue();
+            this.retryPolicy = new ExponentialBackoff(classifyMaxRetries, retryBaseDelay, retryMaxDelay, retryBudget);
+        }
+        this.findTimeoutMillis = initializationDict.get("findTimeoutMs") == null ? 60000 : ((Number) initializationDict.get("findTimeoutMs")).longValue();
+        if (initializationDict.get("asyncTraining") != null && (Boolean) initializationDict.get("asyncTraining")) {
+            int trainingThreads = initializationDict.get("asyncTrainingThreads") == null ? 2 : (Integer) initializationDict.get("asyncTrainingThreads");
+            int trainingQueueSize = initializationDict.get("asyncTrainingQueueSize") == null ? 64 : (Integer) initializationDict.get("asyncTrainingQueueSize");
+            this.trainingPipeline = new TrainingPipeline(trainingThreads, trainingQueueSize);
+        }
         this.testCaseCreationMode = Utils.StrToBool(System.getenv("DEVTOOLSAI_INTERACTIVE"));
 
         if (testCaseName == null)
@@ -165,12 +325,140 @@ public class SmartDriver<T extends MobileElement> {
                 this.testCaseName = "My first test case";
         }
 
-        String baseUrl = (String) initializationDict.get("serverURL");
-        this.serverURL = HttpUrl.parse(baseUrl != null ? baseUrl : Objects.requireNonNullElse(System.getenv("DEVTOOLSAI_URL"), prodUrl));
+        Object baseUrl = initializationDict.get("serverURL");
+        List<HttpUrl> serverURLs = ServerPool.parseURLs(baseUrl != null ? baseUrl : Objects.requireNonNullElse(System.getenv("DEVTOOLSAI_URL"), prodUrl));
+        this.serverURL = serverURLs.get(0);
 
-        client = this.serverURL.equals(HttpUrl.parse("https://smartdriver.dev-tools.ai")) ? NetUtils.unsafeClient() : NetUtils.basicClient().build();
-        BufferedImage im = ImageIO.read(driver.getScreenshotAs(OutputType.FILE));
-        imSize = new Dimension(im.getWidth(), im.getHeight());
+        boolean unsafe = this.serverURL.equals(HttpUrl.parse("https://smartdriver.dev-tools.ai"));
+        if (initializationDict.get("sharedHttpClient") == null || (Boolean) initializationDict.get("sharedHttpClient")) {
+            client = unsafe ? ClientRegistry.unsafe() : ClientRegistry.basic();
+        } else {
+            OkHttpClient.Builder dedicated = NetUtils.basicClient().connectionPool(new ConnectionPool()).dispatcher(new Dispatcher());
+            client = unsafe ? NetUtils.unsafeClient(dedicated) : dedicated.build();
+        }
+        // balanced requests may reach a node which did not hand out the session
+        boolean payloadSessions = initializationDict.get("payloadSessions") == null || (Boolean) initializationDict.get("payloadSessions");
+        this.session = new ServerSession(payloadSessions && serverURLs.size() == 1);
+        client = session.install(client);
+        Object traceFile = initializationDict.get("traceFile") == null ? System.getenv("DEVTOOLSAI_TRACE_FILE") : initializationDict.get("traceFile");
+        SpanExporter traceExporter = traceFile != null ? FileSpanExporter.of(Paths.get(traceFile.toString())) : (SpanExporter) initializationDict.get("traceExporter");
+        if (traceExporter != null) {
+            this.tracer = new Tracer(serverURL, traceExporter, System.getenv("TRACEPARENT"));
+            client = tracer.install(client);
+        }
+        Object cassetteFile = initializationDict.get("cassette") == null ? System.getenv("DEVTOOLSAI_CASSETTE") : initializationDict.get("cassette");
+        if (cassetteFile != null) {
+            String cassetteMode = initializationDict.get("cassetteMode") == null ? Objects.requireNonNullElse(System.getenv("DEVTOOLSAI_CASSETTE_MODE"), "replay") : (String) initializationDict.get("cassetteMode");
+            this.cassette = Cassette.of(Paths.get(cassetteFile.toString()), Cassette.Mode.valueOf(cassetteMode.toUpperCase()),
+                    Cassette.volatileFields(initializationDict.get("cassetteVolatileFields")));
+            client = cassette.install(client);
+        }
+        if (initializationDict.get("gzipRequests") == null || (Boolean) initializationDict.get("gzipRequests")) {
+            long gzipThreshold = initializationDict.get("gzipThresholdBytes") == null ? 16384 : ((Number) initializationDict.get("gzipThresholdBytes")).longValue();
+            int gzipLevel = initializationDict.get("gzipLevel") == null ? 1 : (Integer) initializationDict.get("gzipLevel");
+            client = RequestCompression.install(client, ServerCapabilities.of(serverURL), gzipThreshold, gzipLevel);
+        }
+        // outside the breakers, so time spent waiting for a slot does not count as a slow call; the scheduler also goes before the shared client's request limit
+        if (initializationDict.get("prioritizeRequests") == null || (Boolean) initializationDict.get("prioritizeRequests")) {
+            int maxConcurrent = initializationDict.get("maxConcurrentRequests") == null ? 32 : (Integer) initializationDict.get("maxConcurrentRequests");
+            int lookupConcurrency = initializationDict.get("lookupConcurrency") == null ? 16 : (Integer) initializationDict.get("lookupConcurrency");
+            int trainingConcurrency = initializationDict.get("trainingConcurrency") == null ? 4 : (Integer) initializationDict.get("trainingConcurrency");
+            int requestQueueSize = initializationDict.get("requestQueueSize") == null ? 256 : (Integer) initializationDict.get("requestQueueSize");
+            AdaptiveLimit limit = AdaptiveLimit.fixed(maxConcurrent);
+            if (initializationDict.get("adaptiveConcurrency") != null && (Boolean) initializationDict.get("adaptiveConcurrency")) {
+                int minConcurrent = initializationDict.get("minConcurrentRequests") == null ? 2 : (Integer) initializationDict.get("minConcurrentRequests");
+                double latencyTolerance = initializationDict.get("latencyTolerance") == null ? 2 : ((Number) initializationDict.get("latencyTolerance")).doubleValue();
+                limit = new AdaptiveLimit(maxConcurrent / 2, minConcurrent, maxConcurrent, latencyTolerance, 0.9, RequestScheduler.Priority.values().length);
+            }
+            this.scheduler = RequestScheduler.of(serverURL, limit, lookupConcurrency, trainingConcurrency, requestQueueSize);
+            client = scheduler.install(client);
+        }
+        if (initializationDict.get("circuitBreaker") == null || (Boolean) initializationDict.get("circuitBreaker")) {
+            CircuitBreaker.Policy telemetryPolicy = new CircuitBreaker.Policy(
+                    initializationDict.get("breakerFailureThreshold") == null ? 5 : (Integer) initializationDict.get("breakerFailureThreshold"),
+                    1000 * (initializationDict.get("breakerOpenSeconds") == null ? 30 : ((Number) initializationDict.get("breakerOpenSeconds")).longValue()),
+                    initializationDict.get("breakerSlowCallMs") == null ? 10000 : ((Number) initializationDict.get("breakerSlowCallMs")).longValue());
+            CircuitBreaker.Policy detectPolicy = new CircuitBreaker.Policy(
+                    initializationDict.get("detectBreakerFailureThreshold") == null ? 3 : (Integer) initializationDict.get("detectBreakerFailureThreshold"),
+                    1000 * (initializationDict.get("detectBreakerOpenSeconds") == null ? 5 : ((Number) initializationDict.get("detectBreakerOpenSeconds")).longValue()),
+                    initializationDict.get("detectBreakerSlowCallMs") == null ? 0 : ((Number) initializationDict.get("detectBreakerSlowCallMs")).longValue());
+            this.circuitBreakers = CircuitBreakers.of(serverURL, telemetryPolicy, detectPolicy);
+            client = circuitBreakers.install(client);
+        }
+        if (serverURLs.size() > 1) {
+            String policy = initializationDict.get("loadBalancingPolicy") == null ? "least_outstanding" : (String) initializationDict.get("loadBalancingPolicy");
+            this.serverPool = ServerPool.of(serverURLs, ServerPool.Policy.valueOf(policy.toUpperCase()));
+            client = serverPool.install(client, testCaseCreationMode);
+        }
+        Object transportSetting = initializationDict.get("transport");
+        if (transportSetting instanceof Transport) {
+            this.transport = (Transport) transportSetting;
+        } else if ("jdk".equalsIgnoreCase(String.valueOf(transportSetting))) {
+            Duration timeout = Duration.ofMillis(client.readTimeoutMillis());
+            this.transport = unsafe ? JdkTransport.unsafe(timeout) : new JdkTransport(timeout, null);
+        } else {
+            this.transport = new OkHttpTransport(client);
+        }
+        client = transport.install(client);
+
+        this.trainingDeferred = initializationDict.get("deferTraining") == null ? Utils.StrToBool(System.getenv("DEVTOOLSAI_DEFER_TRAINING")) : (Boolean) initializationDict.get("deferTraining");
+        Object telemetryLogDir = initializationDict.get("telemetryLogDir") == null ? System.getenv("DEVTOOLSAI_TELEMETRY_DIR") : initializationDict.get("telemetryLogDir");
+        if (telemetryLogDir == null && trainingDeferred) {
+            telemetryLogDir = DEFAULT_TRAINING_ARCHIVE;
+        }
+        if (telemetryLogDir != null) {
+            // a full archive of deferred training would drop its oldest records, so it is only bounded if asked to
+            long telemetryLogMaxBytes = initializationDict.get("telemetryLogMaxMb") == null ? (trainingDeferred ? Long.MAX_VALUE : 256 << 20) : ((Number) initializationDict.get("telemetryLogMaxMb")).longValue() << 20;
+            int telemetryReplayConcurrency = initializationDict.get("telemetryReplayConcurrency") == null ? 2 : (Integer) initializationDict.get("telemetryReplayConcurrency");
+            this.telemetryLog = TelemetryLog.of(Paths.get(telemetryLogDir.toString()), (int) Math.min(16 << 20, telemetryLogMaxBytes / 4), telemetryLogMaxBytes);
+            // deferred training is uploaded by BulkSync after the run
+            if (!trainingDeferred)
+                this.telemetryReplayer = TelemetryReplayer.of(telemetryLog, client, serverURL,
+                        () -> circuitBreakers == null || !circuitBreakers.isOpen(CircuitBreakers.TELEMETRY), telemetryReplayConcurrency, 1000);
+        }
+
+        if (initializationDict.get("batchActionInfo") != null && (Boolean) initializationDict.get("batchActionInfo")) {
+            int batchSize = initializationDict.get("actionInfoBatchSize") == null ? 20 : (Integer) initializationDict.get("actionInfoBatchSize");
+            long batchWindow = initializationDict.get("actionInfoBatchWindowMs") == null ? 2000 : ((Number) initializationDict.get("actionInfoBatchWindowMs")).longValue();
+            this.actionInfoBatcher = new ActionInfoBatcher(client, serverURL, apiKey, testCaseName, batchSize, batchWindow, telemetryLog);
+        }
+
+        int screenshotIndexMaxEntries = initializationDict.get("screenshotIndexMaxEntries") == null ? 10000 : (Integer) initializationDict.get("screenshotIndexMaxEntries");
+        long screenshotIndexBloomSize = initializationDict.get("screenshotIndexBloomSize") == null ? 0 : ((Number) initializationDict.get("screenshotIndexBloomSize")).longValue();
+        this.screenshotIndex = ScreenshotIndex.shared(apiKey, screenshotIndexMaxEntries, screenshotIndexBloomSize);
+
+        this.binaryScreenshots = initializationDict.get("binaryScreenshots") == null ? true : (Boolean) initializationDict.get("binaryScreenshots");
+
+        if (initializationDict.get("hedgeDetect") != null && (Boolean) initializationDict.get("hedgeDetect")) {
+            double hedgePercentile = initializationDict.get("hedgePercentile") == null ? 95 : ((Number) initializationDict.get("hedgePercentile")).doubleValue();
+            double hedgeBudget = initializationDict.get("hedgeBudget") == null ? 0.1 : ((Number) initializationDict.get("hedgeBudget")).doubleValue();
+            long hedgeMinDelay = initializationDict.get("hedgeMinDelayMs") == null ? 100 : ((Number) initializationDict.get("hedgeMinDelayMs")).longValue();
+            this.detectHedger = new Hedger(hedgePercentile, hedgeBudget, hedgeMinDelay);
+        }
+
+        if (initializationDict.get("coalesceRequests") == null || (Boolean) initializationDict.get("coalesceRequests")) {
+            this.singleFlight = SingleFlight.shared(serverURL, apiKey);
+        }
+        int predictionCacheSize = initializationDict.get("predictionCacheSize") == null ? 1000 : ((Number) initializationDict.get("predictionCacheSize")).intValue();
+        if (predictionCacheSize > 0) {
+            this.predictionCache = PredictionCache.shared(serverURL, apiKey, predictionCacheSize);
+        }
+
+        boolean fastStart = initializationDict.get("fastStart") == null ? Utils.StrToBool(System.getenv("DEVTOOLSAI_FAST_START")) : (Boolean) initializationDict.get("fastStart");
+        if (fastStart) {
+            int prewarmConnections = initializationDict.get("prewarmConnections") == null ? 1 : (Integer) initializationDict.get("prewarmConnections");
+            NetUtils.prewarm(client, serverURL, prewarmConnections);
+        }
+
+        this.frozenCacheTtl = 1000 * (initializationDict.get("frozenCacheTtlSeconds") == null ? 60 : ((Number) initializationDict.get("frozenCacheTtlSeconds")).longValue());
+        if (initializationDict.get("prefetchFrozenStatus") == null || (Boolean) initializationDict.get("prefetchFrozenStatus")) {
+            if (fastStart) {
+                client.dispatcher().executorService().execute(() -> FrozenStatusCache.prefetch(client, serverURL, apiKey, testCaseName, frozenCacheTtl));
+            } else {
+                FrozenStatusCache.prefetch(client, serverURL, apiKey, testCaseName, frozenCacheTtl);
+            }
+        }
+        imSize = Screenshot.capture(driver).dimension();
 
         if (isMobileWeb) {
             float windowHeight = getWebWindowHeight();
@@ -193,11 +481,13 @@ public class SmartDriver<T extends MobileElement> {
                     "language", String.format("java-%s", System.getProperty("java.version")),
                     "test_case_name", this.testCaseName,
                     "automation_name", automationName);
+            session.request(payload);
             log.debug(MessageFormatter.format("Checking in with: {}", payload.toString()).toString());
 
-            JsonObject r = JsonUtils.responseAsJson(NetUtils.basicPOST(client, this.serverURL, "ping", payload));
-            if (!JsonUtils.booleanFromJson(r, "success"))
-                log.debug(MessageFormatter.format("Error during checkin, server said: {}", r.toString()).getMessage());
+            if (fastStart)
+                NetUtils.basicPOSTAsync(client, this.serverURL, "ping", payload, this::onCheckIn);
+            else
+                onCheckIn(JsonUtils.responseAsJson(NetUtils.basicPOST(client, this.serverURL, "ping", payload)));
         }
         catch (Throwable e)
         {
@@ -205,6 +495,25 @@ public class SmartDriver<T extends MobileElement> {
         }
     }
 
+    /**
+     * Handles the server's response to the {@code ping} check-in. In fast-start mode this runs in the background, after the constructor has returned.
+     *
+     * @param r The response from the server, or {@code null} if the check-in failed.
+     */
+    private void onCheckIn(JsonObject r)
+    {
+        if (r == null)
+        {
+            log.debug("Checkin failed, the server did not answer");
+            return;
+        }
+
+        ServerCapabilities.of(serverURL).update(r);
+        session.onCheckIn(r);
+        if (!JsonUtils.booleanFromJson(r, "success"))
+            log.debug(MessageFormatter.format("Error during checkin, server said: {}", r.toString()).getMessage());
+    }
+
     private float getWebWindowHeight() {
         JavascriptExecutor js = (JavascriptExecutor) driver;
         Object res = js.executeScript("return window.innerHeight;");
@@ -237,6 +546,127 @@ public class SmartDriver<T extends MobileElement> {
         this(driver, apiKey, new HashMap<String, Object>());
     }
 
+    /**
+     * Gets the tracer of the calls to the server, which can also open spans around test steps so that they join the same trace.
+     *
+     * @return The tracer used by this driver, or {@code null} if tracing is disabled.
+     */
+    public Tracer getTracer()
+    {
+        return tracer;
+    }
+
+    /**
+     * Gets the cassette recording or replaying the exchanges with the server.
+     *
+     * @return The cassette used by this driver, or {@code null} if neither recording nor replaying is enabled.
+     */
+    public Cassette getCassette()
+    {
+        return cassette;
+    }
+
+    /**
+     * Gets the circuit breakers guarding the server's endpoints, along with their state and transition counts.
+     *
+     * @return The circuit breakers used by this driver, or {@code null} if circuit breaking is disabled.
+     */
+    public CircuitBreakers getCircuitBreakers()
+    {
+        return circuitBreakers;
+    }
+
+    /**
+     * Gets the scheduler of the calls to the server, whose counters show how many calls of each priority are running, waiting and had to wait, along with
+     * the current concurrency limit and queue depth.
+     *
+     * @return The scheduler used by this driver, or {@code null} if scheduling is disabled.
+     */
+    public RequestScheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    /**
+     * Gets the servers this driver balances its requests across, along with their load and health.
+     *
+     * @return The server pool used by this driver, or {@code null} if only one server was specified.
+     */
+    public ServerPool getServerPool()
+    {
+        return serverPool;
+    }
+
+    /**
+     * Gets the transport carrying this driver's requests to the server.
+     *
+     * @return The transport used by this driver.
+     */
+    public Transport getTransport()
+    {
+        return transport;
+    }
+
+    /**
+     * Gets the hedger for {@code detect} requests, whose counters show how many requests were hedged and how many hedges answered first.
+     *
+     * @return The hedger used by this driver, or {@code null} if hedging is disabled.
+     */
+    public Hedger getDetectHedger()
+    {
+        return detectHedger;
+    }
+
+    /**
+     * Gets the coalescer of lookups, whose counters show how many lookups were answered by another caller's request.
+     *
+     * @return The coalescer used by this driver, or {@code null} if coalescing is disabled.
+     */
+    public SingleFlight getSingleFlight()
+    {
+        return singleFlight;
+    }
+
+    /**
+     * Gets the cache of lookup answers, whose counters show how many lookups the server answered with {@code 304 Not Modified} instead of running inference.
+     *
+     * @return The prediction cache used by this driver, or {@code null} if the cache is disabled.
+     */
+    public PredictionCache getPredictionCache()
+    {
+        return predictionCache;
+    }
+
+    /**
+     * Gets the write-ahead log holding the training telemetry which could not be sent, whose counters show how much is waiting and how much was dropped.
+     *
+     * @return The telemetry log used by this driver, or {@code null} if telemetry which could not be sent is dropped.
+     */
+    public TelemetryLog getTelemetryLog()
+    {
+        return telemetryLog;
+    }
+
+    /**
+     * Gets the replayer sending the telemetry log once the server is back, whose counters show how many records were sent and how many the server refused.
+     *
+     * @return The telemetry replayer used by this driver, or {@code null} if there is no telemetry log or training is deferred.
+     */
+    public TelemetryReplayer getTelemetryReplayer()
+    {
+        return telemetryReplayer;
+    }
+
+    /**
+     * Gets the index of screenshots which the server is known to have. Its hit ratio shows how many exists checks and uploads were skipped.
+     *
+     * @return The screenshot index used by this driver.
+     */
+    public ScreenshotIndex getScreenshotIndex()
+    {
+        return screenshotIndex;
+    }
+
     /**
      * Convenience method, implicitly wait for the specified amount of time.
      *
@@ -364,19 +794,14 @@ public class SmartDriver<T extends MobileElement> {
         {
             T driverElement = driver.findElement(locator);
             if (driverElement != null)
-            {
-                String key = uploadScreenshotIfNecessary(elementName, driverElement);
-                if (key != null) {
-                    updateElement(driverElement, key, elementName, true);
-                }
-            }
+                trainElement(elementName, driverElement);
             return driverElement;
         }
         catch (Throwable x)
         {
             log.info(MessageFormatter.format("Element '{}' was not found by Selenium, trying with Smartdriver...", elementName).getMessage());
 
-            ClassifyResult<T> result = classify(elementName);
+            ClassifyResult<T> result = classifyWithRetries(elementName);
             if (result.e != null) {
                 return result.e.realElement;
             } else {
@@ -461,6 +886,10 @@ public class SmartDriver<T extends MobileElement> {
     
     public void quit()
     {
+        if (trainingPipeline != null && !trainingPipeline.shutdown(TRAINING_DRAIN_TIMEOUT))
+            log.info("Timed out waiting for background training to finish");
+        if (actionInfoBatcher != null)
+            actionInfoBatcher.close();
         driver.quit();
     }
     
@@ -780,7 +1209,7 @@ public class SmartDriver<T extends MobileElement> {
      */
     public T findElementByElementName(String elementName)
     {
-        ClassifyResult<T> r = classify(elementName);
+        ClassifyResult<T> r = classifyWithRetries(elementName);
         if (r.e == null)
             throw new NoSuchElementException(r.msg);
 
@@ -798,37 +1227,18 @@ public class SmartDriver<T extends MobileElement> {
         return findElementByElementName(elementName);
     }
 
-    private String getScreenshotHash(String screenshotBase64) {
-        try {
-
-
-            /* the following code does not work because ImageIO.write does not create the same output as cv2 for the same b64 image, so the hashes are not good
-            // Convert b64 image to buffered image, crop top 85 pixels, convert back to b64
-            BufferedImage image = null;
-            image = ImageIO.read(new ByteArrayInputStream(
-                    Base64.getDecoder().decode(screenshotBase64.replaceAll("\\r\\n|\\r|\\n", ""))));
-            image = image.getSubimage(0, 85, image.getWidth(), image.getHeight() - 85);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(image, "PNG", baos);
-            screenshotBase64 = Base64.getEncoder().encodeToString(baos.toByteArray());
-            */
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] md5sum = md.digest(screenshotBase64.getBytes(StandardCharsets.UTF_8));
-            String output = String.format("%032X", new BigInteger(1, md5sum));
-            return output.toLowerCase();
-        } catch (Throwable e) {
-            return "";
-        }
-    }
-
     private JsonObject checkScreenshotExists(String screenshotUUID, String elementName) {
         JsonObject payload = new JsonObject();
-        payload.addProperty("api_key", apiKey);
+        session.identify(payload, apiKey, null);
         payload.addProperty("label", elementName);
         payload.addProperty("screenshot_uuid", screenshotUUID);
-        payload.add("stack_trace", Utils.collectStackTrace());
+        session.callSite().addTo(payload);
         try {
-            JsonObject res = JsonUtils.responseAsJson(NetUtils.basicPOST(client, serverURL, "exists_screenshot", payload));
+            JsonObject res = lookup(SingleFlight.key("exists_screenshot", elementName, screenshotUUID, null, null), elementName,
+                    headers -> NetUtils.basicPOST(client, serverURL, "exists_screenshot", payload, headers));
+            if (JsonUtils.booleanFromJson(res, "exists_screenshot")) {
+                screenshotIndex.add(screenshotUUID, elementName);
+            }
             return res;
         } catch (Throwable e) {
             log.debug("Error checking if screenshot exists");
@@ -837,34 +1247,138 @@ public class SmartDriver<T extends MobileElement> {
         }
     }
 
-    private JsonObject uploadScreenshot(String screenshotBase64,String elementName) {
+    private JsonObject uploadScreenshot(Screenshot screenshot,String elementName) {
         JsonObject payload = new JsonObject();
-        payload.addProperty("api_key", apiKey);
+        session.identify(payload, apiKey, testCaseName);
         payload.addProperty("label", elementName);
-        payload.addProperty("screenshot", screenshotBase64);
-        payload.addProperty("test_case_name", testCaseName);
         payload.addProperty("is_appium", true);
         try {
-            JsonObject res = JsonUtils.responseAsJson(NetUtils.basicPOST(client, serverURL, "upload_screenshot", payload));
+            Response r = postScreenshot("upload_screenshot", payload, screenshot);
+            // a server error may come with a json body, which is not an answer
+            boolean failed = r.code() >= 500;
+            JsonObject res = JsonUtils.responseAsJson(r);
+            if (res == null || failed) {
+                spill("upload_screenshot", payload, screenshot);
+                return null;
+            }
             return res;
         } catch (Throwable e) {
             log.debug("Error uploading screenshot");
             e.printStackTrace();
+            spill("upload_screenshot", payload, screenshot);
             return null;
         }
     }
 
-    private JsonObject uploadTCScreenshot(String screenshotBase64, String elementName) {
+    /**
+     * Spills a training call which could not be sent to the telemetry log, if there is one, so that it is sent once the server is back. The session token is
+     * left out, since it may have expired by then.
+     *
+     * @param endpoint The endpoint of the call
+     * @param payload The payload of the call
+     * @param screenshot The screenshot sent along. Optional, set {@code null} for none.
+     */
+    private void spill(String endpoint, JsonObject payload, Screenshot screenshot) {
+        if (telemetryLog == null)
+            return;
+
+        JsonObject copy = payload.deepCopy();
+        for (String field : new String[] { "api_key", "session", "test_case_name", "stack_trace_id" })
+            copy.remove(field);
+        telemetryLog.append(endpoint, apiKey, testCaseName, copy, screenshot != null ? screenshot.bytes() : null);
+    }
+
+    /**
+     * Makes a lookup, unless an identical one is already in flight, in which case its answer is used.
+     *
+     * @param key The key of the lookup, see {@link SingleFlight#key(String, String, String, Float, String)}
+     * @param task Makes the lookup
+     * @return The server's answer to the lookup
+     * @throws IOException Network error
+     */
+    private JsonObject coalesce(String key, SingleFlight.Task task) throws IOException {
+        return singleFlight != null ? singleFlight.execute(key, task) : task.execute();
+    }
+
+    /**
+     * Makes a lookup, unless an identical one is already in flight. If the answer to the lookup is cached, the server is only asked if it is still valid.
+     *
+     * @param key The key of the lookup, see {@link SingleFlight#key(String, String, String, Float, String)}
+     * @param elementName The label of the element to look up
+     * @param fetcher Sends the lookup with the given extra headers
+     * @return The server's answer to the lookup
+     * @throws IOException Network error
+     */
+    private JsonObject lookup(String key, String elementName, PredictionCache.Fetcher fetcher) throws IOException {
+        if (predictionCache == null) {
+            return coalesce(key, () -> JsonUtils.responseAsJson(fetcher.fetch(null)));
+        }
+        return coalesce(key, () -> predictionCache.fetch(key, elementName, fetcher));
+    }
+
+    /**
+     * Sends a screenshot to {@code detect}, unless an identical lookup is already in flight or the cached answer is still valid.
+     *
+     * @param elementName The label of the element to look up
+     * @param payload The payload, without the screenshot
+     * @param screenshot The screenshot
+     * @return The server's answer
+     * @throws IOException Network error
+     */
+    private JsonObject detect(String elementName, JsonObject payload, Screenshot screenshot) throws IOException {
+        return lookup(SingleFlight.key("detect", elementName, screenshot.hash(), null, testCaseName), elementName,
+                headers -> postScreenshot("detect", payload, screenshot, headers));
+    }
+
+    /**
+     * Posts a payload which carries a screenshot. If the server accepts binary screenshots, the screenshot goes as a raw multipart part next to the json payload,
+     * otherwise it is base64 encoded into the payload as the request is written. {@code detect} requests are hedged if hedging is enabled.
+     *
+     * @param endpoint The endpoint to post to
+     * @param payload The payload, without the screenshot
+     * @param screenshot The screenshot
+     * @return The response from the server
+     * @throws IOException Network error
+     */
+    private Response postScreenshot(String endpoint, JsonObject payload, Screenshot screenshot) throws IOException {
+        return postScreenshot(endpoint, payload, screenshot, null);
+    }
+
+    /**
+     * Posts a payload which carries a screenshot, with extra headers.
+     *
+     * @param endpoint The endpoint to post to
+     * @param payload The payload, without the screenshot
+     * @param screenshot The screenshot
+     * @param headers Extra headers to send, e.g. {@code If-None-Match}. Optional, set {@code null} for none.
+     * @return The response from the server
+     * @throws IOException Network error
+     */
+    private Response postScreenshot(String endpoint, JsonObject payload, Screenshot screenshot, Headers headers) throws IOException {
+        ServerCapabilities capabilities = ServerCapabilities.of(serverURL);
+        Hedger hedger = "detect".equals(endpoint) ? detectHedger : null;
+        if (binaryScreenshots && capabilities.binaryScreenshots()) {
+            Response r = NetUtils.multipartPOST(client, serverURL, endpoint, payload, screenshot.bytes(), headers, hedger);
+            if (r.code() != 415) {
+                return r;
+            }
+            r.close();
+            log.info("Server rejected the binary screenshot, falling back to base64");
+            capabilities.disableBinaryScreenshots();
+        }
+
+        return NetUtils.basicPOST(client, serverURL, endpoint, payload, screenshot, headers, hedger);
+    }
+
+    private JsonObject uploadTCScreenshot(Screenshot screenshot, String elementName) {
         JsonObject payload = new JsonObject();
-        payload.addProperty("api_key", apiKey);
+        session.identify(payload, apiKey, testCaseName);
         payload.addProperty("label", elementName);
-        payload.addProperty("screenshot", screenshotBase64);
-        payload.addProperty("test_case_name", testCaseName);
         payload.addProperty("is_interactive", true);
         payload.addProperty("is_appium", true);
 
         try {
-            JsonObject res = JsonUtils.responseAsJson(NetUtils.basicPOST(client, serverURL, "upload_screenshot", payload));
+            JsonObject res = JsonUtils.responseAsJson(postScreenshot("upload_screenshot", payload, screenshot));
             return res;
         } catch (Throwable e) {
             log.debug("Error uploading test case screenshot");
@@ -893,58 +1407,155 @@ public class SmartDriver<T extends MobileElement> {
         if (isElementFrozen) {
             return null;
         } else {
-            String screenshotBase64 = driver.getScreenshotAs(OutputType.BASE64);
-            String screenshotUUID = getScreenshotHash(screenshotBase64);
-            refScreenshotUUID = null;
-            pageOffset = 0f;
-            if (element != null) {
-                pageOffset = getPageOffset();
-                Boolean needsToScroll = (element.getRect().getY() > (windowSize.getHeight() + pageOffset)) || (element.getRect().getY() < pageOffset);
-                if(needsToScroll) {
-                    previousPageOffset = pageOffset;
-                    refScreenshotUUID = screenshotUUID;
-
-                    scrollToElement(element, element.getRect().getY() < pageOffset);
-                    try {
-                        Thread.sleep(200);
-                    } catch (InterruptedException e) {
-                    }
-                    screenshotBase64 = driver.getScreenshotAs(OutputType.BASE64);
-                    screenshotUUID = getScreenshotHash(screenshotBase64);
-                    pageOffset = getPageOffset();
-                    scrollPage((int) (previousPageOffset - pageOffset));
+            return uploadCapture(elementName, captureScreen(element));
+        }
+    }
+
+    /**
+     * Takes a screenshot for training on {@code element}, scrolling it into view first if it is outside of the viewport.
+     *
+     * @param element The element which will be trained on. Optional, set {@code null} to capture the viewport as is.
+     * @return The captured screenshot, along with the page offsets needed to train on it.
+     */
+    private ScreenCapture captureScreen(T element) {
+        Screenshot screenshot = Screenshot.capture(driver);
+        String screenshotUUID = screenshot.hash();
+        refScreenshotUUID = null;
+        pageOffset = 0f;
+        if (element != null) {
+            pageOffset = getPageOffset();
+            Boolean needsToScroll = (element.getRect().getY() > (windowSize.getHeight() + pageOffset)) || (element.getRect().getY() < pageOffset);
+            if(needsToScroll) {
+                previousPageOffset = pageOffset;
+                refScreenshotUUID = screenshotUUID;
+
+                scrollToElement(element, element.getRect().getY() < pageOffset);
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+                screenshot = Screenshot.capture(driver);
+                screenshotUUID = screenshot.hash();
+                pageOffset = getPageOffset();
+                scrollPage((int) (previousPageOffset - pageOffset));
             }
+        }
+        return new ScreenCapture(screenshot, screenshotUUID, pageOffset, refScreenshotUUID);
+    }
 
+    /**
+     * Makes sure the server has the screenshot in {@code capture} for {@code elementName}, uploading it if necessary.
+     *
+     * @param elementName The name of the element being trained on
+     * @param capture The screenshot to upload
+     * @return The key of the screenshot on the server.
+     */
+    private String uploadCapture(String elementName, ScreenCapture capture) {
+        if (screenshotIndex.contains(capture.screenshotUUID, elementName)) {
+            return capture.screenshotUUID;
+        }
 
-            JsonObject screenshotExistsResponse = checkScreenshotExists(screenshotUUID, elementName);
-            if (screenshotExistsResponse != null && screenshotExistsResponse.get("exists_screenshot").getAsBoolean()) {
-                return screenshotUUID;
-            } else {
-                JsonObject uploadScreenshotResponse = uploadScreenshot(screenshotBase64, elementName);
-                if (uploadScreenshotResponse != null) {
-                    if (uploadScreenshotResponse.get("success").getAsBoolean()) {
-                        return uploadScreenshotResponse.get("screenshot_uuid").getAsString();
-                    } else {
-                        log.info("Error uploading screenshot");
-                        return screenshotUUID;
-                    }
+        JsonObject screenshotExistsResponse = checkScreenshotExists(capture.screenshotUUID, elementName);
+        if (screenshotExistsResponse != null && screenshotExistsResponse.get("exists_screenshot").getAsBoolean()) {
+            return capture.screenshotUUID;
+        } else {
+            JsonObject uploadScreenshotResponse = uploadScreenshot(capture.screenshot, elementName);
+            if (uploadScreenshotResponse != null) {
+                if (uploadScreenshotResponse.get("success").getAsBoolean()) {
+                    String uploadedUUID = uploadScreenshotResponse.get("screenshot_uuid").getAsString();
+                    screenshotIndex.add(capture.screenshotUUID, elementName);
+                    screenshotIndex.add(uploadedUUID, elementName);
+                    return uploadedUUID;
                 } else {
                     log.info("Error uploading screenshot");
-                    return screenshotUUID;
+                    return capture.screenshotUUID;
                 }
+            } else {
+                log.info("Error uploading screenshot");
+                return capture.screenshotUUID;
             }
         }
     }
 
+    /**
+     * Sends the training data for an element which was found by Appium. If async training is enabled, only the screenshot is taken on the calling thread and the
+     * server calls are queued on the {@code trainingPipeline}. Nothing is sent if training is deferred or while a telemetry circuit breaker is open; the
+     * training data goes to the telemetry log instead, if there is one.
+     *
+     * @param elementName The name of the element to train on
+     * @param element The element which was found by Appium
+     */
+    private void trainElement(String elementName, T element) {
+        if (trainingDeferred || circuitBreakers != null && circuitBreakers.isOpen(CircuitBreakers.TELEMETRY)) {
+            if (telemetryLog != null)
+                deferTraining(elementName, element);
+            else
+                log.debug("Skipping training of " + elementName + ", the server is degraded");
+            return;
+        }
+        if (trainingPipeline == null) {
+            String key = uploadScreenshotIfNecessary(elementName, element);
+            if (key != null) {
+                updateElement(element, key, elementName, true);
+            }
+            return;
+        }
+
+        // most labels are frozen, don't pay for a screenshot if the cache already knows
+        if (Boolean.TRUE.equals(FrozenStatusCache.get(apiKey, elementName)))
+            return;
+
+        ScreenCapture capture = captureScreen(element);
+        Rectangle rect = element.getRect();
+        trainingPipeline.submit(() -> {
+            if (checkIfFrozen(elementName))
+                return;
+
+            String key = uploadCapture(elementName, capture);
+            if (key != null)
+                updateElement(rect, key, elementName, true, capture.pageOffset, capture.refScreenshotUUID);
+        });
+    }
+
+    /**
+     * Writes the training data for an element to the telemetry log, to be sent once the server is back or by {@code ai.devtools.BulkSync}. A screenshot
+     * already written for deferred training of the same label is not written again, and nothing is written for a label the {@link FrozenStatusCache} knows
+     * is frozen.
+     *
+     * @param elementName The name of the element to train on
+     * @param element The element which was found
+     */
+    private void deferTraining(String elementName, T element) {
+        // the server would ignore it, don't fill the archive with it
+        if (Boolean.TRUE.equals(FrozenStatusCache.get(apiKey, elementName))) {
+            log.debug("Not deferring training of frozen " + elementName);
+            return;
+        }
+        ScreenCapture capture = captureScreen(element);
+        JsonObject upload = CollectionUtils.keyValuesToJO("label", elementName);
+        upload.addProperty("is_appium", true);
+        if (!trainingDeferred || archivedScreenshots.add(capture.screenshotUUID + " " + elementName))
+            spill("upload_screenshot", upload, capture.screenshot);
+        spill("add_action_info", actionInfo(element.getRect(), capture.screenshotUUID, elementName, true, capture.pageOffset, capture.refScreenshotUUID), null);
+        log.debug("Deferred training of " + elementName);
+    }
+
     private Boolean checkIfFrozen(String elementName) {
+        Boolean cached = FrozenStatusCache.get(apiKey, elementName);
+        if (cached != null) {
+            return cached;
+        }
+
         JsonObject payload = new JsonObject();
-        payload.addProperty("api_key", apiKey);
+        session.identify(payload, apiKey, null);
         payload.addProperty("label", elementName);
 
         try {
-            JsonObject res = JsonUtils.responseAsJson(NetUtils.basicPOST(client, serverURL, "check_frozen", payload));
-            return res.get("is_frozen").getAsBoolean();
+            JsonObject res = JsonUtils.responseAsJson(NetUtils.basicPOST(client, serverURL, "check_frozen", payload), "is_frozen");
+            boolean isFrozen = res.get("is_frozen").getAsBoolean();
+            FrozenStatusCache.put(apiKey, elementName, isFrozen, frozenCacheTtl);
+            return isFrozen;
         } catch (Throwable e) {
             log.debug("Error checking if element is frozen");
             e.printStackTrace();
@@ -969,19 +1580,14 @@ public class SmartDriver<T extends MobileElement> {
         {
             T driverElement = fn.apply(using);
             if (driverElement != null)
-            {
-                String key = uploadScreenshotIfNecessary(elementName, driverElement);
-                if (key != null) {
-                    updateElement(driverElement, key, elementName, true);
-                }
-            }
+                trainElement(elementName, driverElement);
             return driverElement;
         }
         catch (Throwable x)
         {
             log.info(MessageFormatter.format("Element '{}' was not found by Selenium, trying with Smartdriver...", elementName).getMessage());
 
-            ClassifyResult<T> result = classify(elementName);
+            ClassifyResult<T> result = classifyWithRetries(elementName);
             if (result.e != null) {
                 return result.e.realElement;
             } else {
@@ -1004,38 +1610,78 @@ public class SmartDriver<T extends MobileElement> {
      */
     protected void updateElement(T elem, String screenshotUUID, String elementName, boolean trainIfNecessary)
     {
-        Rectangle rect = elem.getRect();
+        updateElement(elem.getRect(), screenshotUUID, elementName, trainIfNecessary, this.pageOffset, this.refScreenshotUUID);
+    }
+
+    /**
+     * Updates the entry for an element as it is known to the dev-tools.ai servers, using a bounding box and page offsets captured earlier.
+     *
+     * @param rect The bounding box of the element to update
+     * @param screenshotUUID The key associated with this element
+     * @param elementName The name associated with this element
+     * @param trainIfNecessary Set {@code true} if the model on the server should also be trained with this element.
+     * @param pageOffset The page offset at the time the screenshot was taken
+     * @param refScreenshotUUID The key of the screenshot taken before scrolling to the element, or {@code null} if there was no need to scroll.
+     */
+    private void updateElement(Rectangle rect, String screenshotUUID, String elementName, boolean trainIfNecessary, float pageOffset, String refScreenshotUUID)
+    {
+        if (trainIfNecessary && predictionCache != null) {
+            predictionCache.invalidate(elementName);
+        }
+        JsonObject payload = actionInfo(rect, screenshotUUID, elementName, trainIfNecessary, pageOffset, refScreenshotUUID);
+
+        if (actionInfoBatcher != null) {
+            actionInfoBatcher.add(payload);
+            return;
+        }
 
+        session.identify(payload, apiKey, testCaseName);
+        try (Response res = NetUtils.basicPOST(client, serverURL, "add_action_info", payload)) {
+            if (res.code() >= 500)
+                spill("add_action_info", payload, null);
+            JsonUtils.responseAsJson(res, "success");
+        } catch (Throwable e) {
+            log.debug("Error updating element");
+            e.printStackTrace();
+            spill("add_action_info", payload, null);
+        }
+    }
+
+    /**
+     * Builds the {@code add_action_info} payload for an element, without the API key and test case name.
+     *
+     * @param rect The bounding box of the element
+     * @param screenshotUUID The key associated with this element
+     * @param elementName The name associated with this element
+     * @param trainIfNecessary Set {@code true} if the model on the server should also be trained with this element.
+     * @param pageOffset The page offset at the time the screenshot was taken
+     * @param refScreenshotUUID The key of the screenshot taken before scrolling to the element, or {@code null} if there was no need to scroll.
+     * @return The payload.
+     */
+    private JsonObject actionInfo(Rectangle rect, String screenshotUUID, String elementName, boolean trainIfNecessary, float pageOffset, String refScreenshotUUID)
+    {
         JsonObject payload = new JsonObject();
         payload.addProperty("screenshot_uuid", screenshotUUID);
         payload.addProperty("retrain", trainIfNecessary);
-        payload.addProperty("api_key", apiKey);
         payload.addProperty("label", elementName);
         payload.addProperty("x", rect.x * multiplier);
         payload.addProperty("y", rect.y * multiplier);
         payload.addProperty("width", rect.width * multiplier);
         payload.addProperty("height", rect.height * multiplier);
         payload.addProperty("multiplier", multiplier);
-        payload.addProperty("test_case_name", testCaseName);
-        payload.addProperty("page_offset", this.pageOffset * this.multiplier);
-        payload.addProperty("ref_screenshot_uuid", this.refScreenshotUUID);
-
-        try {
-            JsonUtils.responseAsJson(NetUtils.basicPOST(client, serverURL, "add_action_info", payload));
-        } catch (Throwable e) {
-            log.debug("Error updating element");
-            e.printStackTrace();
-        }
+        payload.addProperty("page_offset", pageOffset * this.multiplier);
+        payload.addProperty("ref_screenshot_uuid", refScreenshotUUID);
+        return payload;
     }
 
     private CollectionUtils.Tuple<JsonObject, Boolean> getTCBox(String elementName, String eventUUID) {
         JsonObject payload = new JsonObject();
-        payload.addProperty("api_key", apiKey);
+        session.identify(payload, apiKey, null);
         payload.addProperty("label", elementName);
         payload.addProperty("screenshot_uuid", lastTestCaseScreenshotUUID);
         payload.addProperty("run_classifier", useClassifierDuringCreation);
         payload.addProperty("event_id", eventUUID);
-        payload.add("stack_trace", Utils.collectStackTrace());
+        session.callSite().addTo(payload);
         Boolean needsReload = false;
 
         try {
@@ -1064,6 +1710,63 @@ public class SmartDriver<T extends MobileElement> {
         }
     }
 
+    /**
+     * Starts a span around a lookup, if tracing is enabled.
+     *
+     * @param name The name of the operation
+     * @param elementName The label of the element looked up
+     * @return The span, current until it is closed, or {@code null} if tracing is disabled.
+     */
+    private Span span(String name, String elementName) {
+        return tracer != null ? tracer.span(name).set("label", elementName) : null;
+    }
+
+    /**
+     * Runs {@code classify} until it finds the element or the retry policy gives up. Once the server has answered, the lookup is only retried if the screen has
+     * changed in the meantime, since the same screenshot would get the same answer. The lookup runs under a {@link Deadline} of {@code findTimeoutMs}, which
+     * is not applied in interactive mode since labelling an element may take a while. If tracing is enabled, the lookup gets a span of its own, which its
+     * calls to the server are children of, and which records the number of attempts.
+     *
+     * @param elementName The name of the element to run classification on.
+     * @return The result of the last attempt.
+     */
+    private ClassifyResult<T> classifyWithRetries(String elementName)
+    {
+        try (Deadline deadline = Deadline.start(testCaseCreationMode ? 0 : findTimeoutMillis); Span span = span("findByAI", elementName)) {
+            long start = System.currentTimeMillis();
+            Screenshot screenshot = testCaseCreationMode ? null : Screenshot.capture(driver);
+            for (int attempt = 1; ; attempt++) {
+                if (span != null) {
+                    span.set("attempts", attempt);
+                }
+                ClassifyResult<T> result = classify(elementName, screenshot);
+                if (result.e != null) {
+                    return result;
+                }
+
+                long delay = retryPolicy.nextDelay(attempt, System.currentTimeMillis() - start, result.definitive);
+                if (delay < 0 || delay >= deadline.remainingMillis() || Deadline.isCancelled()) {
+                    return result;
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return result;
+                }
+
+                if (!testCaseCreationMode) {
+                    String previousHash = screenshot.hash();
+                    screenshot = Screenshot.capture(driver);
+                    if (result.definitive && screenshot.hash().equals(previousHash)) {
+                        log.debug("The screen did not change, not retrying the lookup of " + elementName);
+                        return result;
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Perform additional classification on an element by querying the dev-tools.ai server.
      *
@@ -1071,10 +1774,22 @@ public class SmartDriver<T extends MobileElement> {
      * @return The result of the classification.
      */
     protected ClassifyResult<T> classify(String elementName)
+    {
+        return classify(elementName, null);
+    }
+
+    /**
+     * Perform additional classification on an element by querying the dev-tools.ai server.
+     *
+     * @param elementName The name of the element to run classification on.
+     * @param screenshot The screenshot to classify. Optional, set {@code null} to take a new one.
+     * @return The result of the classification.
+     */
+    protected ClassifyResult<T> classify(String elementName, Screenshot screenshot)
     {
         if(testCaseCreationMode) {
-            String screenshotBase64 = driver.getScreenshotAs(OutputType.BASE64);
-            JsonObject res = uploadTCScreenshot(screenshotBase64, elementName);
+            screenshot = Screenshot.capture(driver);
+            JsonObject res = uploadTCScreenshot(screenshot, elementName);
 
             if (res.get("success").getAsBoolean()) {
                 lastTestCaseScreenshotUUID = res.get("screenshot_uuid").getAsString();
@@ -1099,13 +1814,16 @@ public class SmartDriver<T extends MobileElement> {
                             return new ClassifyResult(new SmartDriverElement(boxResponse.get("predicted_element").getAsJsonObject(), this, getPageOffset()), lastTestCaseScreenshotUUID);
                         }
                         if (needsReload) {
-                            screenshotBase64 = driver.getScreenshotAs(OutputType.BASE64);
-                            uploadTCScreenshot(screenshotBase64, elementName);
+                            screenshot = Screenshot.capture(driver);
+                            uploadTCScreenshot(screenshot, elementName);
                         }
                         try {
                             Thread.sleep(2000);
                         } catch (InterruptedException e) {
-                            e.printStackTrace();
+                            Thread.currentThread().interrupt();
+                        }
+                        if (Deadline.isCancelled()) {
+                            return new ClassifyResult<>(null, lastTestCaseScreenshotUUID, "Gave up waiting for " + elementName + " to be labelled");
                         }
                     }
                 }
@@ -1117,8 +1835,10 @@ public class SmartDriver<T extends MobileElement> {
         } else {
             String pageSource = "", msg = "Smartdriver driver exception", key = null;
             try {
-                String screenshotBase64 = driver.getScreenshotAs(OutputType.BASE64);
-                String screenshotUUID = getScreenshotHash(screenshotBase64);
+                if (screenshot == null) {
+                    screenshot = Screenshot.capture(driver);
+                }
+                String screenshotUUID = screenshot.hash();
                 JsonObject screenshotExistsResponse = checkScreenshotExists(screenshotUUID, elementName);
 
                 if (screenshotExistsResponse != null && screenshotExistsResponse.get("success").getAsBoolean() && screenshotExistsResponse.get("predicted_element") != JsonNull.INSTANCE) {
@@ -1132,8 +1852,8 @@ public class SmartDriver<T extends MobileElement> {
                         // Scroll
                         scrollPage((int) scrollOffset);
                         Thread.sleep(1000);
-                        screenshotBase64 = driver.getScreenshotAs(OutputType.BASE64);
-                        screenshotUUID = getScreenshotHash(screenshotBase64);
+                        screenshot = Screenshot.capture(driver);
+                        screenshotUUID = screenshot.hash();
                         screenshotExistsResponse = checkScreenshotExists(screenshotUUID, elementName);
                     }
                     if (screenshotExistsResponse != null && screenshotExistsResponse.get("success").getAsBoolean() && screenshotExistsResponse.get("predicted_element") != JsonNull.INSTANCE) {
@@ -1141,19 +1861,19 @@ public class SmartDriver<T extends MobileElement> {
                     }
                 }
                 JsonObject payload = new JsonObject();
-                payload.addProperty("api_key", apiKey);
+                session.identify(payload, apiKey, testCaseName);
                 payload.addProperty("label", elementName);
-                payload.addProperty("screenshot", screenshotBase64);
-                payload.addProperty("test_case_name", testCaseName);
-                payload.add("stack_trace", Utils.collectStackTrace());
+                session.callSite().addTo(payload);
 
-                JsonObject classifyResponse = JsonUtils.responseAsJson(NetUtils.basicPOST(client, serverURL, "detect", payload));
+                JsonObject classifyResponse = detect(elementName, payload, screenshot);
 
                 if (!classifyResponse.get("success").getAsBoolean()) {
-                    classifyResponse = classifyFullScreen(elementName, screenshotBase64);
+                    classifyResponse = classifyFullScreen(elementName, screenshot);
                     if (!classifyResponse.get("success").getAsBoolean()) {
                         log.info(classifyResponse.get("message").getAsString());
-                        return new ClassifyResult(null, null, classifyResponse.get("message").getAsString());
+                        ClassifyResult<T> r = new ClassifyResult<>(null, null, classifyResponse.get("message").getAsString());
+                        r.definitive = true;
+                        return r;
                     }
                 }
                 msg = classifyResponse.get("message").getAsString().replace(prodUrl, serverURL.toString());
@@ -1168,6 +1888,12 @@ public class SmartDriver<T extends MobileElement> {
                 }
 
             } catch (Throwable e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                if (Deadline.isCancelled()) {
+                    msg = "The lookup of " + elementName + " was cancelled";
+                }
                 e.printStackTrace();
             }
 
@@ -1188,7 +1914,7 @@ public class SmartDriver<T extends MobileElement> {
         return 0;
     }
 
-    JsonObject classifyFullScreen(String elementName, String screenshotBase64) {
+    JsonObject classifyFullScreen(String elementName, Screenshot screenshot) {
         int lastOffset = -1;
         int offset = 1;
         int windowHeight = windowSize.height;
@@ -1196,18 +1922,16 @@ public class SmartDriver<T extends MobileElement> {
         JsonObject r = new JsonObject();
         r.addProperty("success", false);
 
-        while(offset > lastOffset) {
+        while(offset > lastOffset && !Deadline.isCancelled()) {
             lastOffset = offset;
-            screenshotBase64 = driver.getScreenshotAs(OutputType.BASE64);
+            screenshot = Screenshot.capture(driver);
             JsonObject payload = new JsonObject();
-            payload.addProperty("api_key", apiKey);
+            session.identify(payload, apiKey, testCaseName);
             payload.addProperty("label", elementName);
-            payload.addProperty("screenshot", screenshotBase64);
-            payload.addProperty("test_case_name", testCaseName);
-            payload.add("stack_trace", Utils.collectStackTrace());
+            session.callSite().addTo(payload);
 
             try {
-                r = JsonUtils.responseAsJson(NetUtils.basicPOST(client, serverURL, "detect", payload));
+                r = detect(elementName, payload, screenshot);
                 if (r.get("success").getAsBoolean() || !isMobileWeb) {
                     return r;
                 }
@@ -1220,6 +1944,7 @@ public class SmartDriver<T extends MobileElement> {
             try {
                 Thread.sleep(200);
             } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
             offset = (int) getPageOffset();
         }
@@ -1247,6 +1972,11 @@ public class SmartDriver<T extends MobileElement> {
          */
         public String msg;
 
+        /**
+         * Whether the server answered, as opposed to the lookup failing with a transient error
+         */
+        public boolean definitive;
+
         /**
          * Constructor, creates a new ClassifyResult.
          *
@@ -1273,7 +2003,51 @@ public class SmartDriver<T extends MobileElement> {
         }
     }
 
+    /**
+     * A screenshot taken for training, along with the page offsets it was taken at.
+     */
+    private static class ScreenCapture
+    {
+        /**
+         * The screenshot
+         */
+        final Screenshot screenshot;
+
+        /**
+         * The hash of {@code screenshot}
+         */
+        final String screenshotUUID;
+
+        /**
+         * The page offset at the time the screenshot was taken
+         */
+        final float pageOffset;
+
+        /**
+         * The key of the screenshot taken before scrolling to the element, or {@code null} if there was no need to scroll.
+         */
+        final String refScreenshotUUID;
+
+        /**
+         * Constructor, creates a new ScreenCapture.
+         *
+         * @param screenshot The screenshot
+         * @param screenshotUUID The hash of {@code screenshot}
+         * @param pageOffset The page offset at the time the screenshot was taken
+         * @param refScreenshotUUID The key of the screenshot taken before scrolling to the element
+         */
+        ScreenCapture(Screenshot screenshot, String screenshotUUID, float pageOffset, String refScreenshotUUID)
+        {
+            this.screenshot = screenshot;
+            this.screenshotUUID = screenshotUUID;
+            this.pageOffset = pageOffset;
+            this.refScreenshotUUID = refScreenshotUUID;
+        }
+    }
+
     public void close() {
+        if (actionInfoBatcher != null)
+            actionInfoBatcher.flush();
         driver.close();
     }
 }
@@ -0,0 +1,257 @@
+package ai.devtools.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * Collects {@code add_action_info} payloads and sends them to the server as a single array payload, once either {@code maxBatchSize} action infos were collected
+ * or {@code windowMillis} elapsed since the first one. If the server does not know the batch endpoint, the action infos are sent one by one instead.
+ */
+public class ActionInfoBatcher
+{
+	/**
+	 * The logger for this class
+	 */
+	private static Logger log = LoggerFactory.getLogger(ActionInfoBatcher.class);
+
+	/**
+	 * The client to use for making http requests
+	 */
+	private final OkHttpClient client;
+
+	/**
+	 * The base URL of the target server
+	 */
+	private final HttpUrl serverURL;
+
+	/**
+	 * The user's Smartdriver API key
+	 */
+	private final String apiKey;
+
+	/**
+	 * The test case name, shared by every action info in a batch.
+	 */
+	private final String testCaseName;
+
+	/**
+	 * The maximum number of action infos to send in a single request
+	 */
+	private final int maxBatchSize;
+
+	/**
+	 * The maximum amount of time an action info may wait for more to join its batch, in milliseconds.
+	 */
+	private final long windowMillis;
+
+	/**
+	 * The log action infos which could not be sent are spilled to, or {@code null} if they are dropped.
+	 */
+	private final TelemetryLog telemetryLog;
+
+	/**
+	 * The action infos collected since the last flush
+	 */
+	private List<JsonObject> pending = new ArrayList<>();
+
+	/**
+	 * The thread which sends the batches, so the callers of {@link #add(JsonObject)} never wait on the network.
+	 */
+	private final ScheduledThreadPoolExecutor sender = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread t = new Thread(r, "devtools-ai-action-info");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * The pending timed flush, or {@code null} if there is none.
+	 */
+	private ScheduledFuture<?> scheduledFlush;
+
+	/**
+	 * Set {@code false} once the server has told us it does not support the batch endpoint.
+	 */
+	private volatile boolean batchSupported = true;
+
+	/**
+	 * Constructor, creates a new ActionInfoBatcher.
+	 *
+	 * @param client The OkHttp client to use
+	 * @param serverURL The base URL of the target server
+	 * @param apiKey The user's Smartdriver API key
+	 * @param testCaseName The test case name
+	 * @param maxBatchSize The maximum number of action infos to send in a single request
+	 * @param windowMillis The maximum amount of time an action info may wait for more to join its batch, in milliseconds.
+	 */
+	public ActionInfoBatcher(OkHttpClient client, HttpUrl serverURL, String apiKey, String testCaseName, int maxBatchSize, long windowMillis)
+	{
+		this(client, serverURL, apiKey, testCaseName, maxBatchSize, windowMillis, null);
+	}
+
+	/**
+	 * Constructor, creates a new ActionInfoBatcher which spills the action infos it could not send to a {@link TelemetryLog}.
+	 *
+	 * @param client The OkHttp client to use
+	 * @param serverURL The base URL of the target server
+	 * @param apiKey The user's Smartdriver API key
+	 * @param testCaseName The test case name
+	 * @param maxBatchSize The maximum number of action infos to send in a single request
+	 * @param windowMillis The maximum amount of time an action info may wait for more to join its batch, in milliseconds.
+	 * @param telemetryLog The log to spill the action infos which could not be sent to. Optional, set {@code null} to drop them.
+	 */
+	public ActionInfoBatcher(OkHttpClient client, HttpUrl serverURL, String apiKey, String testCaseName, int maxBatchSize, long windowMillis,
+			TelemetryLog telemetryLog)
+	{
+		this.client = client;
+		this.serverURL = serverURL;
+		this.apiKey = apiKey;
+		this.testCaseName = testCaseName;
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.windowMillis = windowMillis;
+		this.telemetryLog = telemetryLog;
+
+		sender.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * Queues an action info. The {@code api_key} and {@code test_case_name} are added once per batch, so they should not be set on {@code actionInfo}.
+	 *
+	 * @param actionInfo The action info to send
+	 */
+	public synchronized void add(JsonObject actionInfo)
+	{
+		pending.add(actionInfo);
+
+		if (sender.isShutdown())
+			return;
+
+		if (pending.size() >= maxBatchSize)
+		{
+			if (scheduledFlush != null)
+				scheduledFlush.cancel(false);
+			scheduledFlush = null;
+			sender.execute(this::flush);
+		}
+		else if (scheduledFlush == null)
+			scheduledFlush = sender.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends every queued action info now, on the calling thread.
+	 */
+	public void flush()
+	{
+		List<JsonObject> batch;
+		synchronized (this)
+		{
+			if (scheduledFlush != null)
+				scheduledFlush.cancel(false);
+			scheduledFlush = null;
+
+			batch = pending;
+			pending = new ArrayList<>();
+		}
+
+		for (int i = 0; i < batch.size(); i += maxBatchSize)
+			send(batch.subList(i, Math.min(batch.size(), i + maxBatchSize)));
+	}
+
+	/**
+	 * Stops the sender thread, waiting for the batch it may be sending, and then sends every remaining action info on the calling thread.
+	 */
+	public void close()
+	{
+		sender.shutdown();
+		try
+		{
+			sender.awaitTermination(30, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	/**
+	 * Sends a single batch of action infos.
+	 *
+	 * @param batch The action infos to send
+	 */
+	private void send(List<JsonObject> batch)
+	{
+		if (batch.isEmpty())
+			return;
+
+		if (batchSupported)
+		{
+			JsonArray actionInfos = new JsonArray();
+			batch.forEach(actionInfos::add);
+
+			JsonObject payload = CollectionUtils.keyValuesToJO("api_key", apiKey, "test_case_name", testCaseName);
+			payload.add("action_infos", actionInfos);
+
+			try (Response r = NetUtils.basicPOST(client, serverURL, "add_action_info_batch", payload))
+			{
+				if (r.code() != 404)
+				{
+					if (r.code() >= 500)
+						batch.forEach(this::spill);
+					JsonUtils.responseAsJson(r);
+					return;
+				}
+				log.debug("Server does not support batched action info, sending them one by one");
+				batchSupported = false;
+			}
+			catch (Throwable e)
+			{
+				log.debug("Error sending batched action info: {}", e.getMessage());
+				batch.forEach(this::spill);
+				return;
+			}
+		}
+
+		for (JsonObject actionInfo : batch)
+		{
+			JsonObject payload = actionInfo.deepCopy();
+			payload.addProperty("api_key", apiKey);
+			payload.addProperty("test_case_name", testCaseName);
+
+			try (Response r = NetUtils.basicPOST(client, serverURL, "add_action_info", payload))
+			{
+				if (r.code() >= 500)
+					spill(actionInfo);
+				JsonUtils.responseAsJson(r);
+			}
+			catch (Throwable e)
+			{
+				log.debug("Error updating element: {}", e.getMessage());
+				spill(actionInfo);
+			}
+		}
+	}
+
+	/**
+	 * Spills an action info which could not be sent to the telemetry log, if there is one, so it is sent once the server is back.
+	 *
+	 * @param actionInfo The action info
+	 */
+	private void spill(JsonObject actionInfo)
+	{
+		if (telemetryLog != null)
+			telemetryLog.append("add_action_info", apiKey, testCaseName, actionInfo, null);
+	}
+}
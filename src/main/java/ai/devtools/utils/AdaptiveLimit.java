@@ -0,0 +1,187 @@
+package ai.devtools.utils;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A concurrency limit which adapts to the latency the server answers with (additive increase, multiplicative decrease). While calls take about as long as
+ * the fastest recently seen, the limit creeps up by one per limit's worth of calls. Once they take more than {@code tolerance} times as long, or fail, the
+ * server is taken to be queueing and the limit is cut by {@code backoff}.
+ * <p>
+ * Each priority class keeps its own latency baseline, since a {@code detect} naturally takes much longer than an exists check.
+ */
+public class AdaptiveLimit
+{
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(AdaptiveLimit.class);
+
+	/**
+	 * The number of samples after which the latency baselines move to a new window
+	 */
+	private static final int WINDOW = 100;
+
+	/**
+	 * The number of samples of a class needed before its latency is compared to the baseline
+	 */
+	private static final int MIN_SAMPLES = 10;
+
+	/**
+	 * The lowest the limit may go
+	 */
+	private final int min;
+
+	/**
+	 * The highest the limit may go
+	 */
+	private final int max;
+
+	/**
+	 * How many times the baseline latency a call may take before the limit is cut
+	 */
+	private final double tolerance;
+
+	/**
+	 * The factor the limit is multiplied by when it is cut
+	 */
+	private final double backoff;
+
+	/**
+	 * The current limit, fractional so that it can grow by less than one call at a time
+	 */
+	private double limit;
+
+	/**
+	 * The lowest latency of each class in the current window, in nanoseconds
+	 */
+	private final long[] currentMin;
+
+	/**
+	 * The lowest latency of each class in the previous window, in nanoseconds
+	 */
+	private final long[] previousMin;
+
+	/**
+	 * The number of samples of each class in the current window
+	 */
+	private final int[] samples;
+
+	/**
+	 * The number of samples of each class ever
+	 */
+	private final long[] totalSamples;
+
+	/**
+	 * The time the limit was last cut, in {@link System#nanoTime()} units
+	 */
+	private long lastCut;
+
+	/**
+	 * Constructor, creates a new AdaptiveLimit.
+	 *
+	 * @param initial The limit to start at
+	 * @param min The lowest the limit may go
+	 * @param max The highest the limit may go
+	 * @param tolerance How many times the baseline latency a call may take before the limit is cut, e.g. {@code 2}
+	 * @param backoff The factor the limit is multiplied by when it is cut, e.g. {@code 0.9}
+	 * @param classes The number of priority classes with their own latency baseline
+	 */
+	public AdaptiveLimit(int initial, int min, int max, double tolerance, double backoff, int classes)
+	{
+		this.limit = Math.max(min, Math.min(max, initial));
+		this.min = min;
+		this.max = max;
+		this.tolerance = tolerance;
+		this.backoff = backoff;
+		this.currentMin = new long[classes];
+		this.previousMin = new long[classes];
+		this.samples = new int[classes];
+		this.totalSamples = new long[classes];
+		Arrays.fill(currentMin, Long.MAX_VALUE);
+		Arrays.fill(previousMin, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a limit which never changes.
+	 *
+	 * @param limit The limit
+	 * @return A limit fixed at {@code limit}.
+	 */
+	public static AdaptiveLimit fixed(int limit)
+	{
+		return new AdaptiveLimit(limit, limit, limit, 1, 1, 0);
+	}
+
+	/**
+	 * @return The settings of this limit, to tell limits apart in log messages. The current limit is not part of it.
+	 */
+	@Override
+	public String toString()
+	{
+		return min == max ? "fixed(" + max + ")" : "adaptive(" + min + ".." + max + ", tolerance " + tolerance + ", backoff " + backoff + ")";
+	}
+
+	/**
+	 * @return The current limit.
+	 */
+	public synchronized int limit()
+	{
+		return (int) limit;
+	}
+
+	/**
+	 * Records the outcome of a call and adapts the limit.
+	 *
+	 * @param priorityClass The index of the priority class of the call
+	 * @param rttNanos How long the call took, in nanoseconds
+	 * @param ok {@code false} if the call failed with a network error or a server error
+	 * @param inFlight The number of calls in flight when the call started
+	 */
+	public synchronized void onSample(int priorityClass, long rttNanos, boolean ok, int inFlight)
+	{
+		if (min == max)
+			return;
+
+		long baseline = Math.min(currentMin[priorityClass], previousMin[priorityClass]);
+		boolean congested = !ok || (totalSamples[priorityClass] >= MIN_SAMPLES && rttNanos > tolerance * baseline);
+		record(priorityClass, rttNanos);
+
+		double before = limit;
+		if (congested)
+		{
+			// one slow episode delays many calls at once, only cut once per round trip
+			long now = System.nanoTime();
+			if (now - lastCut < rttNanos)
+				return;
+
+			lastCut = now;
+			limit = Math.max(min, limit * backoff);
+		}
+		else if (inFlight >= limit / 2)
+			limit = Math.min(max, limit + 1 / limit);
+
+		if ((int) before != (int) limit)
+			log.debug("Concurrency limit {} -> {}", (int) before, (int) limit);
+	}
+
+	/**
+	 * Records a latency in the baseline of its class. Must be called while holding the lock.
+	 *
+	 * @param priorityClass The index of the priority class of the call
+	 * @param rttNanos How long the call took, in nanoseconds
+	 */
+	private void record(int priorityClass, long rttNanos)
+	{
+		totalSamples[priorityClass]++;
+		currentMin[priorityClass] = Math.min(currentMin[priorityClass], rttNanos);
+		if (++samples[priorityClass] >= WINDOW)
+		{
+			previousMin[priorityClass] = currentMin[priorityClass];
+			currentMin[priorityClass] = Long.MAX_VALUE;
+			samples[priorityClass] = 0;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package ai.devtools.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, thread-safe Bloom filter over Strings. It never forgets an entry and never reports a missing entry for one that was added, but may report an
+ * entry which was never added with (approximately) the configured false positive probability.
+ */
+public class BloomFilter
+{
+	/**
+	 * The bits of the filter
+	 */
+	private final AtomicLongArray bits;
+
+	/**
+	 * The number of bits in the filter
+	 */
+	private final long bitCount;
+
+	/**
+	 * The number of bits set per entry
+	 */
+	private final int hashCount;
+
+	/**
+	 * Constructor, creates a new BloomFilter sized for the expected number of entries.
+	 *
+	 * @param expectedEntries The number of entries the filter is expected to hold
+	 * @param falsePositiveRate The acceptable probability of a false positive once {@code expectedEntries} were added, e.g. {@code 0.01}.
+	 */
+	public BloomFilter(long expectedEntries, double falsePositiveRate)
+	{
+		long n = Math.max(1, expectedEntries);
+		long m = Math.max(64, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+
+		bits = new AtomicLongArray((int) ((m + 63) / 64));
+		bitCount = bits.length() * 64L;
+		hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+	}
+
+	/**
+	 * Adds an entry to the filter.
+	 *
+	 * @param s The entry to add
+	 */
+	public void add(String s)
+	{
+		long[] h = hashes(s);
+		for (int i = 0; i < hashCount; i++)
+		{
+			long bit = index(h, i);
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+
+			long old;
+			do
+				old = bits.get(word);
+			while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask));
+		}
+	}
+
+	/**
+	 * Checks if an entry might have been added to the filter.
+	 *
+	 * @param s The entry to check
+	 * @return {@code false} if {@code s} was definitely never added, {@code true} if it probably was.
+	 */
+	public boolean mightContain(String s)
+	{
+		long[] h = hashes(s);
+		for (int i = 0; i < hashCount; i++)
+		{
+			long bit = index(h, i);
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Derives the {@code i}th bit index of an entry from its two base hashes (Kirsch-Mitzenmacher double hashing).
+	 *
+	 * @param h The two base hashes of the entry
+	 * @param i The number of the hash function
+	 * @return The bit index to use.
+	 */
+	private long index(long[] h, int i)
+	{
+		return Math.floorMod(h[0] + i * h[1], bitCount);
+	}
+
+	/**
+	 * Computes two independent 64 bit hashes (FNV-1a and a murmur style finalizer of it) of a String.
+	 *
+	 * @param s The String to hash
+	 * @return The two hashes of {@code s}.
+	 */
+	private static long[] hashes(String s)
+	{
+		long h1 = 0xcbf29ce484222325L;
+		for (byte b : s.getBytes(StandardCharsets.UTF_8))
+		{
+			h1 ^= b;
+			h1 *= 0x100000001b3L;
+		}
+
+		long h2 = h1;
+		h2 ^= h2 >>> 33;
+		h2 *= 0xff51afd7ed558ccdL;
+		h2 ^= h2 >>> 33;
+		h2 *= 0xc4ceb9fe1a85ec53L;
+		h2 ^= h2 >>> 33;
+
+		return new long[] { h1, h2 | 1 };
+	}
+}
@@ -0,0 +1,476 @@
+package ai.devtools.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import okhttp3.FormBody;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+/**
+ * Records the exchanges with the Smartdriver server to a file, or replays them from it without touching the network, so that tests can run hermetically and
+ * with stable timings.
+ * <p>
+ * Exchanges are matched by method, path, payload and conditional headers, so a revalidation, e.g. by {@link PredictionCache}, replays the answer recorded for
+ * it. Fields which change from run to run, such as the API key, stack traces and event IDs, are left out of the
+ * match, and screenshots are matched by their hash, so a replay matches whether the screenshot was sent as base64 or as a binary part. A request made several
+ * times gets the recorded answers in order, and the last answer once they run out.
+ * <p>
+ * The file holds one json object per line: the match key, the status code, the content type, the headers in {@link #RECORDED_HEADERS} and the body of the
+ * answer.
+ */
+public class Cassette implements Interceptor
+{
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(Cassette.class);
+
+	/**
+	 * The payload fields left out of the match by default
+	 */
+	public static final Set<String> VOLATILE_FIELDS = Set.of("api_key", "session", "request_session", "stack_trace", "stack_trace_id", "event_id");
+
+	/**
+	 * The request headers which are part of the match
+	 */
+	public static final List<String> MATCHED_HEADERS = List.of("If-None-Match", "If-Modified-Since");
+
+	/**
+	 * The answer headers which are recorded and replayed
+	 */
+	public static final List<String> RECORDED_HEADERS = List.of("ETag", "Last-Modified", "Cache-Control", "Retry-After");
+
+	/**
+	 * The cassettes opened so far, keyed by file, so that drivers recording to the same file share it
+	 */
+	private static final Map<Path, Cassette> cassettes = new ConcurrentHashMap<>();
+
+	/**
+	 * What a cassette does with the requests it sees.
+	 */
+	public enum Mode
+	{
+		/**
+		 * Sends the requests to the server and appends the exchanges to the file.
+		 */
+		RECORD,
+
+		/**
+		 * Answers the requests from the file. Requests which were not recorded fail.
+		 */
+		REPLAY
+	}
+
+	/**
+	 * The file holding the exchanges
+	 */
+	private final Path file;
+
+	/**
+	 * What this cassette does with the requests it sees
+	 */
+	private final Mode mode;
+
+	/**
+	 * The payload fields left out of the match
+	 */
+	private final Set<String> volatileFields;
+
+	/**
+	 * The recorded answers, keyed by match key, in the order they were recorded
+	 */
+	private final Map<String, List<JsonObject>> recorded = new HashMap<>();
+
+	/**
+	 * The number of answers replayed so far, keyed by match key
+	 */
+	private final Map<String, Integer> replayed = new HashMap<>();
+
+	/**
+	 * Constructor, creates a new Cassette. In {@link Mode#REPLAY}, the exchanges are read from {@code file} right away.
+	 *
+	 * @param file The file holding the exchanges
+	 * @param mode What to do with the requests
+	 * @param volatileFields The payload fields to leave out of the match, e.g. {@link #VOLATILE_FIELDS}
+	 * @throws IOException If the exchanges could not be read
+	 */
+	public Cassette(Path file, Mode mode, Collection<String> volatileFields) throws IOException
+	{
+		this.file = file;
+		this.mode = mode;
+		this.volatileFields = new HashSet<>(volatileFields);
+
+		if (mode == Mode.REPLAY)
+			load();
+	}
+
+	/**
+	 * Gets the cassette for a file, opening it if necessary. A cassette which is already open keeps its volatile fields, and a warning is logged if others were
+	 * asked for.
+	 *
+	 * @param file The file holding the exchanges
+	 * @param mode What to do with the requests
+	 * @param volatileFields The payload fields to leave out of the match, only used if the cassette is opened.
+	 * @return The cassette for {@code file}.
+	 * @throws IOException If the exchanges could not be read
+	 * @throws IllegalStateException If the cassette is already open in the other mode, since replaying would then reach the server, or recording would not
+	 */
+	public static Cassette of(Path file, Mode mode, Collection<String> volatileFields) throws IOException
+	{
+		Path key = file.toAbsolutePath().normalize();
+		Cassette c = cassettes.get(key);
+		if (c == null)
+		{
+			Cassette opened = new Cassette(key, mode, volatileFields);
+			c = cassettes.putIfAbsent(key, opened);
+			if (c == null)
+				return opened;
+		}
+
+		if (c.mode != mode)
+			throw new IllegalStateException("Cassette " + key + " is already open in " + c.mode + " mode, it cannot be used in " + mode + " mode as well");
+		if (!c.volatileFields.equals(new HashSet<>(volatileFields)))
+			log.warn("Cassette {} is shared and already leaves out {}, ignoring {}", key, new TreeSet<>(c.volatileFields), new TreeSet<>(volatileFields));
+
+		return c;
+	}
+
+	/**
+	 * Derives a client whose exchanges are recorded or replayed by this cassette. The derived client shares its connection pool and dispatcher with
+	 * {@code client}. Install the cassette before anything which rewrites requests, e.g. {@link RequestCompression}, so it sees them as they were made.
+	 *
+	 * @param client The client to derive from
+	 * @return A client which records or replays its exchanges.
+	 */
+	public OkHttpClient install(OkHttpClient client)
+	{
+		return client.newBuilder().addInterceptor(this).build();
+	}
+
+	/**
+	 * @return What this cassette does with the requests it sees.
+	 */
+	public Mode mode()
+	{
+		return mode;
+	}
+
+	/**
+	 * @return The number of distinct requests recorded.
+	 */
+	public synchronized int size()
+	{
+		return recorded.size();
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException
+	{
+		Request request = chain.request();
+		String key = key(request);
+
+		if (mode == Mode.REPLAY)
+			return replay(request, key);
+
+		Response r = chain.proceed(request);
+		ResponseBody body = r.peekBody(Long.MAX_VALUE);
+		MediaType type = body.contentType();
+		JsonObject exchange = CollectionUtils.keyValuesToJO("key", key, "code", r.code(), "body", body.string());
+		if (type != null)
+			exchange.addProperty("type", type.toString());
+
+		JsonObject headers = new JsonObject();
+		for (String name : RECORDED_HEADERS)
+			if (r.header(name) != null)
+				headers.addProperty(name, r.header(name));
+		if (headers.size() > 0)
+			exchange.add("headers", headers);
+
+		record(key, exchange);
+		return r;
+	}
+
+	/**
+	 * Builds the key a request is matched by: its method, path, conditional headers and canonical payload, without the volatile fields.
+	 *
+	 * @param request The request
+	 * @return The match key of {@code request}.
+	 * @throws IOException If the request body could not be read
+	 */
+	String key(Request request) throws IOException
+	{
+		StringBuilder b = new StringBuilder(request.method()).append(' ').append(request.url().encodedPath());
+		if (request.url().encodedQuery() != null)
+			b.append('?').append(request.url().encodedQuery());
+		for (String name : MATCHED_HEADERS)
+			if (request.header(name) != null)
+				b.append(' ').append(name).append(": ").append(request.header(name));
+
+		RequestBody body = request.body();
+		if (body != null)
+			b.append(' ').append(canonical(payloadOf(body)));
+
+		return b.toString();
+	}
+
+	/**
+	 * Reads the payload of a request body as json. Screenshots are replaced by their hash, and form fields holding json are parsed.
+	 *
+	 * @param body The request body
+	 * @return The payload of {@code body}.
+	 * @throws IOException If the request body could not be read
+	 */
+	private static JsonElement payloadOf(RequestBody body) throws IOException
+	{
+		if (body instanceof MultipartBody)
+		{
+			// flatten to the shape of the same payload with a base64 screenshot
+			JsonObject payload = new JsonObject();
+			for (MultipartBody.Part part : ((MultipartBody) body).parts())
+			{
+				MediaType type = part.body().contentType();
+				if (type != null && "image".equals(type.type()))
+				{
+					payload.addProperty("screenshot", new Screenshot(bytesOf(part.body())).hash());
+					continue;
+				}
+
+				JsonElement json = parse(new String(bytesOf(part.body()), StandardCharsets.UTF_8));
+				if (json.isJsonObject())
+					for (Map.Entry<String, JsonElement> field : json.getAsJsonObject().entrySet())
+						payload.add(field.getKey(), field.getValue());
+				else
+					payload.add(String.valueOf(part.headers() != null ? part.headers().get("Content-Disposition") : null), json);
+			}
+			return payload;
+		}
+
+		if (body instanceof FormBody)
+		{
+			FormBody form = (FormBody) body;
+			JsonObject payload = new JsonObject();
+			for (int i = 0; i < form.size(); i++)
+				payload.add(form.name(i), parse(form.value(i)));
+
+			return payload;
+		}
+
+		JsonElement payload = parse(new String(bytesOf(body), StandardCharsets.UTF_8));
+		if (payload.isJsonObject() && payload.getAsJsonObject().has("screenshot"))
+		{
+			// hash the base64 form the same way as the raw bytes of a binary screenshot
+			String base64 = payload.getAsJsonObject().remove("screenshot").getAsString();
+			payload.getAsJsonObject().addProperty("screenshot", md5(base64.getBytes(StandardCharsets.US_ASCII)));
+		}
+		return payload;
+	}
+
+	/**
+	 * Writes out a request body.
+	 *
+	 * @param body The request body
+	 * @return The bytes of {@code body}.
+	 * @throws IOException If the request body could not be written
+	 */
+	private static byte[] bytesOf(RequestBody body) throws IOException
+	{
+		Buffer buffer = new Buffer();
+		body.writeTo(buffer);
+		return buffer.readByteArray();
+	}
+
+	/**
+	 * Parses a String as json, if it is json.
+	 *
+	 * @param s The String
+	 * @return The parsed json, or {@code s} as a json String if it is not json.
+	 */
+	private static JsonElement parse(String s)
+	{
+		try
+		{
+			return JsonParser.parseString(s);
+		}
+		catch (JsonParseException e)
+		{
+			return new JsonPrimitive(s);
+		}
+	}
+
+	/**
+	 * Hashes bytes the way {@link Screenshot#hash()} does.
+	 *
+	 * @param bytes The bytes to hash
+	 * @return The lowercase hex md5 of {@code bytes}.
+	 */
+	private static String md5(byte[] bytes)
+	{
+		try
+		{
+			return String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(bytes)));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			return "";
+		}
+	}
+
+	/**
+	 * Writes json with the keys of every object sorted and the volatile fields left out, so that equal payloads always give the same String.
+	 *
+	 * @param e The json
+	 * @return The canonical form of {@code e}.
+	 */
+	private String canonical(JsonElement e)
+	{
+		if (e.isJsonObject())
+		{
+			TreeMap<String, JsonElement> sorted = new TreeMap<>();
+			for (Map.Entry<String, JsonElement> field : e.getAsJsonObject().entrySet())
+				if (!volatileFields.contains(field.getKey()))
+					sorted.put(field.getKey(), field.getValue());
+
+			StringBuilder b = new StringBuilder("{");
+			for (Map.Entry<String, JsonElement> field : sorted.entrySet())
+				b.append(b.length() > 1 ? "," : "").append('"').append(field.getKey()).append("\":").append(canonical(field.getValue()));
+
+			return b.append('}').toString();
+		}
+
+		if (e.isJsonArray())
+		{
+			StringBuilder b = new StringBuilder("[");
+			for (JsonElement item : (JsonArray) e)
+				b.append(b.length() > 1 ? "," : "").append(canonical(item));
+
+			return b.append(']').toString();
+		}
+
+		return e.toString();
+	}
+
+	/**
+	 * Answers a request from the recorded exchanges.
+	 *
+	 * @param request The request
+	 * @param key The match key of {@code request}
+	 * @return The recorded answer.
+	 * @throws IOException If no answer to the request was recorded
+	 */
+	private synchronized Response replay(Request request, String key) throws IOException
+	{
+		List<JsonObject> answers = recorded.get(key);
+		if (answers == null)
+			throw new IOException("No recorded answer to " + request.method() + " " + request.url() + " in " + file);
+
+		int i = replayed.merge(key, 1, Integer::sum) - 1;
+		JsonObject answer = answers.get(Math.min(i, answers.size() - 1));
+		String type = answer.has("type") ? answer.get("type").getAsString() : null;
+
+		Response.Builder b = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(answer.get("code").getAsInt()).message("")
+				.body(ResponseBody.create(JsonUtils.stringFromJson(answer, "body"), type != null ? MediaType.parse(type) : null));
+		if (answer.has("headers"))
+			for (Map.Entry<String, JsonElement> header : answer.getAsJsonObject("headers").entrySet())
+				b.header(header.getKey(), header.getValue().getAsString());
+
+		return b.build();
+	}
+
+	/**
+	 * Appends an exchange to the file.
+	 *
+	 * @param key The match key of the request
+	 * @param exchange The exchange
+	 */
+	private synchronized void record(String key, JsonObject exchange)
+	{
+		recorded.computeIfAbsent(key, k -> new ArrayList<>()).add(exchange);
+		try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND))
+		{
+			w.write(exchange.toString());
+			w.newLine();
+		}
+		catch (IOException e)
+		{
+			log.warn("Could not record an exchange to {}: {}", file, e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the recorded exchanges from the file.
+	 *
+	 * @throws IOException If the file could not be read
+	 */
+	private void load() throws IOException
+	{
+		try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+		{
+			String line;
+			while ((line = r.readLine()) != null)
+			{
+				if (line.isBlank())
+					continue;
+
+				JsonObject exchange = JsonParser.parseString(line).getAsJsonObject();
+				recorded.computeIfAbsent(exchange.get("key").getAsString(), k -> new ArrayList<>()).add(exchange);
+			}
+		}
+		log.info("Replaying {} requests from {}", recorded.size(), file);
+	}
+
+	/**
+	 * Parses a list of field names from the {@code cassetteVolatileFields} setting.
+	 *
+	 * @param extra The extra fields to leave out of the match, as a comma separated String or a list. Optional, set {@code null} for none.
+	 * @return {@link #VOLATILE_FIELDS} and the extra fields.
+	 */
+	public static Set<String> volatileFields(Object extra)
+	{
+		Set<String> fields = new HashSet<>(VOLATILE_FIELDS);
+		if (extra instanceof Collection)
+			for (Object o : (Collection<?>) extra)
+				fields.add(String.valueOf(o));
+		else if (extra != null)
+			fields.addAll(Arrays.asList(extra.toString().split("\\s*,\\s*")));
+
+		return fields;
+	}
+}
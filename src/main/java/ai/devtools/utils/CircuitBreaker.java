@@ -0,0 +1,333 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker guarding one endpoint of the Smartdriver server. After too many consecutive failures the breaker opens and calls are refused right away
+ * instead of waiting for the server to time out. Once the cool-down has passed the breaker half-opens and lets a single probe through, which either closes the
+ * breaker again or re-opens it.
+ */
+public class CircuitBreaker
+{
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	/**
+	 * The states of a circuit breaker.
+	 */
+	public enum State
+	{
+		/**
+		 * Calls go through.
+		 */
+		CLOSED,
+
+		/**
+		 * Calls are refused until the cool-down has passed.
+		 */
+		OPEN,
+
+		/**
+		 * A single probe call is let through to find out if the server has recovered.
+		 */
+		HALF_OPEN
+	}
+
+	/**
+	 * The name of the guarded endpoint
+	 */
+	private final String name;
+
+	/**
+	 * The thresholds of this breaker
+	 */
+	private final Policy policy;
+
+	/**
+	 * The current state
+	 */
+	private State state = State.CLOSED;
+
+	/**
+	 * The number of consecutive failed calls
+	 */
+	private int failures;
+
+	/**
+	 * The time the breaker last opened, in epoch milliseconds
+	 */
+	private long openedAt;
+
+	/**
+	 * Whether a probe call is in flight while half-open
+	 */
+	private boolean probing;
+
+	/**
+	 * The number of transitions to {@code OPEN}
+	 */
+	private final AtomicLong opened = new AtomicLong();
+
+	/**
+	 * The number of transitions to {@code HALF_OPEN}
+	 */
+	private final AtomicLong halfOpened = new AtomicLong();
+
+	/**
+	 * The number of transitions back to {@code CLOSED}
+	 */
+	private final AtomicLong closed = new AtomicLong();
+
+	/**
+	 * The number of calls refused
+	 */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Constructor, creates a new CircuitBreaker.
+	 *
+	 * @param name The name of the guarded endpoint
+	 * @param policy The thresholds of this breaker
+	 */
+	public CircuitBreaker(String name, Policy policy)
+	{
+		this.name = name;
+		this.policy = policy;
+	}
+
+	/**
+	 * Asks for permission to make a call. Every call which was let through must be followed by {@link #onResult(boolean, long)} or {@link #release()}.
+	 *
+	 * @return {@code true} if the call may be made.
+	 */
+	public synchronized boolean tryAcquire()
+	{
+		switch (state)
+		{
+			case OPEN:
+				if (System.currentTimeMillis() - openedAt < policy.openMillis)
+					break;
+
+				transition(State.HALF_OPEN);
+				halfOpened.incrementAndGet();
+				probing = true;
+				return true;
+			case HALF_OPEN:
+				if (probing)
+					break;
+
+				probing = true;
+				return true;
+			default:
+				return true;
+		}
+
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Records the outcome of a call.
+	 *
+	 * @param ok {@code false} if the call failed with a network error or a server error
+	 * @param millis How long the call took. Calls slower than the policy's slow call threshold count as failures.
+	 */
+	public synchronized void onResult(boolean ok, long millis)
+	{
+		boolean failure = !ok || (policy.slowCallMillis > 0 && millis > policy.slowCallMillis);
+		if (state == State.HALF_OPEN)
+		{
+			probing = false;
+			if (failure)
+				open();
+			else
+			{
+				transition(State.CLOSED);
+				closed.incrementAndGet();
+				failures = 0;
+			}
+		}
+		else if (!failure)
+			failures = 0;
+		else if (++failures >= policy.failureThreshold && state == State.CLOSED)
+			open();
+	}
+
+	/**
+	 * Gives back the permission for a call which was abandoned without an outcome, e.g. because it was cancelled.
+	 */
+	public synchronized void release()
+	{
+		probing = false;
+	}
+
+	/**
+	 * @return {@code true} if calls are currently being refused.
+	 */
+	public synchronized boolean isOpen()
+	{
+		return state == State.OPEN && System.currentTimeMillis() - openedAt < policy.openMillis;
+	}
+
+	/**
+	 * @return The current state.
+	 */
+	public synchronized State state()
+	{
+		return state;
+	}
+
+	/**
+	 * @return The name of the guarded endpoint.
+	 */
+	public String name()
+	{
+		return name;
+	}
+
+	/**
+	 * @return The number of transitions to {@code OPEN}.
+	 */
+	public long opened()
+	{
+		return opened.get();
+	}
+
+	/**
+	 * @return The number of transitions to {@code HALF_OPEN}.
+	 */
+	public long halfOpened()
+	{
+		return halfOpened.get();
+	}
+
+	/**
+	 * @return The number of transitions back to {@code CLOSED}.
+	 */
+	public long closed()
+	{
+		return closed.get();
+	}
+
+	/**
+	 * @return The number of calls refused.
+	 */
+	public long rejected()
+	{
+		return rejected.get();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("%s: %s (opened %d, half-opened %d, closed %d, rejected %d)", name, state, opened(), halfOpened(), closed(), rejected());
+	}
+
+	/**
+	 * Opens the breaker. Must be called while holding the lock.
+	 */
+	private void open()
+	{
+		transition(State.OPEN);
+		opened.incrementAndGet();
+		openedAt = System.currentTimeMillis();
+		failures = 0;
+	}
+
+	/**
+	 * Changes the state. Must be called while holding the lock.
+	 *
+	 * @param to The new state
+	 */
+	private void transition(State to)
+	{
+		if (to == State.OPEN)
+			log.warn("Circuit breaker for {} opened, calls are skipped for {} ms", name, policy.openMillis);
+		else
+			log.debug("Circuit breaker for {}: {} -> {}", name, state, to);
+
+		state = to;
+	}
+
+	/**
+	 * The thresholds of a circuit breaker.
+	 */
+	public static class Policy
+	{
+		/**
+		 * The number of consecutive failed calls which open the breaker
+		 */
+		final int failureThreshold;
+
+		/**
+		 * How long the breaker stays open before letting a probe through, in milliseconds
+		 */
+		final long openMillis;
+
+		/**
+		 * Calls slower than this count as failures, in milliseconds. Set 0 to never count slow calls as failures.
+		 */
+		final long slowCallMillis;
+
+		/**
+		 * Constructor, creates a new Policy.
+		 *
+		 * @param failureThreshold The number of consecutive failed calls which open the breaker
+		 * @param openMillis How long the breaker stays open before letting a probe through, in milliseconds
+		 * @param slowCallMillis Calls slower than this count as failures, in milliseconds. Set 0 to never count slow calls as failures.
+		 */
+		public Policy(int failureThreshold, long openMillis, long slowCallMillis)
+		{
+			this.failureThreshold = failureThreshold;
+			this.openMillis = openMillis;
+			this.slowCallMillis = slowCallMillis;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Policy))
+				return false;
+
+			Policy p = (Policy) o;
+			return failureThreshold == p.failureThreshold && openMillis == p.openMillis && slowCallMillis == p.slowCallMillis;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(failureThreshold, openMillis, slowCallMillis);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Policy(failureThreshold " + failureThreshold + ", openMillis " + openMillis + ", slowCallMillis " + slowCallMillis + ")";
+		}
+	}
+
+	/**
+	 * Thrown instead of making a call while the breaker guarding its endpoint is open.
+	 */
+	public static class OpenException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructor, creates a new OpenException.
+		 *
+		 * @param name The name of the guarded endpoint
+		 */
+		public OpenException(String name)
+		{
+			super("Circuit breaker for " + name + " is open, the call was skipped");
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * The circuit breakers guarding the endpoints of one Smartdriver server. The telemetry endpoints share one policy, {@code detect} has its own, and any other
+ * endpoint is not guarded. The breakers are shared by every driver talking to the server, so that once one driver has found it degraded the others stop
+ * waiting on it too.
+ */
+public class CircuitBreakers implements Interceptor
+{
+	/**
+	 * The endpoints which only send telemetry, and can be skipped without affecting the test
+	 */
+	public static final List<String> TELEMETRY = Collections.unmodifiableList(Arrays.asList("check_frozen", "check_frozen_bulk", "exists_screenshot",
+			"upload_screenshot", "add_action_info", "add_action_info_batch"));
+
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(CircuitBreakers.class);
+
+	/**
+	 * The breakers of every server seen so far, keyed by base URL.
+	 */
+	private static final Map<HttpUrl, CircuitBreakers> servers = new ConcurrentHashMap<>();
+
+	/**
+	 * The base URL of the server
+	 */
+	private final HttpUrl serverURL;
+
+	/**
+	 * The breakers, keyed by endpoint
+	 */
+	private final Map<String, CircuitBreaker> breakers = new LinkedHashMap<>();
+
+	/**
+	 * The policy of the telemetry endpoints
+	 */
+	private final CircuitBreaker.Policy telemetry;
+
+	/**
+	 * The policy of the {@code detect} endpoint
+	 */
+	private final CircuitBreaker.Policy detect;
+
+	/**
+	 * Constructor, creates a new CircuitBreakers.
+	 *
+	 * @param serverURL The base URL of the server
+	 * @param telemetry The policy of the telemetry endpoints
+	 * @param detect The policy of the {@code detect} endpoint
+	 */
+	public CircuitBreakers(HttpUrl serverURL, CircuitBreaker.Policy telemetry, CircuitBreaker.Policy detect)
+	{
+		this.serverURL = serverURL;
+		this.telemetry = telemetry;
+		this.detect = detect;
+
+		for (String endpoint : TELEMETRY)
+			breakers.put(endpoint, new CircuitBreaker(endpoint, telemetry));
+		breakers.put("detect", new CircuitBreaker("detect", detect));
+	}
+
+	/**
+	 * Gets the breakers of a server, creating them if necessary. The breakers are shared, so if they already exist with other policies, those are kept and a
+	 * warning is logged.
+	 *
+	 * @param serverURL The base URL of the server
+	 * @param telemetry The policy of the telemetry endpoints, only used if the breakers are created.
+	 * @param detect The policy of the {@code detect} endpoint, only used if the breakers are created.
+	 * @return The breakers of the server at {@code serverURL}.
+	 */
+	public static CircuitBreakers of(HttpUrl serverURL, CircuitBreaker.Policy telemetry, CircuitBreaker.Policy detect)
+	{
+		CircuitBreakers b = servers.computeIfAbsent(serverURL, k -> new CircuitBreakers(k, telemetry, detect));
+		if (!b.telemetry.equals(telemetry) || !b.detect.equals(detect))
+			log.warn("The circuit breakers of {} are shared and already use telemetry {} and detect {}, ignoring telemetry {} and detect {}", serverURL,
+					b.telemetry, b.detect, telemetry, detect);
+
+		return b;
+	}
+
+	/**
+	 * Derives a client whose calls are guarded by these breakers. The derived client shares its connection pool and dispatcher with {@code client}.
+	 *
+	 * @param client The client to derive from
+	 * @return A client which skips calls to endpoints whose breaker is open.
+	 */
+	public OkHttpClient install(OkHttpClient client)
+	{
+		return client.newBuilder().addInterceptor(this).build();
+	}
+
+	/**
+	 * Gets the breaker guarding an endpoint.
+	 *
+	 * @param endpoint The endpoint
+	 * @return The breaker guarding {@code endpoint}, or {@code null} if it is not guarded.
+	 */
+	public CircuitBreaker get(String endpoint)
+	{
+		return breakers.get(endpoint);
+	}
+
+	/**
+	 * @return Every breaker, keyed by endpoint.
+	 */
+	public Map<String, CircuitBreaker> breakers()
+	{
+		return Collections.unmodifiableMap(breakers);
+	}
+
+	/**
+	 * Determines if calls to any of the specified endpoints are currently being refused.
+	 *
+	 * @param endpoints The endpoints to check
+	 * @return {@code true} if the breaker of any of {@code endpoints} is open.
+	 */
+	public boolean isOpen(List<String> endpoints)
+	{
+		for (String endpoint : endpoints)
+		{
+			CircuitBreaker b = breakers.get(endpoint);
+			if (b != null && b.isOpen())
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException
+	{
+		Request request = chain.request();
+		List<String> path = ServerPool.relativePath(request.url(), serverURL);
+		CircuitBreaker b = path != null ? breakers.get(String.join("/", path)) : null;
+		if (b == null)
+			return chain.proceed(request);
+
+		if (!b.tryAcquire())
+			throw new CircuitBreaker.OpenException(b.name());
+
+		long start = System.nanoTime();
+		try
+		{
+			Response r = chain.proceed(request);
+			b.onResult(r.code() < 500, (System.nanoTime() - start) / 1000000);
+			return r;
+		}
+		catch (IOException e)
+		{
+			if (chain.call().isCanceled())
+				b.release();
+			else
+				b.onResult(false, (System.nanoTime() - start) / 1000000);
+
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			b.release();
+			throw e;
+		}
+	}
+}
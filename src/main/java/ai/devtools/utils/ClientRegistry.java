@@ -0,0 +1,321 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Process-wide registry of the {@code OkHttpClient}s used to talk to the Smartdriver server. Every client handed out shares a single connection pool and
+ * dispatcher, so parallel sessions reuse connections and TLS sessions instead of each paying for their own. The request limits apply to synchronous calls as well
+ * as to the ones the dispatcher runs, since the dispatcher alone only limits the latter.
+ * <p>
+ * The defaults can be changed with the {@code DEVTOOLSAI_HTTP_*} environment variables or by calling {@link #configure(Settings)} before the first driver is
+ * created.
+ */
+public class ClientRegistry
+{
+	/**
+	 * The settings used to build the shared clients
+	 */
+	private static Settings settings = Settings.fromEnvironment();
+
+	/**
+	 * The shared client which verifies ssl certificates, built lazily.
+	 */
+	private static OkHttpClient basic;
+
+	/**
+	 * The shared client which ignores expired/invalid ssl certificates, built lazily.
+	 */
+	private static OkHttpClient unsafe;
+
+	/**
+	 * Replaces the settings of the shared clients. Clients handed out before this call keep working with the previous settings.
+	 *
+	 * @param s The new settings
+	 */
+	public static synchronized void configure(Settings s)
+	{
+		settings = s;
+		basic = null;
+		unsafe = null;
+	}
+
+	/**
+	 * @return The settings currently used to build the shared clients.
+	 */
+	public static synchronized Settings settings()
+	{
+		return settings;
+	}
+
+	/**
+	 * @return The shared client which verifies ssl certificates.
+	 */
+	public static synchronized OkHttpClient basic()
+	{
+		if (basic == null)
+			basic = build(settings);
+
+		return basic;
+	}
+
+	/**
+	 * @return The shared client which ignores expired/invalid ssl certificates. It shares its connection pool and dispatcher with {@link #basic()}.
+	 */
+	public static synchronized OkHttpClient unsafe()
+	{
+		if (unsafe == null)
+			unsafe = NetUtils.trustAll(basic().newBuilder()).build();
+
+		return unsafe;
+	}
+
+	/**
+	 * Builds a new client from the specified settings.
+	 *
+	 * @param s The settings to use
+	 * @return A new {@code OkHttpClient} with its own connection pool and dispatcher.
+	 */
+	private static OkHttpClient build(Settings s)
+	{
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests(s.maxRequests);
+		dispatcher.setMaxRequestsPerHost(s.maxRequestsPerHost);
+
+		Duration d = Duration.ofSeconds(s.timeoutSeconds);
+		return new OkHttpClient.Builder().dispatcher(dispatcher).addInterceptor(new RequestLimit(s.maxRequests, s.maxRequestsPerHost)).connectionPool(new ConnectionPool(s.maxIdleConnections, s.keepAliveSeconds, TimeUnit.SECONDS))
+				.protocols(s.preferHttp2 ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1) : Collections.singletonList(Protocol.HTTP_1_1)).connectTimeout(d)
+				.writeTimeout(d).readTimeout(d).callTimeout(d).build();
+	}
+
+	/**
+	 * Limits the number of requests in flight, in total and per host, whether they were made with {@code execute()} or {@code enqueue()}.
+	 */
+	static class RequestLimit implements Interceptor
+	{
+		/**
+		 * How long to wait for a slot before checking whether the call was canceled, in milliseconds
+		 */
+		private static final long POLL_MILLIS = 50;
+
+		/**
+		 * The slots shared by every host
+		 */
+		private final Semaphore total;
+
+		/**
+		 * The maximum number of requests in flight to a single host
+		 */
+		private final int perHost;
+
+		/**
+		 * The slots of each host
+		 */
+		private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+		/**
+		 * Constructor, creates a new RequestLimit.
+		 *
+		 * @param total The maximum number of requests in flight, across all hosts
+		 * @param perHost The maximum number of requests in flight to a single host
+		 */
+		RequestLimit(int total, int perHost)
+		{
+			this.total = new Semaphore(Math.max(1, total), true);
+			this.perHost = Math.max(1, perHost);
+		}
+
+		@Override
+		public Response intercept(Chain chain) throws IOException
+		{
+			Semaphore host = hosts.computeIfAbsent(chain.request().url().host(), h -> new Semaphore(perHost, true));
+			acquire(host, chain);
+			try
+			{
+				acquire(total, chain);
+				try
+				{
+					return chain.proceed(chain.request());
+				}
+				finally
+				{
+					total.release();
+				}
+			}
+			finally
+			{
+				host.release();
+			}
+		}
+
+		/**
+		 * Waits for a slot, giving up if the call is canceled meanwhile, e.g. by its timeout.
+		 *
+		 * @param slots The slots to take one of
+		 * @param chain The chain of the call
+		 * @throws IOException If the call was canceled or the thread interrupted
+		 */
+		private static void acquire(Semaphore slots, Chain chain) throws IOException
+		{
+			try
+			{
+				while (!slots.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS))
+					if (chain.call().isCanceled())
+						throw new IOException("Canceled");
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for a request slot", e);
+			}
+		}
+	}
+
+	/**
+	 * The tunable settings of the shared clients.
+	 */
+	public static class Settings
+	{
+		/**
+		 * The maximum number of concurrent requests, across all hosts
+		 */
+		int maxRequests = 64;
+
+		/**
+		 * The maximum number of concurrent requests to a single host
+		 */
+		int maxRequestsPerHost = 32;
+
+		/**
+		 * The maximum number of idle connections kept in the pool
+		 */
+		int maxIdleConnections = 32;
+
+		/**
+		 * How long idle connections are kept alive, in seconds
+		 */
+		long keepAliveSeconds = 300;
+
+		/**
+		 * Set {@code false} to only speak HTTP/1.1, even if the server supports HTTP/2.
+		 */
+		boolean preferHttp2 = true;
+
+		/**
+		 * The connect, read, write and call timeouts, in seconds
+		 */
+		long timeoutSeconds = 60;
+
+		/**
+		 * Creates the default settings, overridden by any {@code DEVTOOLSAI_HTTP_*} environment variables which are set.
+		 *
+		 * @return The settings derived from the environment.
+		 */
+		public static Settings fromEnvironment()
+		{
+			Settings s = new Settings();
+			s.maxRequests = (int) envLong("DEVTOOLSAI_HTTP_MAX_REQUESTS", s.maxRequests);
+			s.maxRequestsPerHost = (int) envLong("DEVTOOLSAI_HTTP_MAX_REQUESTS_PER_HOST", s.maxRequestsPerHost);
+			s.maxIdleConnections = (int) envLong("DEVTOOLSAI_HTTP_MAX_IDLE_CONNECTIONS", s.maxIdleConnections);
+			s.keepAliveSeconds = envLong("DEVTOOLSAI_HTTP_KEEP_ALIVE_SECONDS", s.keepAliveSeconds);
+			s.timeoutSeconds = envLong("DEVTOOLSAI_HTTP_TIMEOUT_SECONDS", s.timeoutSeconds);
+			if (System.getenv("DEVTOOLSAI_HTTP_PREFER_HTTP2") != null)
+				s.preferHttp2 = Utils.StrToBool(System.getenv("DEVTOOLSAI_HTTP_PREFER_HTTP2"));
+
+			return s;
+		}
+
+		/**
+		 * @param maxRequests The maximum number of concurrent requests, across all hosts
+		 * @return This {@code Settings}, for chaining convenience.
+		 */
+		public Settings maxRequests(int maxRequests)
+		{
+			this.maxRequests = maxRequests;
+			return this;
+		}
+
+		/**
+		 * @param maxRequestsPerHost The maximum number of concurrent requests to a single host
+		 * @return This {@code Settings}, for chaining convenience.
+		 */
+		public Settings maxRequestsPerHost(int maxRequestsPerHost)
+		{
+			this.maxRequestsPerHost = maxRequestsPerHost;
+			return this;
+		}
+
+		/**
+		 * @param maxIdleConnections The maximum number of idle connections kept in the pool
+		 * @return This {@code Settings}, for chaining convenience.
+		 */
+		public Settings maxIdleConnections(int maxIdleConnections)
+		{
+			this.maxIdleConnections = maxIdleConnections;
+			return this;
+		}
+
+		/**
+		 * @param keepAliveSeconds How long idle connections are kept alive, in seconds
+		 * @return This {@code Settings}, for chaining convenience.
+		 */
+		public Settings keepAliveSeconds(long keepAliveSeconds)
+		{
+			this.keepAliveSeconds = keepAliveSeconds;
+			return this;
+		}
+
+		/**
+		 * @param preferHttp2 Set {@code false} to only speak HTTP/1.1, even if the server supports HTTP/2.
+		 * @return This {@code Settings}, for chaining convenience.
+		 */
+		public Settings preferHttp2(boolean preferHttp2)
+		{
+			this.preferHttp2 = preferHttp2;
+			return this;
+		}
+
+		/**
+		 * @param timeoutSeconds The connect, read, write and call timeouts, in seconds
+		 * @return This {@code Settings}, for chaining convenience.
+		 */
+		public Settings timeoutSeconds(long timeoutSeconds)
+		{
+			this.timeoutSeconds = timeoutSeconds;
+			return this;
+		}
+
+		/**
+		 * Reads a numeric environment variable.
+		 *
+		 * @param name The name of the environment variable
+		 * @param fallback The value to use if the variable is not set or is not a number
+		 * @return The value of the environment variable, or {@code fallback}.
+		 */
+		private static long envLong(String name, long fallback)
+		{
+			try
+			{
+				String v = System.getenv(name);
+				return v != null ? Long.parseLong(v.trim()) : fallback;
+			}
+			catch (NumberFormatException e)
+			{
+				return fallback;
+			}
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * A point in time by which the work of the current thread must be done. Deadlines nest: starting one while another is active on the same thread never extends
+ * the outer one. Network calls made through {@link NetUtils} while a deadline is active are cancelled when it passes or when the thread is interrupted, e.g.
+ *
+ * <pre>
+ * try (Deadline d = Deadline.start(5000))
+ * {
+ * 	driver.findByAI("login_button");
+ * }
+ * </pre>
+ */
+public class Deadline implements AutoCloseable
+{
+	/**
+	 * The deadline active on each thread
+	 */
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+	/**
+	 * The deadline which was active when this one was started
+	 */
+	private final Deadline previous;
+
+	/**
+	 * The deadline, in {@link System#nanoTime()} units, or {@code Long.MAX_VALUE} if there is none
+	 */
+	private final long deadlineNanos;
+
+	/**
+	 * Constructor, creates a new Deadline.
+	 *
+	 * @param previous The deadline which was active when this one was started
+	 * @param deadlineNanos The deadline, in {@link System#nanoTime()} units, or {@code Long.MAX_VALUE} if there is none
+	 */
+	private Deadline(Deadline previous, long deadlineNanos)
+	{
+		this.previous = previous;
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	/**
+	 * Starts a deadline on the current thread, which stays active until it is closed.
+	 *
+	 * @param millis The time allowed, in milliseconds. Set 0 to only inherit the deadline already active, if any.
+	 * @return The new deadline, which is the earlier of {@code millis} from now and the deadline already active.
+	 */
+	public static Deadline start(long millis)
+	{
+		Deadline previous = current.get();
+		long deadlineNanos = millis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis) : Long.MAX_VALUE;
+		if (previous != null && previous.deadlineNanos - deadlineNanos < 0)
+			deadlineNanos = previous.deadlineNanos;
+
+		Deadline d = new Deadline(previous, deadlineNanos);
+		current.set(d);
+		return d;
+	}
+
+	/**
+	 * @return The deadline active on the current thread, or {@code null} if there is none.
+	 */
+	public static Deadline current()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Determines if the work of the current thread should stop.
+	 *
+	 * @return {@code true} if the current thread was interrupted or its deadline has passed.
+	 */
+	public static boolean isCancelled()
+	{
+		Deadline d = current.get();
+		return Thread.currentThread().isInterrupted() || (d != null && d.isExpired());
+	}
+
+	/**
+	 * @return {@code true} if this deadline has passed.
+	 */
+	public boolean isExpired()
+	{
+		return deadlineNanos != Long.MAX_VALUE && System.nanoTime() - deadlineNanos >= 0;
+	}
+
+	/**
+	 * @return The time left, in milliseconds, or {@code Long.MAX_VALUE} if there is no deadline.
+	 */
+	public long remainingMillis()
+	{
+		return deadlineNanos == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+	}
+
+	/**
+	 * Bounds a call by this deadline, so that OkHttp cancels it when the deadline passes. Must be done before the call is started.
+	 *
+	 * @param call The call to bound
+	 * @return {@code call}
+	 * @throws ExceededException If the deadline has already passed
+	 */
+	public Call bound(Call call) throws ExceededException
+	{
+		if (isExpired())
+			throw new ExceededException(call.request().url().toString());
+
+		if (deadlineNanos != Long.MAX_VALUE)
+			call.timeout().timeout(Math.max(1, remainingMillis()), TimeUnit.MILLISECONDS);
+
+		return call;
+	}
+
+	/**
+	 * Executes a call, cancelling it if this deadline passes or the current thread is interrupted before it is answered.
+	 *
+	 * @param call The call to execute
+	 * @return The response to {@code call}
+	 * @throws IOException Network error, or if the call was cancelled
+	 */
+	public Response execute(Call call) throws IOException
+	{
+		bound(call);
+
+		CompletableFuture<Response> response = new CompletableFuture<>();
+		call.enqueue(new Callback() {
+			@Override
+			public void onResponse(Call c, Response r)
+			{
+				if (!response.complete(r))
+					r.close();
+			}
+
+			@Override
+			public void onFailure(Call c, IOException e)
+			{
+				response.completeExceptionally(e);
+			}
+		});
+
+		try
+		{
+			return response.get();
+		}
+		catch (InterruptedException e)
+		{
+			call.cancel();
+			response.thenAccept(Response::close);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + call.request().url());
+		}
+		catch (ExecutionException e)
+		{
+			if (isExpired())
+				throw new ExceededException(call.request().url().toString());
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Ends this deadline, making the one which was active when it was started active again.
+	 */
+	@Override
+	public void close()
+	{
+		if (previous != null)
+			current.set(previous);
+		else
+			current.remove();
+	}
+
+	/**
+	 * Thrown instead of making or finishing a call once the deadline has passed.
+	 */
+	public static class ExceededException extends InterruptedIOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructor, creates a new ExceededException.
+		 *
+		 * @param url The URL of the abandoned call
+		 */
+		public ExceededException(String url)
+		{
+			super("Deadline exceeded, the call to " + url + " was abandoned");
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package ai.devtools.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A {@code RetryPolicy} which waits exponentially longer between attempts, with random jitter so that parallel tests don't retry in lockstep. It gives up
+ * after a maximum number of attempts, or when the next attempt would start after the wall-clock budget of the find has run out.
+ */
+public class ExponentialBackoff implements RetryPolicy
+{
+	/**
+	 * The maximum number of attempts, including the first one
+	 */
+	private final int maxAttempts;
+
+	/**
+	 * The delay before the first retry, in milliseconds
+	 */
+	private final long baseDelayMillis;
+
+	/**
+	 * The maximum delay between attempts, in milliseconds
+	 */
+	private final long maxDelayMillis;
+
+	/**
+	 * The wall-clock budget of a find, in milliseconds. Set 0 for no budget.
+	 */
+	private final long budgetMillis;
+
+	/**
+	 * Constructor, creates a new ExponentialBackoff.
+	 *
+	 * @param maxAttempts The maximum number of attempts, including the first one
+	 * @param baseDelayMillis The delay before the first retry, in milliseconds. Each further retry waits twice as long.
+	 * @param maxDelayMillis The maximum delay between attempts, in milliseconds
+	 * @param budgetMillis The wall-clock budget of a find, in milliseconds. Set 0 for no budget.
+	 */
+	public ExponentialBackoff(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long budgetMillis)
+	{
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.budgetMillis = budgetMillis;
+	}
+
+	@Override
+	public long nextDelay(int attempt, long elapsedMillis, boolean definitive)
+	{
+		if (attempt >= maxAttempts)
+			return -1;
+
+		long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+		delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		if (budgetMillis > 0 && elapsedMillis + delay >= budgetMillis)
+			return -1;
+
+		return delay;
+	}
+}
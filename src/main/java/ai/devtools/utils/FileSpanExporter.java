@@ -0,0 +1,81 @@
+package ai.devtools.utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Appends spans to a file, one json object per line, with the IDs, name, start and duration in microseconds, and attributes of each span.
+ */
+public class FileSpanExporter implements SpanExporter
+{
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(FileSpanExporter.class);
+
+	/**
+	 * The exporters opened so far, keyed by file, so that drivers tracing to the same file share it
+	 */
+	private static final Map<Path, FileSpanExporter> exporters = new ConcurrentHashMap<>();
+
+	/**
+	 * The file the spans are appended to
+	 */
+	private final Path file;
+
+	/**
+	 * Constructor, creates a new FileSpanExporter.
+	 *
+	 * @param file The file to append the spans to
+	 */
+	public FileSpanExporter(Path file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Gets the exporter for a file, creating it if necessary.
+	 *
+	 * @param file The file to append the spans to
+	 * @return The exporter for {@code file}.
+	 */
+	public static FileSpanExporter of(Path file)
+	{
+		return exporters.computeIfAbsent(file.toAbsolutePath().normalize(), FileSpanExporter::new);
+	}
+
+	@Override
+	public synchronized void export(Span span)
+	{
+		JsonObject jo = CollectionUtils.keyValuesToJO("trace_id", span.traceId(), "span_id", span.spanId(), "name", span.name(), "start_us", span.startMicros(),
+				"duration_us", TimeUnit.NANOSECONDS.toMicros(span.durationNanos()));
+		if (span.parentId() != null)
+			jo.addProperty("parent_id", span.parentId());
+
+		JsonObject attributes = new JsonObject();
+		span.attributes().forEach(attributes::addProperty);
+		jo.add("attributes", attributes);
+
+		try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND))
+		{
+			w.write(jo.toString());
+			w.newLine();
+		}
+		catch (IOException e)
+		{
+			log.warn("Could not export a span to {}: {}", file, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package ai.devtools.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * A process-wide cache of the frozen status of labels, keyed by API key and label. Entries expire after a time-to-live so that labels which are frozen or
+ * unfrozen on the server are eventually picked up.
+ */
+public class FrozenStatusCache
+{
+	/**
+	 * The logger for this class
+	 */
+	private static Logger log = LoggerFactory.getLogger(FrozenStatusCache.class);
+
+	/**
+	 * The cached statuses, keyed by {@link #key(String, String)}.
+	 */
+	private static final Map<String, Entry> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * Looks up the cached frozen status of a label.
+	 *
+	 * @param apiKey The user's Smartdriver API key
+	 * @param label The label to look up
+	 * @return The frozen status of {@code label}, or {@code null} if it is not cached or the cached value has expired.
+	 */
+	public static Boolean get(String apiKey, String label)
+	{
+		Entry e = cache.get(key(apiKey, label));
+		if (e == null)
+			return null;
+
+		if (e.expiresAt < System.currentTimeMillis())
+		{
+			cache.remove(key(apiKey, label), e);
+			return null;
+		}
+		return e.frozen;
+	}
+
+	/**
+	 * Caches the frozen status of a label.
+	 *
+	 * @param apiKey The user's Smartdriver API key
+	 * @param label The label to cache the status of
+	 * @param frozen The frozen status of {@code label}
+	 * @param ttlMillis The amount of time to keep the status for, in milliseconds. Nothing is cached if this is not positive.
+	 */
+	public static void put(String apiKey, String label, boolean frozen, long ttlMillis)
+	{
+		if (ttlMillis > 0)
+			cache.put(key(apiKey, label), new Entry(frozen, System.currentTimeMillis() + ttlMillis));
+	}
+
+	/**
+	 * Removes every cached status.
+	 */
+	public static void clear()
+	{
+		cache.clear();
+	}
+
+	/**
+	 * Loads the frozen status of every label in a test case with a single {@code check_frozen_bulk} call. Errors are logged and otherwise ignored, in which
+	 * case labels are looked up one by one as before.
+	 *
+	 * @param client The OkHttp client to use
+	 * @param serverURL The base URL of the target server
+	 * @param apiKey The user's Smartdriver API key
+	 * @param testCaseName The test case whose labels should be loaded
+	 * @param ttlMillis The amount of time to keep the statuses for, in milliseconds.
+	 * @return The number of labels which were cached.
+	 */
+	public static int prefetch(OkHttpClient client, HttpUrl serverURL, String apiKey, String testCaseName, long ttlMillis)
+	{
+		if (ttlMillis <= 0)
+			return 0;
+
+		JsonObject payload = CollectionUtils.keyValuesToJO("api_key", apiKey, "test_case_name", testCaseName);
+		try (Response r = NetUtils.basicPOST(client, serverURL, "check_frozen_bulk", payload))
+		{
+			JsonObject res = r.isSuccessful() ? JsonUtils.responseAsJson(r) : null;
+			if (res == null || !JsonUtils.booleanFromJson(res, "success") || !res.has("labels"))
+				return 0;
+
+			int count = 0;
+			for (Map.Entry<String, JsonElement> label : res.getAsJsonObject("labels").entrySet())
+			{
+				put(apiKey, label.getKey(), label.getValue().getAsBoolean(), ttlMillis);
+				count++;
+			}
+			return count;
+		}
+		catch (Throwable e)
+		{
+			log.debug("Error prefetching frozen status: {}", e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * Builds the cache key for a label.
+	 *
+	 * @param apiKey The user's Smartdriver API key
+	 * @param label The label
+	 * @return The cache key for {@code label}.
+	 */
+	private static String key(String apiKey, String label)
+	{
+		return apiKey + "\n" + label;
+	}
+
+	/**
+	 * A cached frozen status, along with the time it expires at.
+	 */
+	private static class Entry
+	{
+		/**
+		 * The frozen status of the label
+		 */
+		final boolean frozen;
+
+		/**
+		 * The time this entry expires at, in milliseconds since the epoch.
+		 */
+		final long expiresAt;
+
+		/**
+		 * Constructor, creates a new Entry.
+		 *
+		 * @param frozen The frozen status of the label
+		 * @param expiresAt The time this entry expires at, in milliseconds since the epoch.
+		 */
+		Entry(boolean frozen, long expiresAt)
+		{
+			this.frozen = frozen;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Sends hedged requests: if a request has not been answered once a given percentile of the observed latency has passed, a duplicate is sent, the first
+ * successful response is used and the other call is cancelled. The number of duplicates is capped by a budget, a fraction of the requests sent, so hedging
+ * can at most add that much load on the server.
+ * <p>
+ * Each driver has its own {@code Hedger}, so one slow session cannot spend another's budget.
+ */
+public class Hedger
+{
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(Hedger.class);
+
+	/**
+	 * The number of recent latencies the percentile is computed from
+	 */
+	private static final int WINDOW = 256;
+
+	/**
+	 * The number of latencies which must be observed before any request is hedged
+	 */
+	private static final int MIN_SAMPLES = 20;
+
+	/**
+	 * The percentile of observed latency after which a request is hedged, from 0 to 100
+	 */
+	private final double percentile;
+
+	/**
+	 * The maximum number of hedges, as a fraction of the requests sent
+	 */
+	private final double budget;
+
+	/**
+	 * The minimum delay before hedging, in milliseconds
+	 */
+	private final long minDelayMillis;
+
+	/**
+	 * The most recent latencies, in milliseconds, used as a ring buffer
+	 */
+	private final long[] latencies = new long[WINDOW];
+
+	/**
+	 * The number of latencies recorded so far
+	 */
+	private long samples;
+
+	/**
+	 * The current hedge delay in milliseconds, or -1 if it needs to be recomputed
+	 */
+	private long delay = -1;
+
+	/**
+	 * The number of requests sent through this hedger
+	 */
+	private final AtomicLong requests = new AtomicLong();
+
+	/**
+	 * The number of duplicate requests sent
+	 */
+	private final AtomicLong hedges = new AtomicLong();
+
+	/**
+	 * The number of duplicate requests which answered first
+	 */
+	private final AtomicLong hedgeWins = new AtomicLong();
+
+	/**
+	 * Constructor, creates a new Hedger.
+	 *
+	 * @param percentile The percentile of observed latency after which a request is hedged, from 0 to 100
+	 * @param budget The maximum number of hedges, as a fraction of the requests sent (e.g. {@code 0.1} for at most 10% extra requests)
+	 * @param minDelayMillis The minimum delay before hedging, in milliseconds
+	 */
+	public Hedger(double percentile, double budget, long minDelayMillis)
+	{
+		this.percentile = percentile;
+		this.budget = budget;
+		this.minDelayMillis = minDelayMillis;
+	}
+
+	/**
+	 * Sends a request, hedging it if it is slow to answer. If a {@link Deadline} is active on the current thread, every call is cancelled when it passes.
+	 *
+	 * @param client The OkHttp client to use
+	 * @param request The request to send. Its body must be writable more than once.
+	 * @return The first successful response, or the last response if none was successful.
+	 * @throws IOException If every call failed with a network error
+	 */
+	public Response execute(OkHttpClient client, Request request) throws IOException
+	{
+		requests.incrementAndGet();
+		Race race = new Race();
+		race.start(client.newCall(request));
+
+		long hedgeAfter = delay();
+		try
+		{
+			Result first = hedgeAfter < 0 ? race.results.take() : race.results.poll(hedgeAfter, TimeUnit.MILLISECONDS);
+			if (first == null)
+			{
+				if (!spend())
+					return race.finish(race.results.take());
+
+				log.debug("No answer to {} after {} ms, sending a hedged request", request.url(), hedgeAfter);
+				race.start(client.newCall(request));
+				first = race.results.take();
+			}
+
+			if (first.isSuccess() || race.calls.size() == 1)
+				return race.finish(first);
+
+			first.close();
+			return race.finish(race.results.take());
+		}
+		catch (InterruptedException e)
+		{
+			race.finish(null);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + request.url());
+		}
+	}
+
+	/**
+	 * @return The number of requests sent through this hedger.
+	 */
+	public long requests()
+	{
+		return requests.get();
+	}
+
+	/**
+	 * @return The number of duplicate requests sent.
+	 */
+	public long hedges()
+	{
+		return hedges.get();
+	}
+
+	/**
+	 * @return The number of duplicate requests which answered first.
+	 */
+	public long hedgeWins()
+	{
+		return hedgeWins.get();
+	}
+
+	/**
+	 * Takes a hedge from the budget, if there is one left.
+	 *
+	 * @return {@code true} if a duplicate request may be sent.
+	 */
+	private boolean spend()
+	{
+		long h;
+		do
+		{
+			h = hedges.get();
+			if (h + 1 > budget * requests.get())
+				return false;
+		}
+		while (!hedges.compareAndSet(h, h + 1));
+
+		return true;
+	}
+
+	/**
+	 * Records the latency of a successful call.
+	 *
+	 * @param millis The latency, in milliseconds
+	 */
+	private synchronized void record(long millis)
+	{
+		latencies[(int) (samples++ % WINDOW)] = millis;
+		if (samples % 16 == 0 || samples == MIN_SAMPLES)
+			delay = -1;
+	}
+
+	/**
+	 * Gets the delay after which requests are hedged.
+	 *
+	 * @return The delay in milliseconds, or -1 if too few latencies were observed to hedge.
+	 */
+	private synchronized long delay()
+	{
+		if (samples < MIN_SAMPLES)
+			return -1;
+
+		if (delay < 0)
+		{
+			long[] sorted = Arrays.copyOf(latencies, (int) Math.min(samples, WINDOW));
+			Arrays.sort(sorted);
+			delay = Math.max(minDelayMillis, sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile / 100 * sorted.length) - 1)]);
+		}
+		return delay;
+	}
+
+	/**
+	 * The outcome of one call.
+	 */
+	private static class Result
+	{
+		/**
+		 * The call
+		 */
+		final Call call;
+
+		/**
+		 * The response, or {@code null} if the call failed
+		 */
+		final Response response;
+
+		/**
+		 * The network error, or {@code null} if the call was answered
+		 */
+		final IOException error;
+
+		/**
+		 * Constructor, creates a new Result.
+		 *
+		 * @param call The call
+		 * @param response The response, or {@code null} if the call failed
+		 * @param error The network error, or {@code null} if the call was answered
+		 */
+		Result(Call call, Response response, IOException error)
+		{
+			this.call = call;
+			this.response = response;
+			this.error = error;
+		}
+
+		/**
+		 * @return {@code true} if the call was answered without a server error.
+		 */
+		boolean isSuccess()
+		{
+			return response != null && response.code() < 500;
+		}
+
+		/**
+		 * Closes the response, if there is one.
+		 */
+		void close()
+		{
+			if (response != null)
+				response.close();
+		}
+	}
+
+	/**
+	 * The calls racing to answer one request.
+	 */
+	private class Race
+	{
+		/**
+		 * The results of the calls, in the order they arrived
+		 */
+		final LinkedBlockingQueue<Result> results = new LinkedBlockingQueue<>();
+
+		/**
+		 * The calls started so far
+		 */
+		final List<Call> calls = new ArrayList<>();
+
+		/**
+		 * Whether a result was picked. Responses arriving afterwards are closed.
+		 */
+		boolean done;
+
+		/**
+		 * Starts a call.
+		 *
+		 * @param call The call to start
+		 * @throws Deadline.ExceededException If the deadline active on the current thread has passed
+		 */
+		void start(Call call) throws Deadline.ExceededException
+		{
+			boolean hedge = !calls.isEmpty();
+			Deadline deadline = Deadline.current();
+			if (deadline != null)
+				deadline.bound(call);
+
+			long start = System.nanoTime();
+			calls.add(call);
+
+			call.enqueue(new Callback() {
+				@Override
+				public void onResponse(Call c, Response response)
+				{
+					Result r = new Result(c, response, null);
+					if (r.isSuccess())
+						record((System.nanoTime() - start) / 1000000);
+
+					synchronized (Race.this)
+					{
+						if (!done)
+						{
+							if (hedge && r.isSuccess() && results.isEmpty())
+								hedgeWins.incrementAndGet();
+
+							results.add(r);
+							return;
+						}
+					}
+					response.close();
+				}
+
+				@Override
+				public void onFailure(Call c, IOException e)
+				{
+					results.add(new Result(c, null, e));
+				}
+			});
+		}
+
+		/**
+		 * Picks the result of the race, cancels the other calls and closes any other responses which already arrived.
+		 *
+		 * @param winner The result to return. Optional, set {@code null} to abandon the race.
+		 * @return The response of {@code winner}.
+		 * @throws IOException If {@code winner} is a network error
+		 */
+		Response finish(Result winner) throws IOException
+		{
+			synchronized (this)
+			{
+				done = true;
+			}
+
+			for (Call c : calls)
+				if (winner == null || c != winner.call)
+					c.cancel();
+			for (Result r : results)
+				r.close();
+
+			if (winner == null)
+				return null;
+			if (winner.error != null)
+				throw winner.error;
+
+			return winner.response;
+		}
+	}
+}
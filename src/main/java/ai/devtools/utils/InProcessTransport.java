@@ -0,0 +1,130 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import okhttp3.Call;
+import okhttp3.FormBody;
+import okhttp3.HttpUrl;
+import okhttp3.MultipartBody;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+/**
+ * A transport which hands requests straight to a handler in the same process: no sockets, and for requests made by {@link NetUtils}, no serialisation either,
+ * since the handler gets the payload the request was made from and its answer is handed back as is. Meant for embedded or stand-in servers, and for
+ * benchmarks measuring the overhead of the client alone.
+ */
+public class InProcessTransport implements Transport
+{
+	/**
+	 * The base URL the endpoints are relative to, or {@code null} to take the whole path as the endpoint
+	 */
+	private final HttpUrl baseURL;
+
+	/**
+	 * Answers the requests
+	 */
+	private final Handler handler;
+
+	/**
+	 * Constructor, creates a new InProcessTransport which takes the whole path of a request as its endpoint.
+	 *
+	 * @param handler Answers the requests
+	 */
+	public InProcessTransport(Handler handler)
+	{
+		this(null, handler);
+	}
+
+	/**
+	 * Constructor, creates a new InProcessTransport for a server which is not mounted at the root, e.g. {@code http://host/smartdriver/}.
+	 *
+	 * @param baseURL The base URL the endpoints are relative to. Optional, set {@code null} to take the whole path as the endpoint.
+	 * @param handler Answers the requests
+	 */
+	public InProcessTransport(HttpUrl baseURL, Handler handler)
+	{
+		this.baseURL = baseURL;
+		this.handler = handler;
+	}
+
+	@Override
+	public Response send(Request request, Call call) throws IOException
+	{
+		if (call != null && call.isCanceled())
+			throw new IOException("Canceled");
+
+		List<String> path = baseURL != null ? ServerPool.relativePath(request.url(), baseURL) : null;
+		String endpoint = path != null ? String.join("/", path) : request.url().encodedPath().substring(1);
+		JsonObject answer = handler.handle(endpoint, payloadOf(request), request.tag(Screenshot.class));
+
+		Response.Builder b = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).message("");
+		if (answer == null)
+			return b.code(404).body(ResponseBody.create(new byte[0], null)).build();
+
+		return b.code(200).body(new JsonResponseBody(answer)).build();
+	}
+
+	/**
+	 * Gets the json payload of a request, without reading the body if the payload it was made from is attached.
+	 *
+	 * @param request The request
+	 * @return The payload of {@code request}, or {@code null} if it has none.
+	 * @throws IOException If the request body could not be read
+	 */
+	private static JsonObject payloadOf(Request request) throws IOException
+	{
+		JsonObject payload = request.tag(JsonObject.class);
+		if (payload != null || request.body() == null)
+			return payload;
+
+		RequestBody body = request.body();
+		if (body instanceof FormBody)
+		{
+			// e.g. NetUtils.post, which sends the payload as the json field of a form
+			FormBody form = (FormBody) body;
+			JsonObject fields = new JsonObject();
+			for (int i = 0; i < form.size(); i++)
+			{
+				if ("json".equals(form.name(i)) && form.value(i).startsWith("{"))
+					return JsonParser.parseString(form.value(i)).getAsJsonObject();
+				fields.addProperty(form.name(i), form.value(i));
+			}
+			return fields;
+		}
+		if (body instanceof MultipartBody)
+			body = ((MultipartBody) body).part(0).body();
+
+		Buffer buffer = new Buffer();
+		body.writeTo(buffer);
+		String text = buffer.readString(StandardCharsets.UTF_8);
+		return text.startsWith("{") ? JsonParser.parseString(text).getAsJsonObject() : null;
+	}
+
+	/**
+	 * Answers the requests of an {@link InProcessTransport}.
+	 */
+	@FunctionalInterface
+	public interface Handler
+	{
+		/**
+		 * Answers a request. The payload must not be modified, since it is the caller's own; neither must the answer after it was returned.
+		 *
+		 * @param endpoint The endpoint called, e.g. {@code detect}
+		 * @param payload The json payload, or {@code null} if there is none
+		 * @param screenshot The screenshot sent along, or {@code null} if there is none
+		 * @return The answer, or {@code null} to answer {@code 404 Not Found}.
+		 * @throws IOException To fail the call as if the network failed
+		 */
+		JsonObject handle(String endpoint, JsonObject payload, Screenshot screenshot) throws IOException;
+	}
+}
@@ -0,0 +1,173 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLContext;
+
+import okhttp3.Call;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+/**
+ * A transport using the JDK's {@code java.net.http.HttpClient}, which speaks HTTP/2 and sends requests asynchronously. The request body is written out once,
+ * and the answer is read into memory before it is handed back.
+ * <p>
+ * Unlike OkHttp, the JDK client cannot be told to skip hostname verification, so a trust-all ssl context only relaxes certificate checks.
+ */
+public class JdkTransport implements Transport
+{
+	/**
+	 * How long to wait for an answer before checking if the call was cancelled, in milliseconds
+	 */
+	private static final long CANCEL_CHECK_MILLIS = 100;
+
+	/**
+	 * The headers the JDK client sets itself and refuses to take from callers
+	 */
+	private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+	/**
+	 * The client requests are sent with
+	 */
+	private final HttpClient client;
+
+	/**
+	 * How long to wait for an answer to a request whose call has no timeout
+	 */
+	private final Duration timeout;
+
+	/**
+	 * Constructor, creates a new JdkTransport.
+	 *
+	 * @param timeout How long to wait for an answer to a request whose call has no timeout, e.g. the client's read timeout
+	 * @param sslContext The ssl context to use. Optional, set {@code null} to use the default.
+	 */
+	public JdkTransport(Duration timeout, SSLContext sslContext)
+	{
+		HttpClient.Builder b = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).connectTimeout(timeout);
+		if (sslContext != null)
+			b.sslContext(sslContext);
+
+		this.client = b.build();
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Creates a transport which ignores expired/invalid ssl certificates.
+	 *
+	 * @param timeout How long to wait for an answer to a request whose call has no timeout
+	 * @return A new transport which ignores expired/invalid ssl certificates.
+	 */
+	public static JdkTransport unsafe(Duration timeout)
+	{
+		return new JdkTransport(timeout, NetUtils.trustAllContext());
+	}
+
+	@Override
+	public Response send(Request request, Call call) throws IOException
+	{
+		CompletableFuture<HttpResponse<byte[]>> f = client.sendAsync(toJdk(request, call), HttpResponse.BodyHandlers.ofByteArray());
+		try
+		{
+			while (true)
+			{
+				if (call != null && call.isCanceled())
+				{
+					f.cancel(true);
+					throw new IOException("Canceled");
+				}
+
+				try
+				{
+					return fromJdk(request, f.get(CANCEL_CHECK_MILLIS, TimeUnit.MILLISECONDS));
+				}
+				catch (TimeoutException e)
+				{
+					// check for cancellation again
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			f.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while calling " + request.url());
+		}
+		catch (ExecutionException e)
+		{
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Translates a request for the JDK client.
+	 *
+	 * @param request The request
+	 * @param call The call the request belongs to. Optional, may be {@code null}.
+	 * @return The request for the JDK client.
+	 * @throws IOException If the request body could not be written
+	 */
+	private HttpRequest toJdk(Request request, Call call) throws IOException
+	{
+		long callTimeoutNanos = call != null ? call.timeout().timeoutNanos() : 0;
+		HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(request.url().toString()))
+				.timeout(callTimeoutNanos > 0 ? Duration.ofNanos(callTimeoutNanos) : timeout);
+
+		Headers headers = request.headers();
+		for (int i = 0; i < headers.size(); i++)
+			if (!RESTRICTED_HEADERS.contains(headers.name(i).toLowerCase()))
+				b.header(headers.name(i), headers.value(i));
+
+		RequestBody body = request.body();
+		if (body == null)
+			return b.method(request.method(), HttpRequest.BodyPublishers.noBody()).build();
+
+		MediaType type = body.contentType();
+		if (type != null && request.header("Content-Type") == null)
+			b.header("Content-Type", type.toString());
+
+		Buffer buffer = new Buffer();
+		body.writeTo(buffer);
+		return b.method(request.method(), HttpRequest.BodyPublishers.ofByteArray(buffer.readByteArray())).build();
+	}
+
+	/**
+	 * Translates an answer of the JDK client.
+	 *
+	 * @param request The request answered
+	 * @param r The answer of the JDK client
+	 * @return The answer.
+	 */
+	private static Response fromJdk(Request request, HttpResponse<byte[]> r)
+	{
+		Headers.Builder headers = new Headers.Builder();
+		for (Map.Entry<String, List<String>> h : r.headers().map().entrySet())
+			if (!h.getKey().startsWith(":"))
+				for (String value : h.getValue())
+					headers.add(h.getKey(), value);
+
+		String type = r.headers().firstValue("Content-Type").orElse(null);
+		return new Response.Builder().request(request).protocol(r.version() == HttpClient.Version.HTTP_2 ? Protocol.HTTP_2 : Protocol.HTTP_1_1)
+				.code(r.statusCode()).message("").headers(headers.build())
+				.body(ResponseBody.create(r.body(), type != null ? MediaType.parse(type) : null)).build();
+	}
+}
@@ -0,0 +1,81 @@
+package ai.devtools.utils;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.JsonObject;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * A response body holding an answer which is already json, as handed back by an {@link InProcessTransport}. {@link JsonUtils#responseAsJson(okhttp3.Response)}
+ * takes the answer as is, and it is only written out as text if something reads the body as bytes.
+ */
+public class JsonResponseBody extends ResponseBody
+{
+	/**
+	 * The {@code MediaType} representing the json MIME type.
+	 */
+	private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+	/**
+	 * The answer
+	 */
+	private final JsonObject json;
+
+	/**
+	 * The answer written out as text, or {@code null} if it was not needed yet
+	 */
+	private Buffer text;
+
+	/**
+	 * Constructor, creates a new JsonResponseBody.
+	 *
+	 * @param json The answer. It is handed to the caller as is, and must not be modified afterwards.
+	 */
+	public JsonResponseBody(JsonObject json)
+	{
+		this.json = json;
+	}
+
+	/**
+	 * @return The answer.
+	 */
+	public JsonObject json()
+	{
+		return json;
+	}
+
+	@Override
+	public MediaType contentType()
+	{
+		return JSON;
+	}
+
+	@Override
+	public long contentLength()
+	{
+		return text().size();
+	}
+
+	@Override
+	public synchronized BufferedSource source()
+	{
+		return text();
+	}
+
+	/**
+	 * Writes out the answer as text, once.
+	 *
+	 * @return The answer as text.
+	 */
+	private synchronized Buffer text()
+	{
+		if (text == null)
+			text = new Buffer().writeString(json.toString(), StandardCharsets.UTF_8);
+
+		return text;
+	}
+}
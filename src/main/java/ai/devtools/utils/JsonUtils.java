@@ -1,10 +1,15 @@
 package ai.devtools.utils;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
 import okhttp3.Response;
 
@@ -19,19 +24,90 @@ public class JsonUtils
 	private static Logger log = LoggerFactory.getLogger(JsonUtils.class);
 
 	/**
-	 * Convenience method, extract the body of a {@code Response} as a {@code JsonObject}.
+	 * Convenience method, extract the body of a {@code Response} as a {@code JsonObject}. The body is parsed as it is read from the connection, and {@code r}
+	 * is always closed, so the connection goes back to the pool even if parsing fails.
 	 * 
 	 * @param r The Response object to use
 	 * @return The body of {@code r} as a {@code JsonObject}.
 	 */
 	public static JsonObject responseAsJson(Response r)
 	{
-		try
+		return responseAsJson(r, (Set<String>) null);
+	}
+
+	/**
+	 * Convenience method, extract the specified top-level fields of the body of a {@code Response} as a {@code JsonObject}. Every other field is skipped
+	 * without being materialized. {@code r} is always closed.
+	 * 
+	 * @param r The Response object to use
+	 * @param fields The names of the fields to keep
+	 * @return The fields of the body of {@code r} named in {@code fields}, as a {@code JsonObject}.
+	 */
+	public static JsonObject responseAsJson(Response r, String... fields)
+	{
+		return responseAsJson(r, new HashSet<>(Arrays.asList(fields)));
+	}
+
+	/**
+	 * Keeps only some of the top-level fields of an answer which is already json.
+	 * 
+	 * @param jo The answer
+	 * @param fields The names of the fields to keep, or {@code null} to keep every field.
+	 * @return {@code jo} itself if every field is kept, otherwise a {@code JsonObject} with the fields of {@code jo} named in {@code fields}.
+	 */
+	private static JsonObject fieldsOf(JsonObject jo, Set<String> fields)
+	{
+		if (fields == null || jo == null)
+			return jo;
+
+		JsonObject kept = new JsonObject();
+		for (String name : fields)
+			if (jo.has(name))
+				kept.add(name, jo.get(name));
+
+		return kept;
+	}
+
+	/**
+	 * Streams the body of a {@code Response} into a {@code JsonObject}, optionally keeping only some of its top-level fields. {@code r} is always closed.
+	 * 
+	 * @param r The Response object to use
+	 * @param fields The names of the fields to keep, or {@code null} to keep every field.
+	 * @return The body of {@code r} as a {@code JsonObject}, or {@code null} if it could not be read.
+	 */
+	private static JsonObject responseAsJson(Response r, Set<String> fields)
+	{
+		if (r == null)
+			return null;
+
+		if (r.body() instanceof JsonResponseBody)
+		{
+			r.close();
+			return fieldsOf(((JsonResponseBody) r.body()).json(), fields);
+		}
+
+		try (Response res = r; JsonReader reader = new JsonReader(res.body().charStream()))
 		{
-			String body = r.body().string();
-			log.debug("Status: {} ----- Body: {}", r.code(), body);
+			JsonObject jo;
+			if (fields == null)
+				jo = JsonParser.parseReader(reader).getAsJsonObject();
+			else
+			{
+				jo = new JsonObject();
+				reader.beginObject();
+				while (reader.hasNext())
+				{
+					String name = reader.nextName();
+					if (fields.contains(name))
+						jo.add(name, JsonParser.parseReader(reader));
+					else
+						reader.skipValue();
+				}
+				reader.endObject();
+			}
+			log.debug("Status: {} ----- Body: {}", res.code(), jo);
 
-			return JsonParser.parseString(body).getAsJsonObject();
+			return jo;
 		}
 		catch (Throwable e)
 		{
@@ -6,6 +6,7 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.time.Duration;
 import java.util.HashMap;
+import java.util.function.Consumer;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
@@ -13,7 +14,6 @@ import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
 import okhttp3.*;
@@ -28,6 +28,11 @@ public class NetUtils
 	 */
 	private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
 
+	/**
+	 * The {@code MediaType} representing the png MIME type.
+	 */
+	private static final MediaType PNG = MediaType.get("image/png");
+
 	/**
 	 * Performs a simple POST to the specified url with the provided client and {@code RequestBody}.
 	 * 
@@ -40,24 +45,61 @@ public class NetUtils
 	 */
 	private static Response basicPOST(OkHttpClient client, HttpUrl baseURL, String endpoint, RequestBody b) throws IOException
 	{
-		return client.newCall(new Request.Builder().url(baseURL.newBuilder().addPathSegment(endpoint).build()).post(b).build()).execute();
+		return basicPOST(client, baseURL, endpoint, b, null, null, null, null);
+	}
+
+	/**
+	 * Performs a simple POST to the specified url with the provided client and {@code RequestBody}, with extra headers, hedging it if it is slow to answer. The
+	 * payload and screenshot the body was made from are attached to the request as tags, so that a {@link Transport} which does not need the body as bytes can
+	 * skip writing it, and so is the current {@link Span}, which the call may end up running on another thread than.
+	 * 
+	 * @param client The OkHttp client to use
+	 * @param baseURL The base URL to target
+	 * @param endpoint The endpoint on the baseURL to target.
+	 * @param b The request body to POST. Must be writable more than once if {@code hedger} is set.
+	 * @param payload The json payload {@code b} was made from. Optional, set {@code null} if there is none.
+	 * @param screenshot The screenshot carried by {@code b}. Optional, set {@code null} if there is none.
+	 * @param headers Extra headers to send. Optional, set {@code null} for none.
+	 * @param hedger The hedger to send the request with. Optional, set {@code null} to send a single request.
+	 * @return The response from the server, in the form of a {@code Response} object
+	 * @throws IOException Network error
+	 */
+	private static Response basicPOST(OkHttpClient client, HttpUrl baseURL, String endpoint, RequestBody b, JsonObject payload, Screenshot screenshot,
+			Headers headers, Hedger hedger) throws IOException
+	{
+		Request.Builder rb = new Request.Builder().url(baseURL.newBuilder().addPathSegment(endpoint).build()).post(b).tag(JsonObject.class, payload)
+				.tag(Screenshot.class, screenshot).tag(Span.class, Span.current());
+		if (headers != null)
+			rb.headers(headers);
+
+		Request request = rb.build();
+		return hedger != null ? hedger.execute(client, request) : execute(client, request);
+	}
+
+	/**
+	 * Executes a request. If a {@link Deadline} is active on the current thread, the call is cancelled when it passes or when the thread is interrupted.
+	 * 
+	 * @param client The OkHttp client to use
+	 * @param request The request to execute
+	 * @return The response from the server, in the form of a {@code Response} object
+	 * @throws IOException Network error, or if the call was cancelled
+	 */
+	private static Response execute(OkHttpClient client, Request request) throws IOException
+	{
+		Deadline d = Deadline.current();
+		return d != null ? d.execute(client.newCall(request)) : client.newCall(request).execute();
 	}
 
 	public static JsonObject post(String url, JsonObject json) throws IOException
 	{
-		OkHttpClient client = new OkHttpClient.Builder().connectTimeout(Duration.ofSeconds(30)).readTimeout(Duration.ofSeconds(30)).build();
+		OkHttpClient client = ClientRegistry.basic().newBuilder().connectTimeout(Duration.ofSeconds(30)).readTimeout(Duration.ofSeconds(30)).build();
 		RequestBody payload = new FormBody.Builder().add("json", json.toString()).build();
 		Request request = new Request.Builder()
 				.url(url)
 				.post(payload)
 				.build();
 
-		Call call = client.newCall(request);
-		try (Response response = client.newCall(request).execute()) {
-			return new Gson().fromJson(response.body().string(), JsonObject.class);
-		} catch (IOException e) {
-			throw e;
-		}
+		return JsonUtils.responseAsJson(execute(client, request));
 	}
 
 	/**
@@ -72,7 +114,185 @@ public class NetUtils
 	 */
 	public static Response basicPOST(OkHttpClient client, HttpUrl baseURL, String endpoint, JsonObject jo) throws IOException
 	{
-		return basicPOST(client, baseURL, endpoint, RequestBody.create(jo.toString(), JSON));
+		return basicPOST(client, baseURL, endpoint, jo, (Headers) null);
+	}
+
+	/**
+	 * Performs a simple POST to the specified url with the provided client, json data and extra headers.
+	 * 
+	 * @param client The OkHttp client to use
+	 * @param baseURL The base URL to target
+	 * @param endpoint The endpoint on the baseURL to target.
+	 * @param jo The JsonObject to put in the request body
+	 * @param headers Extra headers to send, e.g. {@code If-None-Match}. Optional, set {@code null} for none.
+	 * @return The response from the server, in the form of a {@code Response} object
+	 * @throws IOException Network error
+	 */
+	public static Response basicPOST(OkHttpClient client, HttpUrl baseURL, String endpoint, JsonObject jo, Headers headers) throws IOException
+	{
+		return basicPOST(client, baseURL, endpoint, RequestBody.create(jo.toString(), JSON), jo, null, headers, null);
+	}
+
+	/**
+	 * Performs a simple POST of json data with a screenshot added as its base64 encoded {@code screenshot} field. The screenshot is encoded while the request
+	 * is written, so the payload is never held in memory as a whole.
+	 * 
+	 * @param client The OkHttp client to use
+	 * @param baseURL The base URL to target
+	 * @param endpoint The endpoint on the baseURL to target.
+	 * @param jo The JsonObject to put in the request body, without the screenshot
+	 * @param screenshot The screenshot to add to the request body
+	 * @return The response from the server, in the form of a {@code Response} object
+	 * @throws IOException Network error
+	 */
+	public static Response basicPOST(OkHttpClient client, HttpUrl baseURL, String endpoint, JsonObject jo, Screenshot screenshot) throws IOException
+	{
+		return basicPOST(client, baseURL, endpoint, jo, screenshot, null);
+	}
+
+	/**
+	 * Performs a simple POST of json data with a screenshot added as its base64 encoded {@code screenshot} field, hedging it if it is slow to answer.
+	 * 
+	 * @param client The OkHttp client to use
+	 * @param baseURL The base URL to target
+	 * @param endpoint The endpoint on the baseURL to target.
+	 * @param jo The JsonObject to put in the request body, without the screenshot
+	 * @param screenshot The screenshot to add to the request body
+	 * @param hedger The hedger to send the request with. Optional, set {@code null} to send a single request.
+	 * @return The response from the server, in the form of a {@code Response} object
+	 * @throws IOException Network error
+	 */
+	public static Response basicPOST(OkHttpClient client, HttpUrl baseURL, String endpoint, JsonObject jo, Screenshot screenshot, Hedger hedger) throws IOException
+	{
+		return basicPOST(client, baseURL, endpoint, jo, screenshot, null, hedger);
+	}
+
+	/**
+	 * Performs a simple POST of json data with a screenshot added as its base64 encoded {@code screenshot} field, with extra headers, hedging it if it is slow
+	 * to answer.
+	 * 
+	 * @param client The OkHttp client to use
+	 * @param baseURL The base URL to target
+	 * @param endpoint The endpoint on the baseURL to target.
+	 * @param jo The JsonObject to put in the request body, without the screenshot
+	 * @param screenshot The screenshot to add to the request body
+	 * @param headers Extra headers to send, e.g. {@code If-None-Match}. Optional, set {@code null} for none.
+	 * @param hedger The hedger to send the request with. Optional, set {@code null} to send a single request.
+	 * @return The response from the server, in the form of a {@code Response} object
+	 * @throws IOException Network error
+	 */
+	public static Response basicPOST(OkHttpClient client, HttpUrl baseURL, String endpoint, JsonObject jo, Screenshot screenshot, Headers headers, Hedger hedger)
+			throws IOException
+	{
+		return basicPOST(client, baseURL, endpoint, screenshot.jsonBody(jo), jo, screenshot, headers, hedger);
+	}
+
+	/**
+	 * Performs a multipart POST carrying json data and a screenshot as raw bytes, so the screenshot does not have to be base64 encoded into the json.
+	 * 
+	 * @param client The OkHttp client to use
+	 * @param baseURL The base URL to target
+	 * @param endpoint The endpoint on the baseURL to target.
+	 * @param jo The JsonObject to send in the {@code json} part
+	 * @param screenshot The PNG screenshot to send in the {@code screenshot} part
+	 * @return The response from the server, in the form of a {@code Response} object
+	 * @throws IOException Network error
+	 */
+	public static Response multipartPOST(OkHttpClient client, HttpUrl baseURL, String endpoint, JsonObject jo, byte[] screenshot) throws IOException
+	{
+		return multipartPOST(client, baseURL, endpoint, jo, screenshot, null);
+	}
+
+	/**
+	 * Performs a multipart POST carrying json data and a screenshot as raw bytes, hedging it if it is slow to answer.
+	 * 
+	 * @param client The OkHttp client to use
+	 * @param baseURL The base URL to target
+	 * @param endpoint The endpoint on the baseURL to target.
+	 * @param jo The JsonObject to send in the {@code json} part
+	 * @param screenshot The PNG screenshot to send in the {@code screenshot} part
+	 * @param hedger The hedger to send the request with. Optional, set {@code null} to send a single request.
+	 * @return The response from the server, in the form of a {@code Response} object
+	 * @throws IOException Network error
+	 */
+	public static Response multipartPOST(OkHttpClient client, HttpUrl baseURL, String endpoint, JsonObject jo, byte[] screenshot, Hedger hedger) throws IOException
+	{
+		return multipartPOST(client, baseURL, endpoint, jo, screenshot, null, hedger);
+	}
+
+	/**
+	 * Performs a multipart POST carrying json data and a screenshot as raw bytes, with extra headers, hedging it if it is slow to answer.
+	 * 
+	 * @param client The OkHttp client to use
+	 * @param baseURL The base URL to target
+	 * @param endpoint The endpoint on the baseURL to target.
+	 * @param jo The JsonObject to send in the {@code json} part
+	 * @param screenshot The PNG screenshot to send in the {@code screenshot} part
+	 * @param headers Extra headers to send, e.g. {@code If-None-Match}. Optional, set {@code null} for none.
+	 * @param hedger The hedger to send the request with. Optional, set {@code null} to send a single request.
+	 * @return The response from the server, in the form of a {@code Response} object
+	 * @throws IOException Network error
+	 */
+	public static Response multipartPOST(OkHttpClient client, HttpUrl baseURL, String endpoint, JsonObject jo, byte[] screenshot, Headers headers, Hedger hedger)
+			throws IOException
+	{
+		MultipartBody b = new MultipartBody.Builder().setType(MultipartBody.FORM).addFormDataPart("json", null, RequestBody.create(jo.toString(), JSON))
+				.addFormDataPart("screenshot", "screenshot.png", RequestBody.create(screenshot, PNG)).build();
+
+		return basicPOST(client, baseURL, endpoint, b, jo, new Screenshot(screenshot), headers, hedger);
+	}
+
+	/**
+	 * Performs a json POST in the background. The response is parsed as json and passed to {@code callback} on an OkHttp dispatcher thread.
+	 * 
+	 * @param client The OkHttp client to use
+	 * @param baseURL The base URL to target
+	 * @param endpoint The endpoint on the baseURL to target.
+	 * @param jo The JsonObject to put in the request body
+	 * @param callback Receives the response from the server, or {@code null} if the request failed or the response was not json.
+	 */
+	public static void basicPOSTAsync(OkHttpClient client, HttpUrl baseURL, String endpoint, JsonObject jo, Consumer<JsonObject> callback)
+	{
+		client.newCall(new Request.Builder().url(baseURL.newBuilder().addPathSegment(endpoint).build()).post(RequestBody.create(jo.toString(), JSON))
+				.tag(JsonObject.class, jo).tag(Span.class, Span.current()).build())
+				.enqueue(new Callback() {
+					@Override
+					public void onResponse(Call call, Response response)
+					{
+						callback.accept(JsonUtils.responseAsJson(response));
+					}
+
+					@Override
+					public void onFailure(Call call, IOException e)
+					{
+						callback.accept(null);
+					}
+				});
+	}
+
+	/**
+	 * Opens connections to a server in the background, so that the first real requests don't pay for DNS, TCP and TLS setup. Nothing is done if the client's
+	 * connection pool already holds enough connections.
+	 * 
+	 * @param client The OkHttp client to use
+	 * @param baseURL The base URL of the server
+	 * @param connections The number of connections to open
+	 */
+	public static void prewarm(OkHttpClient client, HttpUrl baseURL, int connections)
+	{
+		for (int i = client.connectionPool().connectionCount(); i < connections; i++)
+			client.newCall(new Request.Builder().url(baseURL).head().build()).enqueue(new Callback() {
+				@Override
+				public void onResponse(Call call, Response response)
+				{
+					response.close();
+				}
+
+				@Override
+				public void onFailure(Call call, IOException e)
+				{
+				}
+			});
 	}
 
 	/**
@@ -94,14 +314,14 @@ public class NetUtils
 	}
 
 	/**
-	 * Convenience method, creates a new OkHttpBuilder with timeouts configured.
+	 * Convenience method, creates a new OkHttpBuilder with timeouts configured. Clients built from it share the connection pool and dispatcher of
+	 * {@link ClientRegistry#basic()}.
 	 * 
 	 * @return A OkHttpClient builder with reasonable timeouts configured.
 	 */
 	public static OkHttpClient.Builder basicClient()
 	{
-		Duration d = Duration.ofSeconds(60);
-		return new OkHttpClient.Builder().connectTimeout(d).writeTimeout(d).readTimeout(d).callTimeout(d);
+		return ClientRegistry.basic().newBuilder();
 	}
 
 	/**
@@ -110,15 +330,47 @@ public class NetUtils
 	 * @return A new {@code OkHttpClient} which ignores expired/invalid ssl certificates.
 	 */
 	public static OkHttpClient unsafeClient()
+	{
+		return unsafeClient(basicClient());
+	}
+
+	/**
+	 * Creates a new {@code OkHttpClient} from the specified builder which ignores expired/invalid ssl certificates.
+	 * 
+	 * @param b The builder to configure
+	 * @return A new {@code OkHttpClient} which ignores expired/invalid ssl certificates.
+	 */
+	public static OkHttpClient unsafeClient(OkHttpClient.Builder b)
+	{
+		b = trustAll(b);
+		return b != null ? b.build() : null;
+	}
+
+	/**
+	 * Configures a client builder to ignore expired/invalid ssl certificates.
+	 * 
+	 * @param b The builder to configure
+	 * @return {@code b}, or {@code null} if the ssl context could not be created.
+	 */
+	static OkHttpClient.Builder trustAll(OkHttpClient.Builder b)
+	{
+		SSLContext sslContext = trustAllContext();
+		return sslContext != null ? b.sslSocketFactory(sslContext.getSocketFactory(), new TrustAllX509Manager()).hostnameVerifier(new TrustAllHostnameVerifier())
+				: null;
+	}
+
+	/**
+	 * Creates an ssl context which ignores expired/invalid ssl certificates.
+	 * 
+	 * @return The ssl context, or {@code null} if it could not be created.
+	 */
+	static SSLContext trustAllContext()
 	{
 		try
 		{
-			TrustManager tl[] = { new TrustAllX509Manager() };
-
 			SSLContext sslContext = SSLContext.getInstance("SSL");
-			sslContext.init(null, tl, new SecureRandom());
-
-			return basicClient().sslSocketFactory(sslContext.getSocketFactory(), (X509TrustManager) tl[0]).hostnameVerifier(new TrustAllHostnameVerifier()).build();
+			sslContext.init(null, new TrustManager[] { new TrustAllX509Manager() }, new SecureRandom());
+			return sslContext;
 		}
 		catch (Throwable e) // highly unlikely, shut up compiler
 		{
@@ -0,0 +1,47 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * The default transport: OkHttp's own network stack, with its shared connection pool, HTTP/2 and TLS session reuse.
+ */
+public class OkHttpTransport implements Transport
+{
+	/**
+	 * The client used to send requests made outside of a client chain
+	 */
+	private final OkHttpClient client;
+
+	/**
+	 * Constructor, creates a new OkHttpTransport.
+	 *
+	 * @param client The client to send requests made outside of a client chain with
+	 */
+	public OkHttpTransport(OkHttpClient client)
+	{
+		this.client = client;
+	}
+
+	@Override
+	public Response send(Request request, Call call) throws IOException
+	{
+		return client.newCall(request).execute();
+	}
+
+	/**
+	 * Returns {@code client} as is, since its own network stack already is this transport.
+	 *
+	 * @param client The client
+	 * @return {@code client}.
+	 */
+	@Override
+	public OkHttpClient install(OkHttpClient client)
+	{
+		return client;
+	}
+}
@@ -0,0 +1,203 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonObject;
+
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.Response;
+
+/**
+ * Remembers the server's answers to {@code detect} and {@code exists_screenshot} along with their validator, i.e. the {@code ETag} the server answered with,
+ * or the {@code model_version} of the answer if there is no {@code ETag}. Asking again for the same lookup sends the validator as {@code If-None-Match}, and if
+ * the model has not changed since, the server answers {@code 304 Not Modified} without running inference and the remembered answer is used.
+ * <p>
+ * The server decides whether an answer is still valid, so a retrained label can never be served from the cache. Drivers sharing a server and an API key share
+ * one cache.
+ */
+public class PredictionCache
+{
+	/**
+	 * The caches shared by drivers, keyed by server URL and API key
+	 */
+	private static final Map<String, PredictionCache> shared = new ConcurrentHashMap<>();
+
+	/**
+	 * The remembered answers, keyed by {@link SingleFlight#key(String, String, String, Float, String)}, least recently used first
+	 */
+	private final LinkedHashMap<String, Answer> entries;
+
+	/**
+	 * The number of lookups sent through this cache
+	 */
+	private final AtomicLong lookups = new AtomicLong();
+
+	/**
+	 * The number of lookups answered with {@code 304 Not Modified}
+	 */
+	private final AtomicLong revalidated = new AtomicLong();
+
+	/**
+	 * Constructor, creates a new PredictionCache.
+	 *
+	 * @param maxEntries The maximum number of answers to remember
+	 */
+	public PredictionCache(int maxEntries)
+	{
+		this.entries = new LinkedHashMap<String, Answer>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Answer> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets the cache shared by every driver using a server with an API key, creating it if necessary.
+	 *
+	 * @param serverURL The base URL of the server
+	 * @param apiKey The user's Smartdriver API key
+	 * @param maxEntries The maximum number of answers to remember, only used if the cache is created.
+	 * @return The cache for {@code serverURL} and {@code apiKey}.
+	 */
+	public static PredictionCache shared(HttpUrl serverURL, String apiKey, int maxEntries)
+	{
+		return shared.computeIfAbsent(serverURL + " " + apiKey, k -> new PredictionCache(maxEntries));
+	}
+
+	/**
+	 * Makes a lookup, revalidating the remembered answer if there is one.
+	 *
+	 * @param key The key of the lookup, see {@link SingleFlight#key(String, String, String, Float, String)}
+	 * @param label The label looked up, so that its answers can be forgotten when it is retrained
+	 * @param fetcher Sends the lookup with the given extra headers
+	 * @return The server's answer, or the remembered answer if the server said it is still valid.
+	 * @throws IOException Network error
+	 */
+	public JsonObject fetch(String key, String label, Fetcher fetcher) throws IOException
+	{
+		lookups.incrementAndGet();
+		Answer cached;
+		synchronized (this)
+		{
+			cached = entries.get(key);
+		}
+
+		Response r = fetcher.fetch(cached != null ? Headers.of("If-None-Match", cached.validator) : null);
+		if (r.code() == 304 && cached != null)
+		{
+			r.close();
+			revalidated.incrementAndGet();
+			return cached.answer.deepCopy();
+		}
+
+		String etag = r.header("ETag");
+		JsonObject answer = JsonUtils.responseAsJson(r);
+		String validator = etag != null ? etag : validatorOf(answer);
+		synchronized (this)
+		{
+			if (validator != null && JsonUtils.booleanFromJson(answer, "success"))
+				entries.put(key, new Answer(label, validator, answer.deepCopy()));
+			else
+				entries.remove(key);
+		}
+		return answer;
+	}
+
+	/**
+	 * Forgets every answer for a label, e.g. because it is being retrained.
+	 *
+	 * @param label The label
+	 */
+	public synchronized void invalidate(String label)
+	{
+		entries.values().removeIf(e -> e.label.equals(label));
+	}
+
+	/**
+	 * @return The number of lookups sent through this cache.
+	 */
+	public long lookups()
+	{
+		return lookups.get();
+	}
+
+	/**
+	 * @return The number of lookups answered with {@code 304 Not Modified}, which did not run inference on the server.
+	 */
+	public long revalidated()
+	{
+		return revalidated.get();
+	}
+
+	/**
+	 * Derives a validator from the model version of an answer.
+	 *
+	 * @param answer The answer
+	 * @return A weak {@code ETag} made from the answer's {@code model_version}, or {@code null} if it has none.
+	 */
+	private static String validatorOf(JsonObject answer)
+	{
+		if (answer == null || !answer.has("model_version") || answer.get("model_version").isJsonNull())
+			return null;
+
+		return "W/\"" + answer.get("model_version").getAsString() + "\"";
+	}
+
+	/**
+	 * Sends a lookup.
+	 */
+	@FunctionalInterface
+	public interface Fetcher
+	{
+		/**
+		 * Sends the lookup.
+		 *
+		 * @param headers The extra headers to send, or {@code null} if there are none
+		 * @return The server's response
+		 * @throws IOException Network error
+		 */
+		Response fetch(Headers headers) throws IOException;
+	}
+
+	/**
+	 * A remembered answer.
+	 */
+	private static class Answer
+	{
+		/**
+		 * The label looked up
+		 */
+		final String label;
+
+		/**
+		 * The validator to send as {@code If-None-Match}
+		 */
+		final String validator;
+
+		/**
+		 * The server's answer
+		 */
+		final JsonObject answer;
+
+		/**
+		 * Constructor, creates a new Answer.
+		 *
+		 * @param label The label looked up
+		 * @param validator The validator to send as {@code If-None-Match}
+		 * @param answer The server's answer
+		 */
+		Answer(String label, String validator, JsonObject answer)
+		{
+			this.label = label;
+			this.validator = validator;
+			this.answer = answer;
+		}
+	}
+}
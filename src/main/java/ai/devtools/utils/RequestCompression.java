@@ -0,0 +1,131 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * Gzips the bodies of large json and form requests to the Smartdriver server. Compression is only used once the server has announced support for it in its
+ * {@code ping} response, and is dropped for good if the server answers a compressed request with {@code 415 Unsupported Media Type}.
+ * <p>
+ * Multipart requests are left alone, since the PNG they carry is already compressed.
+ */
+public class RequestCompression implements Interceptor
+{
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(RequestCompression.class);
+
+	/**
+	 * The capabilities of the server the requests are sent to
+	 */
+	private final ServerCapabilities capabilities;
+
+	/**
+	 * The minimum size, in bytes, of request bodies to compress
+	 */
+	private final long threshold;
+
+	/**
+	 * The deflate compression level, from 1 (fastest) to 9 (smallest)
+	 */
+	private final int level;
+
+	/**
+	 * Constructor, creates a new RequestCompression.
+	 *
+	 * @param capabilities The capabilities of the server the requests are sent to
+	 * @param threshold The minimum size, in bytes, of request bodies to compress. Smaller bodies are not worth the CPU time.
+	 * @param level The deflate compression level, from 1 (fastest) to 9 (smallest)
+	 */
+	public RequestCompression(ServerCapabilities capabilities, long threshold, int level)
+	{
+		this.capabilities = capabilities;
+		this.threshold = threshold;
+		this.level = level;
+	}
+
+	/**
+	 * Derives a client which compresses its requests. The derived client shares its connection pool and dispatcher with {@code client}.
+	 *
+	 * @param client The client to derive from
+	 * @param capabilities The capabilities of the server the requests are sent to
+	 * @param threshold The minimum size, in bytes, of request bodies to compress
+	 * @param level The deflate compression level, from 1 (fastest) to 9 (smallest)
+	 * @return A client which compresses large request bodies.
+	 */
+	public static OkHttpClient install(OkHttpClient client, ServerCapabilities capabilities, long threshold, int level)
+	{
+		return client.newBuilder().addInterceptor(new RequestCompression(capabilities, threshold, level)).build();
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException
+	{
+		Request request = chain.request();
+		RequestBody body = request.body();
+		if (body == null || !capabilities.gzipRequests() || request.header("Content-Encoding") != null || !isCompressible(body.contentType())
+				|| body.contentLength() < threshold)
+			return chain.proceed(request);
+
+		Buffer compressed = gzip(body);
+		if (compressed.size() >= body.contentLength())
+			return chain.proceed(request);
+
+		Response r = chain.proceed(request.newBuilder().header("Content-Encoding", "gzip")
+				.method(request.method(), RequestBody.create(compressed.readByteString(), body.contentType())).build());
+		if (r.code() != 415)
+			return r;
+
+		r.close();
+		log.info("Server rejected a gzip compressed request, sending uncompressed requests from now on");
+		capabilities.disableGzipRequests();
+
+		return chain.proceed(request);
+	}
+
+	/**
+	 * Compresses a request body.
+	 *
+	 * @param body The request body to compress
+	 * @return A buffer holding the gzip compressed body.
+	 * @throws IOException If the body could not be written
+	 */
+	private Buffer gzip(RequestBody body) throws IOException
+	{
+		Buffer out = new Buffer();
+		try (BufferedSink sink = Okio.buffer(Okio.sink(new GZIPOutputStream(out.outputStream(), 8192) {
+			{
+				def.setLevel(level);
+			}
+		})))
+		{
+			body.writeTo(sink);
+		}
+		return out;
+	}
+
+	/**
+	 * Determines if requests of the specified type are worth compressing.
+	 *
+	 * @param type The content type of the request body
+	 * @return {@code true} for json and url-encoded form bodies.
+	 */
+	private static boolean isCompressible(MediaType type)
+	{
+		return type != null && type.type().equals("application") && (type.subtype().equals("json") || type.subtype().equals("x-www-form-urlencoded"));
+	}
+}
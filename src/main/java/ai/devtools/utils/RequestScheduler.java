@@ -0,0 +1,418 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Schedules the calls to one Smartdriver server by priority. Lookups a test is blocked on go first, then exists checks, then training traffic, and each class
+ * has its own concurrency limit on top of a limit for the whole server, so that a burst of training uploads from many sessions can never take every slot. The
+ * limit for the whole server can be an {@link AdaptiveLimit}, which backs off when the server's latency climbs. Calls over the limit wait in a bounded queue,
+ * and are refused once it is full. The scheduler is shared by every driver talking to the server.
+ */
+public class RequestScheduler implements Interceptor
+{
+	/**
+	 * How long a waiting call sleeps before checking if it was cancelled, in milliseconds
+	 */
+	private static final long CANCEL_CHECK_MILLIS = 100;
+
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(RequestScheduler.class);
+
+	/**
+	 * The priority classes of calls, highest first.
+	 */
+	public enum Priority
+	{
+		/**
+		 * Lookups a test is blocked on.
+		 */
+		CLASSIFY,
+
+		/**
+		 * Exists checks and other small calls. Also the class of any endpoint not listed.
+		 */
+		LOOKUP,
+
+		/**
+		 * Training data, which nothing waits on.
+		 */
+		TRAINING
+	}
+
+	/**
+	 * The priority of each known endpoint
+	 */
+	private static final Map<String, Priority> PRIORITIES = new HashMap<>();
+	static
+	{
+		PRIORITIES.put("detect", Priority.CLASSIFY);
+		for (String endpoint : Arrays.asList("upload_screenshot", "add_action_info", "add_action_info_batch"))
+			PRIORITIES.put(endpoint, Priority.TRAINING);
+	}
+
+	/**
+	 * The schedulers of every server seen so far, keyed by base URL.
+	 */
+	private static final Map<HttpUrl, RequestScheduler> servers = new ConcurrentHashMap<>();
+
+	/**
+	 * The base URL of the server
+	 */
+	private final HttpUrl serverURL;
+
+	/**
+	 * The maximum number of calls in flight to the server
+	 */
+	private final AdaptiveLimit limit;
+
+	/**
+	 * The maximum number of calls waiting for a slot
+	 */
+	private final int maxQueue;
+
+	/**
+	 * The maximum number of calls in flight in each class, indexed by ordinal
+	 */
+	private final int[] limits;
+
+	/**
+	 * The number of calls in flight in each class, indexed by ordinal
+	 */
+	private final int[] running = new int[Priority.values().length];
+
+	/**
+	 * The number of calls waiting in each class, indexed by ordinal
+	 */
+	private final int[] waiting = new int[Priority.values().length];
+
+	/**
+	 * The number of calls which had to wait in each class, indexed by ordinal
+	 */
+	private final long[] delayed = new long[Priority.values().length];
+
+	/**
+	 * The number of calls in flight
+	 */
+	private int total;
+
+	/**
+	 * The number of calls waiting
+	 */
+	private int queued;
+
+	/**
+	 * The number of calls refused because the queue was full
+	 */
+	private long rejected;
+
+	/**
+	 * Constructor, creates a new RequestScheduler.
+	 *
+	 * @param serverURL The base URL of the server
+	 * @param maxConcurrent The maximum number of calls in flight to the server
+	 * @param lookupLimit The maximum number of {@code LOOKUP} calls in flight
+	 * @param trainingLimit The maximum number of {@code TRAINING} calls in flight
+	 */
+	public RequestScheduler(HttpUrl serverURL, int maxConcurrent, int lookupLimit, int trainingLimit)
+	{
+		this(serverURL, AdaptiveLimit.fixed(maxConcurrent), lookupLimit, trainingLimit, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor, creates a new RequestScheduler.
+	 *
+	 * @param serverURL The base URL of the server
+	 * @param limit The maximum number of calls in flight to the server
+	 * @param lookupLimit The maximum number of {@code LOOKUP} calls in flight
+	 * @param trainingLimit The maximum number of {@code TRAINING} calls in flight
+	 * @param maxQueue The maximum number of calls waiting for a slot
+	 */
+	public RequestScheduler(HttpUrl serverURL, AdaptiveLimit limit, int lookupLimit, int trainingLimit, int maxQueue)
+	{
+		this.serverURL = serverURL;
+		this.limit = limit;
+		this.maxQueue = maxQueue;
+		this.limits = new int[] { Integer.MAX_VALUE, lookupLimit, trainingLimit };
+	}
+
+	/**
+	 * Gets the scheduler of a server, creating it if necessary.
+	 *
+	 * @param serverURL The base URL of the server
+	 * @param maxConcurrent The maximum number of calls in flight to the server, only used if the scheduler is created.
+	 * @param lookupLimit The maximum number of {@code LOOKUP} calls in flight, only used if the scheduler is created.
+	 * @param trainingLimit The maximum number of {@code TRAINING} calls in flight, only used if the scheduler is created.
+	 * @return The scheduler of the server at {@code serverURL}.
+	 */
+	public static RequestScheduler of(HttpUrl serverURL, int maxConcurrent, int lookupLimit, int trainingLimit)
+	{
+		return shared(serverURL, new RequestScheduler(serverURL, maxConcurrent, lookupLimit, trainingLimit));
+	}
+
+	/**
+	 * Gets the scheduler of a server, creating it if necessary.
+	 *
+	 * @param serverURL The base URL of the server
+	 * @param limit The maximum number of calls in flight to the server, only used if the scheduler is created.
+	 * @param lookupLimit The maximum number of {@code LOOKUP} calls in flight, only used if the scheduler is created.
+	 * @param trainingLimit The maximum number of {@code TRAINING} calls in flight, only used if the scheduler is created.
+	 * @param maxQueue The maximum number of calls waiting for a slot, only used if the scheduler is created.
+	 * @return The scheduler of the server at {@code serverURL}.
+	 */
+	public static RequestScheduler of(HttpUrl serverURL, AdaptiveLimit limit, int lookupLimit, int trainingLimit, int maxQueue)
+	{
+		return shared(serverURL, new RequestScheduler(serverURL, limit, lookupLimit, trainingLimit, maxQueue));
+	}
+
+	/**
+	 * Gets the scheduler of a server, registering {@code requested} if there is none yet. If there is one with other settings, it is kept and a warning is
+	 * logged.
+	 *
+	 * @param serverURL The base URL of the server
+	 * @param requested The scheduler with the settings asked for
+	 * @return The scheduler of the server at {@code serverURL}.
+	 */
+	private static RequestScheduler shared(HttpUrl serverURL, RequestScheduler requested)
+	{
+		RequestScheduler s = servers.putIfAbsent(serverURL, requested);
+		if (s == null)
+			return requested;
+
+		if (!s.settings().equals(requested.settings()))
+			log.warn("The request scheduler of {} is shared and already uses {}, ignoring {}", serverURL, s.settings(), requested.settings());
+
+		return s;
+	}
+
+	/**
+	 * @return The settings of this scheduler, to tell schedulers apart in log messages.
+	 */
+	private String settings()
+	{
+		return "limit " + limit + ", lookups " + limits[Priority.LOOKUP.ordinal()] + ", training " + limits[Priority.TRAINING.ordinal()] + ", queue " + maxQueue;
+	}
+
+	/**
+	 * Derives a client whose calls are scheduled by this scheduler. The derived client shares its connection pool and dispatcher with {@code client}. The
+	 * scheduler goes before the request limit of a shared client, see {@link ClientRegistry}, so a call waiting for a slot of its priority class does not hold
+	 * a request slot which a lookup would have to queue behind.
+	 *
+	 * @param client The client to derive from
+	 * @return A client whose calls wait for a slot of their priority class.
+	 */
+	public OkHttpClient install(OkHttpClient client)
+	{
+		OkHttpClient.Builder b = client.newBuilder();
+		List<Interceptor> interceptors = b.interceptors();
+		for (int i = 0; i < interceptors.size(); i++)
+		{
+			if (interceptors.get(i) instanceof ClientRegistry.RequestLimit)
+			{
+				interceptors.add(i, this);
+				return b.build();
+			}
+		}
+		return b.addInterceptor(this).build();
+	}
+
+	/**
+	 * Gets the priority class of an endpoint.
+	 *
+	 * @param endpoint The endpoint
+	 * @return The priority class of {@code endpoint}.
+	 */
+	public static Priority priorityOf(String endpoint)
+	{
+		return PRIORITIES.getOrDefault(endpoint, Priority.LOOKUP);
+	}
+
+	/**
+	 * @param p The priority class
+	 * @return The number of calls of class {@code p} in flight.
+	 */
+	public synchronized int running(Priority p)
+	{
+		return running[p.ordinal()];
+	}
+
+	/**
+	 * @param p The priority class
+	 * @return The number of calls of class {@code p} waiting for a slot.
+	 */
+	public synchronized int waiting(Priority p)
+	{
+		return waiting[p.ordinal()];
+	}
+
+	/**
+	 * @param p The priority class
+	 * @return The number of calls of class {@code p} which had to wait for a slot.
+	 */
+	public synchronized long delayed(Priority p)
+	{
+		return delayed[p.ordinal()];
+	}
+
+	/**
+	 * @return The current maximum number of calls in flight to the server.
+	 */
+	public int limit()
+	{
+		return limit.limit();
+	}
+
+	/**
+	 * @return The number of calls waiting for a slot.
+	 */
+	public synchronized int queueDepth()
+	{
+		return queued;
+	}
+
+	/**
+	 * @return The number of calls refused because the queue was full.
+	 */
+	public synchronized long rejected()
+	{
+		return rejected;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder b = new StringBuilder(serverURL.toString()).append(String.format(": limit %d, %d queued, %d rejected;", limit(), queued, rejected));
+		for (Priority p : Priority.values())
+			b.append(String.format(" %s %d/%d running, %d waiting, %d delayed;", p, running[p.ordinal()], limits[p.ordinal()], waiting[p.ordinal()],
+					delayed[p.ordinal()]));
+
+		return b.toString();
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException
+	{
+		Request request = chain.request();
+		List<String> path = ServerPool.relativePath(request.url(), serverURL);
+		Priority p = path != null ? priorityOf(String.join("/", path)) : Priority.LOOKUP;
+
+		int inFlight = acquire(p, chain.call());
+		long start = System.nanoTime();
+		boolean ok = false;
+		try
+		{
+			Response r = chain.proceed(request);
+			ok = r.code() < 500;
+			return r;
+		}
+		catch (IOException e)
+		{
+			// neither says anything about the server's latency
+			if (chain.call().isCanceled() || e instanceof CircuitBreaker.OpenException)
+				start = 0;
+			throw e;
+		}
+		finally
+		{
+			release(p);
+			if (start != 0)
+				limit.onSample(p.ordinal(), System.nanoTime() - start, ok, inFlight);
+		}
+	}
+
+	/**
+	 * Waits for a slot.
+	 *
+	 * @param p The priority class of the call
+	 * @param call The call
+	 * @return The number of calls in flight, including this one.
+	 * @throws IOException If the queue is full, or the call was cancelled or the current thread was interrupted while waiting
+	 */
+	private synchronized int acquire(Priority p, Call call) throws IOException
+	{
+		int i = p.ordinal();
+		if (!admissible(i))
+		{
+			if (queued >= maxQueue)
+			{
+				rejected++;
+				throw new IOException("Too many calls waiting for " + serverURL + ", refusing to call " + call.request().url());
+			}
+
+			queued++;
+			waiting[i]++;
+			delayed[i]++;
+			try
+			{
+				while (!admissible(i))
+				{
+					if (call.isCanceled())
+						throw new IOException("Canceled");
+
+					wait(CANCEL_CHECK_MILLIS);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to call " + call.request().url());
+			}
+			finally
+			{
+				queued--;
+				waiting[i]--;
+				notifyAll();
+			}
+		}
+
+		running[i]++;
+		return ++total;
+	}
+
+	/**
+	 * Gives back a slot.
+	 *
+	 * @param p The priority class of the call
+	 */
+	private synchronized void release(Priority p)
+	{
+		running[p.ordinal()]--;
+		total--;
+		notifyAll();
+	}
+
+	/**
+	 * Determines if a call may start now. Must be called while holding the lock.
+	 *
+	 * @param i The ordinal of the priority class of the call
+	 * @return {@code true} if there is a slot for the call, and no call of a higher class which could use it is waiting.
+	 */
+	private boolean admissible(int i)
+	{
+		if (running[i] >= limits[i] || total >= limit.limit())
+			return false;
+
+		for (int higher = 0; higher < i; higher++)
+			if (waiting[higher] > 0 && running[higher] < limits[higher])
+				return false;
+
+		return true;
+	}
+}
@@ -0,0 +1,18 @@
+package ai.devtools.utils;
+
+/**
+ * Decides if and when a failed AI lookup is retried. Implementations must be thread safe, a single policy is shared by every find made through a driver.
+ */
+public interface RetryPolicy
+{
+	/**
+	 * Decides whether to retry after a failed attempt.
+	 *
+	 * @param attempt The number of attempts made so far, starting at 1
+	 * @param elapsedMillis The time since the first attempt was started, in milliseconds
+	 * @param definitive {@code true} if the server answered, so retrying only helps if the screen changes. {@code false} if the attempt failed with a
+	 *           transient error, e.g. a network error or a server error.
+	 * @return How long to wait before the next attempt, in milliseconds, or a negative number to give up.
+	 */
+	long nextDelay(int attempt, long elapsedMillis, boolean definitive);
+}
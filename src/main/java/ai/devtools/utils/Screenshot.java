@@ -0,0 +1,201 @@
+package ai.devtools.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.imageio.ImageIO;
+
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.TakesScreenshot;
+
+import com.google.gson.JsonObject;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * A screenshot held once, as the raw PNG bytes returned by the driver. The base64 form the server works with is never materialized as a String: the hash is
+ * computed by digesting the base64 encoding as it is produced, and request bodies encode straight into the OkHttp sink, whose buffers come from Okio's
+ * segment pool.
+ */
+public class Screenshot
+{
+	/**
+	 * The {@code MediaType} representing the json MIME type.
+	 */
+	private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+	/**
+	 * The first 8 bytes of every PNG file
+	 */
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	/**
+	 * The PNG bytes of the screenshot
+	 */
+	private final byte[] png;
+
+	/**
+	 * The md5 hash of the base64 encoded screenshot, computed lazily.
+	 */
+	private String hash;
+
+	/**
+	 * Constructor, creates a new Screenshot.
+	 *
+	 * @param png The PNG bytes of the screenshot. The array is not copied and must not be modified afterwards.
+	 */
+	public Screenshot(byte[] png)
+	{
+		this.png = png;
+	}
+
+	/**
+	 * Takes a screenshot.
+	 *
+	 * @param driver The driver to take the screenshot with
+	 * @return The screenshot of the current viewport.
+	 */
+	public static Screenshot capture(TakesScreenshot driver)
+	{
+		return new Screenshot(driver.getScreenshotAs(OutputType.BYTES));
+	}
+
+	/**
+	 * @return The PNG bytes of the screenshot. The array is shared and must not be modified.
+	 */
+	public byte[] bytes()
+	{
+		return png;
+	}
+
+	/**
+	 * Gets the size of the screenshot. For PNGs this is read from the IHDR chunk, so the image does not have to be decoded.
+	 *
+	 * @return The width and height of the screenshot, in pixels.
+	 * @throws IOException If the screenshot is not a readable image
+	 */
+	public Dimension dimension() throws IOException
+	{
+		if (png.length >= 24 && ByteBuffer.wrap(png, 0, 8).equals(ByteBuffer.wrap(PNG_SIGNATURE)) && png[12] == 'I' && png[13] == 'H' && png[14] == 'D' && png[15] == 'R')
+		{
+			ByteBuffer ihdr = ByteBuffer.wrap(png, 16, 8);
+			return new Dimension(ihdr.getInt(), ihdr.getInt());
+		}
+
+		BufferedImage im = ImageIO.read(new ByteArrayInputStream(png));
+		if (im == null)
+			throw new IOException("The screenshot is not a readable image");
+
+		return new Dimension(im.getWidth(), im.getHeight());
+	}
+
+	/**
+	 * @return The length of the base64 encoded screenshot.
+	 */
+	public long base64Length()
+	{
+		return 4L * ((png.length + 2) / 3);
+	}
+
+	/**
+	 * Gets the hash identifying this screenshot on the server: the lowercase hex md5 of its base64 encoding.
+	 *
+	 * @return The hash of the screenshot, or the empty String if it could not be computed.
+	 */
+	public synchronized String hash()
+	{
+		if (hash != null)
+			return hash;
+
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			try (OutputStream os = Base64.getEncoder().wrap(new DigestOutputStream(OutputStream.nullOutputStream(), md)))
+			{
+				os.write(png);
+			}
+			hash = String.format("%032X", new BigInteger(1, md.digest())).toLowerCase();
+		}
+		catch (Throwable e)
+		{
+			hash = "";
+		}
+		return hash;
+	}
+
+	/**
+	 * Writes the base64 encoding of this screenshot to a sink, encoding it as it is written.
+	 *
+	 * @param sink The sink to write to. It is not closed.
+	 * @throws IOException Network error
+	 */
+	public void writeBase64(BufferedSink sink) throws IOException
+	{
+		OutputStream out = new FilterOutputStream(sink.outputStream()) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				this.out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				flush();
+			}
+		};
+
+		try (OutputStream os = Base64.getEncoder().wrap(out))
+		{
+			os.write(png);
+		}
+	}
+
+	/**
+	 * Creates a json request body consisting of {@code jo} with this screenshot added as its base64 encoded {@code screenshot} field. The json is written
+	 * directly to the connection, without building the full payload as a String.
+	 *
+	 * @param jo The json payload, without the screenshot
+	 * @return The request body.
+	 */
+	public RequestBody jsonBody(JsonObject jo)
+	{
+		String json = jo.toString();
+		byte[] prefix = (json.substring(0, json.length() - 1) + (jo.size() > 0 ? "," : "") + "\"screenshot\":\"").getBytes(StandardCharsets.UTF_8);
+		byte[] suffix = "\"}".getBytes(StandardCharsets.UTF_8);
+
+		return new RequestBody() {
+			@Override
+			public MediaType contentType()
+			{
+				return JSON;
+			}
+
+			@Override
+			public long contentLength()
+			{
+				return prefix.length + base64Length() + suffix.length;
+			}
+
+			@Override
+			public void writeTo(BufferedSink sink) throws IOException
+			{
+				sink.write(prefix);
+				writeBase64(sink);
+				sink.write(suffix);
+			}
+		};
+	}
+}
@@ -0,0 +1,196 @@
+package ai.devtools.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local index of the screenshot hashes which the server is known to have, either because it confirmed them through {@code exists_screenshot} or because
+ * they were uploaded. Hashes are kept in an in-memory set, which forgets the least recently used hash once it reaches its capacity. For large runs, an
+ * optional Bloom filter remembers every hash, trading a small false positive rate for bounded memory.
+ * <p>
+ * The server answers {@code exists_screenshot} and trains on {@code upload_screenshot} per label, so drivers index a screenshot along with the label it was
+ * confirmed or uploaded for, see {@link #add(String, String)}: a screen known for one label is still checked, and uploaded if need be, for another.
+ */
+public class ScreenshotIndex
+{
+	/**
+	 * The process-wide indexes, keyed by API key.
+	 */
+	private static final Map<String, ScreenshotIndex> shared = new ConcurrentHashMap<>();
+
+	/**
+	 * The maximum number of hashes kept in {@code hashes}, or 0 for no limit
+	 */
+	private final int maxExactEntries;
+
+	/**
+	 * The hashes which are known exactly, least recently used first
+	 */
+	private final Map<String, Boolean> hashes = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+		{
+			return maxExactEntries > 0 && size() > maxExactEntries;
+		}
+	};
+
+	/**
+	 * The Bloom filter holding every hash, or {@code null} if it is disabled.
+	 */
+	private final BloomFilter bloomFilter;
+
+	/**
+	 * The number of lookups which found a known hash
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * The number of lookups which did not find a known hash
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Constructor, creates a new ScreenshotIndex backed only by an in-memory set with no limit.
+	 */
+	public ScreenshotIndex()
+	{
+		this(0, 0);
+	}
+
+	/**
+	 * Constructor, creates a new ScreenshotIndex.
+	 *
+	 * @param maxExactEntries The number of hashes to keep in the in-memory set, beyond which the least recently used are forgotten, or relied on the Bloom filter
+	 *           for if it is enabled. Set 0 for no limit.
+	 * @param bloomFilterSize The number of hashes the Bloom filter should be sized for. Set 0 to disable the Bloom filter.
+	 */
+	public ScreenshotIndex(int maxExactEntries, long bloomFilterSize)
+	{
+		this.maxExactEntries = maxExactEntries;
+		this.bloomFilter = bloomFilterSize > 0 ? new BloomFilter(bloomFilterSize, 0.001) : null;
+	}
+
+	/**
+	 * Gets the process-wide index for an API key, creating it if necessary.
+	 *
+	 * @param apiKey The user's Smartdriver API key
+	 * @param maxExactEntries The number of hashes to keep in the in-memory set if the index is created by this call
+	 * @param bloomFilterSize The number of hashes to size the Bloom filter for if the index is created by this call. Set 0 to disable the Bloom filter.
+	 * @return The index shared by every driver using {@code apiKey}.
+	 */
+	public static ScreenshotIndex shared(String apiKey, int maxExactEntries, long bloomFilterSize)
+	{
+		return shared.computeIfAbsent(apiKey, k -> new ScreenshotIndex(maxExactEntries, bloomFilterSize));
+	}
+
+	/**
+	 * Records that the server has a screenshot.
+	 *
+	 * @param hash The hash of the screenshot
+	 */
+	public void add(String hash)
+	{
+		if (hash == null || hash.isEmpty())
+			return;
+
+		if (bloomFilter != null)
+			bloomFilter.add(hash);
+		synchronized (hashes)
+		{
+			hashes.put(hash, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Records that the server has a screenshot for a label.
+	 *
+	 * @param hash The hash of the screenshot
+	 * @param label The label the screenshot was confirmed or uploaded for
+	 */
+	public void add(String hash, String label)
+	{
+		add(key(hash, label));
+	}
+
+	/**
+	 * Checks if the server is known to have a screenshot for a label, and counts the lookup as a hit or a miss.
+	 *
+	 * @param hash The hash of the screenshot
+	 * @param label The label the screenshot is needed for
+	 * @return {@code true} if the server has (or, when using the Bloom filter, very likely has) the screenshot for {@code label}.
+	 */
+	public boolean contains(String hash, String label)
+	{
+		return contains(key(hash, label));
+	}
+
+	/**
+	 * Builds the key of a screenshot and label.
+	 *
+	 * @param hash The hash of the screenshot
+	 * @param label The label
+	 * @return The key, or {@code null} if there is no hash.
+	 */
+	private static String key(String hash, String label)
+	{
+		return hash == null || hash.isEmpty() ? null : hash + " " + label;
+	}
+
+	/**
+	 * Checks if the server is known to have a screenshot, and counts the lookup as a hit or a miss.
+	 *
+	 * @param hash The hash of the screenshot
+	 * @return {@code true} if the server has (or, when using the Bloom filter, very likely has) the screenshot.
+	 */
+	public boolean contains(String hash)
+	{
+		boolean found;
+		synchronized (hashes)
+		{
+			found = hash != null && hashes.get(hash) != null;
+		}
+		found = found || hash != null && bloomFilter != null && bloomFilter.mightContain(hash);
+		(found ? hits : misses).incrementAndGet();
+		return found;
+	}
+
+	/**
+	 * @return The number of lookups which found a known hash.
+	 */
+	public long hits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of lookups which did not find a known hash.
+	 */
+	public long misses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return The fraction of lookups which found a known hash, or 0 if there were no lookups yet.
+	 */
+	public double hitRatio()
+	{
+		long h = hits.get(), total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * @return The number of hashes kept in the in-memory set.
+	 */
+	public int exactSize()
+	{
+		synchronized (hashes)
+		{
+			return hashes.size();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package ai.devtools.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.JsonObject;
+
+import okhttp3.HttpUrl;
+
+/**
+ * The optional protocol features supported by a Smartdriver server, as announced in its response to the {@code ping} check-in. Until a server has answered,
+ * every feature is assumed to be unsupported, so older servers keep getting the original json requests.
+ */
+public class ServerCapabilities
+{
+	/**
+	 * The capabilities of every server seen so far, keyed by base URL.
+	 */
+	private static final Map<HttpUrl, ServerCapabilities> servers = new ConcurrentHashMap<>();
+
+	/**
+	 * Whether the server accepts screenshots as a raw multipart part instead of base64 inside the json payload
+	 */
+	private volatile boolean binaryScreenshots;
+
+	/**
+	 * Whether the server accepts gzip compressed request bodies
+	 */
+	private volatile boolean gzipRequests;
+
+	/**
+	 * Gets the capabilities of a server.
+	 *
+	 * @param serverURL The base URL of the server
+	 * @return The capabilities of the server at {@code serverURL}.
+	 */
+	public static ServerCapabilities of(HttpUrl serverURL)
+	{
+		return servers.computeIfAbsent(serverURL, k -> new ServerCapabilities());
+	}
+
+	/**
+	 * Records the capabilities announced by a server.
+	 *
+	 * @param pingResponse The server's response to the {@code ping} check-in
+	 */
+	public void update(JsonObject pingResponse)
+	{
+		if (pingResponse == null)
+			return;
+
+		binaryScreenshots = JsonUtils.booleanFromJson(pingResponse, "binary_screenshots");
+		gzipRequests = JsonUtils.booleanFromJson(pingResponse, "gzip_requests");
+	}
+
+	/**
+	 * @return {@code true} if the server accepts screenshots as a raw multipart part.
+	 */
+	public boolean binaryScreenshots()
+	{
+		return binaryScreenshots;
+	}
+
+	/**
+	 * Stops sending binary screenshots to the server, e.g. because it rejected one.
+	 */
+	public void disableBinaryScreenshots()
+	{
+		binaryScreenshots = false;
+	}
+
+	/**
+	 * @return {@code true} if the server accepts gzip compressed request bodies.
+	 */
+	public boolean gzipRequests()
+	{
+		return gzipRequests;
+	}
+
+	/**
+	 * Stops compressing requests to the server, e.g. because it rejected one.
+	 */
+	public void disableGzipRequests()
+	{
+		gzipRequests = false;
+	}
+}
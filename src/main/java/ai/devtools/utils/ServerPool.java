@@ -0,0 +1,451 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * A set of interchangeable Smartdriver servers which requests are balanced across on the client side. Drivers keep addressing their requests to the first
+ * server in the list (the primary), and an interceptor installed on their client rewrites each request to the node picked for it.
+ * <p>
+ * Only endpoints which read shared state are balanced per request. Everything else, such as screenshot uploads, training data and the interactive test case
+ * flow, sticks to a node picked once per driver, so that follow-up requests referring to a screenshot UUID reach the node which received it. Nodes which keep
+ * failing are ejected for a while and then given another chance.
+ */
+public class ServerPool
+{
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(ServerPool.class);
+
+	/**
+	 * The endpoints which can be served by any node
+	 */
+	private static final Set<String> BALANCED = new HashSet<>(Arrays.asList("detect", "exists_screenshot", "check_frozen", "check_frozen_bulk"));
+
+	/**
+	 * The number of consecutive failures after which a node is ejected
+	 */
+	private static final int MAX_FAILURES = 3;
+
+	/**
+	 * How long an ejected node is left alone, in milliseconds
+	 */
+	private static final long EJECT_MILLIS = 30000;
+
+	/**
+	 * The weight of the most recent sample in the latency moving average
+	 */
+	private static final double EWMA_ALPHA = 0.3;
+
+	/**
+	 * The pools created so far, keyed by their server list, so that all drivers in the process share the same view of the nodes' load.
+	 */
+	private static final Map<List<HttpUrl>, ServerPool> pools = new ConcurrentHashMap<>();
+
+	/**
+	 * The strategies for picking the node to send a request to.
+	 */
+	public enum Policy
+	{
+		/**
+		 * Pick the node with the fewest requests in flight.
+		 */
+		LEAST_OUTSTANDING,
+
+		/**
+		 * Pick the node with the lowest moving average latency, scaled by its requests in flight.
+		 */
+		EWMA
+	}
+
+	/**
+	 * The nodes in this pool, the first one is the primary.
+	 */
+	private final List<Node> nodes = new ArrayList<>();
+
+	/**
+	 * The strategy for picking nodes
+	 */
+	private final Policy policy;
+
+	/**
+	 * Constructor, creates a new ServerPool.
+	 *
+	 * @param urls The base URLs of the servers. Must not be empty.
+	 * @param policy The strategy for picking nodes
+	 */
+	public ServerPool(List<HttpUrl> urls, Policy policy)
+	{
+		for (HttpUrl url : urls)
+			nodes.add(new Node(url));
+
+		this.policy = policy;
+	}
+
+	/**
+	 * Gets the shared pool for a list of servers, creating it if necessary.
+	 *
+	 * @param urls The base URLs of the servers. Must not be empty.
+	 * @param policy The strategy for picking nodes, only used if the pool is created.
+	 * @return The pool for {@code urls}.
+	 */
+	public static ServerPool of(List<HttpUrl> urls, Policy policy)
+	{
+		return pools.computeIfAbsent(new ArrayList<>(urls), k -> new ServerPool(k, policy));
+	}
+
+	/**
+	 * Parses a server URL setting, which may be a single URL, a comma separated list of URLs or a {@code Collection} of URLs.
+	 *
+	 * @param setting The setting to parse
+	 * @return The base URLs, in order.
+	 * @throws IllegalArgumentException If a URL is not valid or there are no URLs at all
+	 */
+	public static List<HttpUrl> parseURLs(Object setting)
+	{
+		List<String> raw = new ArrayList<>();
+		if (setting instanceof Collection)
+			for (Object o : (Collection<?>) setting)
+				raw.add(o.toString());
+		else
+			raw.addAll(Arrays.asList(setting.toString().split(",")));
+
+		List<HttpUrl> l = new ArrayList<>();
+		for (String s : raw)
+			if (!s.isBlank())
+				l.add(HttpUrl.get(s.trim()));
+
+		if (l.isEmpty())
+			throw new IllegalArgumentException("No server URL was specified");
+
+		return l;
+	}
+
+	/**
+	 * @return The primary server, which drivers address their requests to.
+	 */
+	public HttpUrl primary()
+	{
+		return nodes.get(0).url;
+	}
+
+	/**
+	 * @return The nodes in this pool, the first one is the primary.
+	 */
+	public List<Node> nodes()
+	{
+		return Collections.unmodifiableList(nodes);
+	}
+
+	/**
+	 * Picks the node to send a request to, according to this pool's policy. Ejected nodes are skipped, unless every node is ejected.
+	 *
+	 * @param exclude A node to avoid, e.g. because it just failed. Optional, set {@code null} to consider every node.
+	 * @return The best node to send a request to.
+	 */
+	public Node pick(Node exclude)
+	{
+		long now = System.currentTimeMillis();
+		int start = ThreadLocalRandom.current().nextInt(nodes.size());
+
+		Node best = null;
+		double bestScore = Double.MAX_VALUE;
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			Node n = nodes.get((start + i) % nodes.size());
+			if (n == exclude || n.ejectedUntil > now)
+				continue;
+
+			double score = policy == Policy.EWMA ? (n.ewmaMillis + 1) * (n.outstanding.get() + 1) : n.outstanding.get();
+			if (score < bestScore)
+			{
+				best = n;
+				bestScore = score;
+			}
+		}
+
+		if (best != null)
+			return best;
+
+		return exclude != null && nodes.size() > 1 ? pick(null) : nodes.get(start);
+	}
+
+	/**
+	 * Derives a client which balances its requests across this pool. The derived client shares its connection pool and dispatcher with {@code client}.
+	 *
+	 * @param client The client to derive from
+	 * @param pinAll Set {@code true} to send every request to the primary, e.g. for the interactive test case flow, whose label page is opened on the primary.
+	 * @return A client which routes requests for the primary to the nodes of this pool.
+	 */
+	public OkHttpClient install(OkHttpClient client, boolean pinAll)
+	{
+		return client.newBuilder().addInterceptor(new Router(pinAll ? nodes.get(0) : pick(null), pinAll)).build();
+	}
+
+	/**
+	 * Records the outcome of a request.
+	 *
+	 * @param n The node the request was sent to
+	 * @param millis How long the request took
+	 * @param ok {@code false} if the request failed with a network error or a server error
+	 */
+	private void record(Node n, long millis, boolean ok)
+	{
+		synchronized (n)
+		{
+			if (ok)
+			{
+				n.failures = 0;
+				n.ewmaMillis = n.ewmaMillis == 0 ? millis : EWMA_ALPHA * millis + (1 - EWMA_ALPHA) * n.ewmaMillis;
+			}
+			else if (++n.failures >= MAX_FAILURES)
+			{
+				n.failures = 0;
+				n.ejectedUntil = System.currentTimeMillis() + EJECT_MILLIS;
+				n.ejections.incrementAndGet();
+				log.warn("Ejecting {} for {} ms after {} consecutive failures", n.url, EJECT_MILLIS, MAX_FAILURES);
+			}
+		}
+	}
+
+	/**
+	 * Gets the path of a URL relative to a base URL.
+	 *
+	 * @param url The URL
+	 * @param base The base URL {@code url} is expected to be under
+	 * @return The encoded path segments of {@code url} after those of {@code base}, or {@code null} if {@code url} is not under {@code base}.
+	 */
+	static List<String> relativePath(HttpUrl url, HttpUrl base)
+	{
+		List<String> prefix = segments(base), path = url.encodedPathSegments();
+		if (!url.scheme().equals(base.scheme()) || !url.host().equals(base.host()) || url.port() != base.port() || path.size() < prefix.size()
+				|| !path.subList(0, prefix.size()).equals(prefix))
+			return null;
+
+		return path.subList(prefix.size(), path.size());
+	}
+
+	/**
+	 * Resolves a relative path against a base URL.
+	 *
+	 * @param base The base URL
+	 * @param path The encoded path segments to append to {@code base}
+	 * @param query The encoded query. Optional, set {@code null} for none.
+	 * @return The resolved URL.
+	 */
+	static HttpUrl resolve(HttpUrl base, List<String> path, String query)
+	{
+		HttpUrl.Builder b = base.newBuilder().encodedPath("/");
+		for (String s : segments(base))
+			b.addEncodedPathSegment(s);
+		for (String s : path)
+			b.addEncodedPathSegment(s);
+
+		return b.encodedQuery(query).build();
+	}
+
+	/**
+	 * Gets the path segments of a base URL, without the empty segment left by a trailing slash.
+	 *
+	 * @param url The base URL
+	 * @return The non-empty path segments of {@code url}.
+	 */
+	private static List<String> segments(HttpUrl url)
+	{
+		List<String> l = new ArrayList<>(url.encodedPathSegments());
+		l.removeIf(String::isEmpty);
+		return l;
+	}
+
+	/**
+	 * A server in a {@code ServerPool}, along with the statistics used to pick it.
+	 */
+	public static class Node
+	{
+		/**
+		 * The base URL of the server
+		 */
+		final HttpUrl url;
+
+		/**
+		 * The number of requests currently in flight to this node
+		 */
+		final AtomicInteger outstanding = new AtomicInteger();
+
+		/**
+		 * The number of times this node was ejected
+		 */
+		final AtomicInteger ejections = new AtomicInteger();
+
+		/**
+		 * The moving average of the latency of successful requests, in milliseconds
+		 */
+		volatile double ewmaMillis;
+
+		/**
+		 * The number of consecutive failed requests
+		 */
+		int failures;
+
+		/**
+		 * The time until which this node is ejected, in epoch milliseconds
+		 */
+		volatile long ejectedUntil;
+
+		/**
+		 * Constructor, creates a new Node.
+		 *
+		 * @param url The base URL of the server
+		 */
+		Node(HttpUrl url)
+		{
+			this.url = url;
+		}
+
+		/**
+		 * @return The base URL of the server.
+		 */
+		public HttpUrl url()
+		{
+			return url;
+		}
+
+		/**
+		 * @return The number of requests currently in flight to this node.
+		 */
+		public int outstanding()
+		{
+			return outstanding.get();
+		}
+
+		/**
+		 * @return The moving average of the latency of successful requests, in milliseconds.
+		 */
+		public double ewmaMillis()
+		{
+			return ewmaMillis;
+		}
+
+		/**
+		 * @return The number of times this node was ejected.
+		 */
+		public int ejections()
+		{
+			return ejections.get();
+		}
+
+		/**
+		 * @return {@code true} if this node is currently ejected.
+		 */
+		public boolean isEjected()
+		{
+			return ejectedUntil > System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Routes the requests of one driver to the nodes of the enclosing pool.
+	 */
+	private class Router implements Interceptor
+	{
+		/**
+		 * The node which requests needing affinity are sent to
+		 */
+		private final Node affinity;
+
+		/**
+		 * Whether every request is sent to {@code affinity}
+		 */
+		private final boolean pinAll;
+
+		/**
+		 * Constructor, creates a new Router.
+		 *
+		 * @param affinity The node which requests needing affinity are sent to
+		 * @param pinAll Whether every request is sent to {@code affinity}
+		 */
+		Router(Node affinity, boolean pinAll)
+		{
+			this.affinity = affinity;
+			this.pinAll = pinAll;
+		}
+
+		@Override
+		public Response intercept(Chain chain) throws IOException
+		{
+			Request request = chain.request();
+			List<String> path = relativePath(request.url(), primary());
+			if (path == null)
+				return chain.proceed(request);
+
+			boolean balanced = !pinAll && BALANCED.contains(String.join("/", path));
+			Node n = balanced || (!pinAll && affinity.isEjected()) ? pick(null) : affinity;
+			try
+			{
+				return send(chain, request, path, n);
+			}
+			catch (IOException e)
+			{
+				// a canceled call, e.g. a losing hedge or one past its deadline, says nothing about the node
+				Node other = pick(n);
+				if (!balanced || other == n || chain.call().isCanceled())
+					throw e;
+
+				log.debug("Request to {} failed, retrying on {}", n.url, other.url);
+				return send(chain, request, path, other);
+			}
+		}
+
+		/**
+		 * Sends a request to a node and records the outcome.
+		 *
+		 * @param chain The interceptor chain
+		 * @param request The request, addressed to the primary
+		 * @param path The path of the request, relative to the primary
+		 * @param n The node to send the request to
+		 * @return The response from the node.
+		 * @throws IOException Network error
+		 */
+		private Response send(Chain chain, Request request, List<String> path, Node n) throws IOException
+		{
+			n.outstanding.incrementAndGet();
+			long start = System.nanoTime();
+			try
+			{
+				Response r = chain.proceed(request.newBuilder().url(resolve(n.url, path, request.url().encodedQuery())).build());
+				record(n, (System.nanoTime() - start) / 1000000, r.code() < 500);
+				return r;
+			}
+			catch (IOException e)
+			{
+				if (!chain.call().isCanceled())
+					record(n, 0, false);
+				throw e;
+			}
+			finally
+			{
+				n.outstanding.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * The session a driver opened with the server when checking in. Once the server has handed out a session token, payloads carry the token instead of the API
+ * key and test case name, and stack traces are sent as call-site IDs: the full trace is only sent the first time a call site is seen, along with the ID the
+ * server should remember it by. A call site is only sent as an ID once the server answered a request carrying its full trace, so an ID the server never
+ * learned is never sent. Until then, or if the server does not support sessions, payloads are built as before; and if the server rejects a request made with
+ * the session, the session is dropped and payloads are built as before from then on.
+ */
+public class ServerSession implements Interceptor
+{
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(ServerSession.class);
+
+	/**
+	 * The status codes telling that the server does not know the session or a call-site ID
+	 */
+	private static final Set<Integer> REJECTED = Set.of(400, 401, 403, 410, 422);
+
+	/**
+	 * The maximum number of call sites to intern. Traces of any further call sites are always sent in full.
+	 */
+	private static final int MAX_CALL_SITES = 4096;
+
+	/**
+	 * Whether to use a session if the server offers one
+	 */
+	private final boolean enabled;
+
+	/**
+	 * The session token handed out by the server, or {@code null} if there is none (yet)
+	 */
+	private volatile String token;
+
+	/**
+	 * The IDs of the call sites the server knows, keyed by their stack frames
+	 */
+	private final Map<List<StackTraceElement>, Integer> callSites = new ConcurrentHashMap<>();
+
+	/**
+	 * The IDs of the call sites sent in full which the server did not acknowledge yet, keyed by their stack frames
+	 */
+	private final Map<List<StackTraceElement>, Integer> proposed = new ConcurrentHashMap<>();
+
+	/**
+	 * The stack frames of the call sites in {@code proposed}, keyed by their IDs
+	 */
+	private final Map<Integer, List<StackTraceElement>> proposedFrames = new ConcurrentHashMap<>();
+
+	/**
+	 * The last call-site ID handed out
+	 */
+	private final AtomicInteger lastId = new AtomicInteger();
+
+	/**
+	 * The number of stack traces sent as an ID only
+	 */
+	private final AtomicLong interned = new AtomicLong();
+
+	/**
+	 * Constructor, creates a new ServerSession.
+	 *
+	 * @param enabled Set {@code false} to never use a session, even if the server offers one
+	 */
+	public ServerSession(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Adds the request for a session to a {@code ping} check-in payload.
+	 *
+	 * @param payload The check-in payload
+	 */
+	public void request(JsonObject payload)
+	{
+		if (enabled)
+			payload.addProperty("request_session", true);
+	}
+
+	/**
+	 * Picks up the session token from the server's answer to the {@code ping} check-in, if it handed one out.
+	 *
+	 * @param r The server's answer to the check-in
+	 */
+	public void onCheckIn(JsonObject r)
+	{
+		if (enabled && r != null && r.has("session_token") && !r.get("session_token").isJsonNull())
+		{
+			forgetCallSites();
+			token = r.get("session_token").getAsString();
+		}
+	}
+
+	/**
+	 * Derives a client whose answers tell this session which call sites the server knows. The derived client shares its connection pool and dispatcher with
+	 * {@code client}.
+	 *
+	 * @param client The client to derive from
+	 * @return A client whose calls are watched by this session.
+	 */
+	public OkHttpClient install(OkHttpClient client)
+	{
+		return client.newBuilder().addInterceptor(this).build();
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException
+	{
+		Response r = chain.proceed(chain.request());
+		onAnswer(chain.request().tag(JsonObject.class), r.code());
+		return r;
+	}
+
+	/**
+	 * Learns from the server's answer to a request: a call site sent in full with its ID is known once the server took the request, and a rejected request
+	 * made with the session ends it.
+	 *
+	 * @param payload The payload of the request, or {@code null} if it is unknown
+	 * @param code The status code of the answer
+	 */
+	public void onAnswer(JsonObject payload, int code)
+	{
+		String t = token;
+		if (payload == null || t == null || !payload.has("session") || !t.equals(payload.get("session").getAsString()))
+			return;
+
+		if (code >= 200 && code < 300)
+		{
+			if (payload.has("stack_trace") && payload.has("stack_trace_id"))
+			{
+				Integer id = payload.get("stack_trace_id").getAsInt();
+				List<StackTraceElement> frames = proposedFrames.remove(id);
+				if (frames != null)
+				{
+					callSites.put(frames, id);
+					proposed.remove(frames, id);
+				}
+			}
+		}
+		else if (REJECTED.contains(code))
+		{
+			log.warn("The server rejected a request made with session {} ({}), sending full payloads from now on", t, code);
+			token = null;
+			forgetCallSites();
+		}
+	}
+
+	/**
+	 * Forgets every call-site ID, known or not.
+	 */
+	private void forgetCallSites()
+	{
+		callSites.clear();
+		proposed.clear();
+		proposedFrames.clear();
+	}
+
+	/**
+	 * @return The session token, or {@code null} if there is no session.
+	 */
+	public String token()
+	{
+		return token;
+	}
+
+	/**
+	 * Adds who is calling to a payload: the session token if there is a session, the API key and test case name otherwise.
+	 *
+	 * @param payload The payload
+	 * @param apiKey The user's Smartdriver API key
+	 * @param testCaseName The test case name. Optional, set {@code null} if the endpoint does not take one.
+	 */
+	public void identify(JsonObject payload, String apiKey, String testCaseName)
+	{
+		String t = token;
+		if (t != null)
+		{
+			payload.addProperty("session", t);
+			return;
+		}
+
+		payload.addProperty("api_key", apiKey);
+		if (testCaseName != null)
+			payload.addProperty("test_case_name", testCaseName);
+	}
+
+	/**
+	 * Captures the current thread's call site. The stack trace is only turned into json if it has to be sent in full.
+	 *
+	 * @return The current call site.
+	 */
+	public CallSite callSite()
+	{
+		return new CallSite(Thread.currentThread().getStackTrace());
+	}
+
+	/**
+	 * @return The number of call sites the server knows.
+	 */
+	public int callSites()
+	{
+		return callSites.size();
+	}
+
+	/**
+	 * @return The number of stack traces sent as an ID only.
+	 */
+	public long interned()
+	{
+		return interned.get();
+	}
+
+	/**
+	 * A captured call site.
+	 */
+	public class CallSite
+	{
+		/**
+		 * The stack frames of the call site
+		 */
+		private final StackTraceElement[] frames;
+
+		/**
+		 * Constructor, creates a new CallSite.
+		 *
+		 * @param frames The stack frames of the call site
+		 */
+		CallSite(StackTraceElement[] frames)
+		{
+			this.frames = frames;
+		}
+
+		/**
+		 * Adds this call site to a payload, as an ID if the server learned it earlier in this session, in full otherwise. A full trace carries the ID the server
+		 * should remember it by, which stays the same until the server acknowledged it.
+		 *
+		 * @param payload The payload
+		 */
+		public void addTo(JsonObject payload)
+		{
+			if (token == null)
+			{
+				payload.add("stack_trace", Utils.collectStackTrace(frames));
+				return;
+			}
+
+			List<StackTraceElement> key = Arrays.asList(frames);
+			Integer id = callSites.get(key);
+			if (id != null)
+			{
+				payload.addProperty("stack_trace_id", id);
+				interned.incrementAndGet();
+				return;
+			}
+
+			payload.add("stack_trace", Utils.collectStackTrace(frames));
+			if (callSites.size() + proposed.size() < MAX_CALL_SITES)
+			{
+				id = proposed.computeIfAbsent(key, k -> {
+					Integer mine = lastId.incrementAndGet();
+					proposedFrames.put(mine, k);
+					return mine;
+				});
+				payload.addProperty("stack_trace_id", id);
+			}
+		}
+	}
+}
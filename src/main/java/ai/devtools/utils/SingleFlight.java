@@ -0,0 +1,212 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Coalesces identical concurrent requests: while a request is in flight, callers making the same request wait for its answer instead of sending their own.
+ * Drivers sharing a server and an API key share one {@code SingleFlight}, so parallel sessions looking at the same screen only cost the server one lookup.
+ * <p>
+ * If the request in flight fails, the callers waiting on it send their own, so one caller's deadline or interruption never fails another.
+ */
+public class SingleFlight
+{
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(SingleFlight.class);
+
+	/**
+	 * The instances shared by drivers, keyed by server URL and API key
+	 */
+	private static final Map<String, SingleFlight> shared = new ConcurrentHashMap<>();
+
+	/**
+	 * The requests in flight, keyed by {@link #key(String, String, String, Float, String)}
+	 */
+	private final ConcurrentHashMap<String, CompletableFuture<JsonObject>> inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * The number of requests made through this instance
+	 */
+	private final AtomicLong requests = new AtomicLong();
+
+	/**
+	 * The number of requests which were answered by another caller's request
+	 */
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Constructor, creates a new SingleFlight. Drivers should use {@link #shared(HttpUrl, String)} instead, so they coalesce with each other.
+	 */
+	public SingleFlight()
+	{
+	}
+
+	/**
+	 * Gets the instance shared by every driver using a server with an API key, creating it if necessary.
+	 *
+	 * @param serverURL The base URL of the server
+	 * @param apiKey The user's Smartdriver API key
+	 * @return The instance for {@code serverURL} and {@code apiKey}.
+	 */
+	public static SingleFlight shared(HttpUrl serverURL, String apiKey)
+	{
+		return shared.computeIfAbsent(serverURL + " " + apiKey, k -> new SingleFlight());
+	}
+
+	/**
+	 * Builds the key identifying a request. Requests with equal keys get the same answer from the server.
+	 *
+	 * @param endpoint The endpoint of the request
+	 * @param label The label of the element looked up
+	 * @param screenshotHash The hash of the screenshot sent
+	 * @param threshold The AI threshold sent. Optional, set {@code null} if the server's default is used.
+	 * @param testCaseName The test case name sent. Optional, set {@code null} if none is sent.
+	 * @return The key of the request.
+	 */
+	public static String key(String endpoint, String label, String screenshotHash, Float threshold, String testCaseName)
+	{
+		return String.join("\u0000", endpoint, label, screenshotHash, String.valueOf(threshold), String.valueOf(testCaseName));
+	}
+
+	/**
+	 * Makes a request, unless an identical request is already in flight, in which case its answer is used.
+	 *
+	 * @param key The key of the request, see {@link #key(String, String, String, Float, String)}
+	 * @param task Makes the request
+	 * @return The answer to the request. Callers which did not make the request get their own copy.
+	 * @throws IOException Network error, or if the caller's {@link Deadline} passed or it was interrupted while waiting
+	 */
+	public JsonObject execute(String key, Task task) throws IOException
+	{
+		requests.incrementAndGet();
+		while (true)
+		{
+			CompletableFuture<JsonObject> mine = new CompletableFuture<>();
+			CompletableFuture<JsonObject> theirs = inFlight.putIfAbsent(key, mine);
+			if (theirs == null)
+				return lead(key, mine, task);
+
+			try
+			{
+				JsonObject r = await(theirs);
+				coalesced.incrementAndGet();
+				log.debug("Coalesced a request to {}", key.substring(0, key.indexOf('\u0000')));
+				return r != null ? r.deepCopy() : null;
+			}
+			catch (ExecutionException e)
+			{
+				// the request in flight failed, make our own
+			}
+		}
+	}
+
+	/**
+	 * @return The number of requests made through this instance.
+	 */
+	public long requests()
+	{
+		return requests.get();
+	}
+
+	/**
+	 * @return The number of requests which were answered by another caller's request.
+	 */
+	public long coalesced()
+	{
+		return coalesced.get();
+	}
+
+	/**
+	 * Makes a request and hands its answer to the callers waiting on it.
+	 *
+	 * @param key The key of the request
+	 * @param mine The future the other callers wait on
+	 * @param task Makes the request
+	 * @return The answer to the request.
+	 * @throws IOException Network error
+	 */
+	private JsonObject lead(String key, CompletableFuture<JsonObject> mine, Task task) throws IOException
+	{
+		JsonObject r = null;
+		Throwable failure = null;
+		try
+		{
+			r = task.execute();
+			return r;
+		}
+		catch (Throwable e)
+		{
+			failure = e;
+			throw e;
+		}
+		finally
+		{
+			// errors too, or the callers waiting on this request would never be released
+			inFlight.remove(key, mine);
+			if (failure != null)
+				mine.completeExceptionally(failure);
+			else
+				mine.complete(r);
+		}
+	}
+
+	/**
+	 * Waits for another caller's request to be answered, for as long as the {@link Deadline} active on the current thread allows.
+	 *
+	 * @param theirs The future of the other caller's request
+	 * @return The answer to the request.
+	 * @throws ExecutionException If the request failed
+	 * @throws IOException If the deadline passed or the current thread was interrupted
+	 */
+	private static JsonObject await(CompletableFuture<JsonObject> theirs) throws ExecutionException, IOException
+	{
+		Deadline d = Deadline.current();
+		try
+		{
+			if (d == null || d.remainingMillis() == Long.MAX_VALUE)
+				return theirs.get();
+
+			return theirs.get(d.remainingMillis(), TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			throw new Deadline.ExceededException("a coalesced request");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a coalesced request");
+		}
+	}
+
+	/**
+	 * Makes a request.
+	 */
+	@FunctionalInterface
+	public interface Task
+	{
+		/**
+		 * Makes the request.
+		 *
+		 * @return The answer to the request.
+		 * @throws IOException Network error
+		 */
+		JsonObject execute() throws IOException;
+	}
+}
@@ -0,0 +1,277 @@
+package ai.devtools.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A timed operation in a trace, identified the W3C trace-context way: a 16 byte trace ID shared by every span of the trace, and an 8 byte span ID of its own.
+ * Spans started with {@link Tracer#span(String)} become the current span of their thread until they are closed, and spans started while one is current
+ * become its children, so a test step, the lookups it makes and the calls they send to the server all end up in one trace.
+ */
+public class Span implements AutoCloseable
+{
+	/**
+	 * The format of a {@code traceparent} header
+	 */
+	private static final Pattern TRACEPARENT = Pattern.compile("00-([0-9a-f]{32})-([0-9a-f]{16})-[0-9a-f]{2}");
+
+	/**
+	 * The current span of each thread
+	 */
+	private static final ThreadLocal<Span> current = new ThreadLocal<>();
+
+	/**
+	 * The ID of the trace this span belongs to, as 32 lowercase hex digits
+	 */
+	private final String traceId;
+
+	/**
+	 * The ID of this span, as 16 lowercase hex digits
+	 */
+	private final String spanId;
+
+	/**
+	 * The ID of the parent span, or {@code null} if this is a root span
+	 */
+	private final String parentId;
+
+	/**
+	 * The name of the operation
+	 */
+	private final String name;
+
+	/**
+	 * When the operation started, in microseconds since the epoch
+	 */
+	private final long startMicros;
+
+	/**
+	 * When the operation started, in {@link System#nanoTime()} units
+	 */
+	private final long startNanos;
+
+	/**
+	 * Receives this span once it ended, or {@code null} if it is not to be exported
+	 */
+	private final SpanExporter exporter;
+
+	/**
+	 * The attributes of the operation, e.g. the status code of a call
+	 */
+	private final Map<String, String> attributes = new LinkedHashMap<>();
+
+	/**
+	 * How long the operation took in nanoseconds, or {@code -1} if it did not end yet
+	 */
+	private long durationNanos = -1;
+
+	/**
+	 * The span which was current on the thread before this one, if this span was made current
+	 */
+	private Span previous;
+
+	/**
+	 * Whether this span was made the current span of its thread
+	 */
+	private boolean scoped;
+
+	/**
+	 * Constructor, creates a new Span.
+	 *
+	 * @param traceId The ID of the trace
+	 * @param spanId The ID of the span
+	 * @param parentId The ID of the parent span, or {@code null} if this is a root span
+	 * @param name The name of the operation
+	 * @param exporter Receives the span once it ended. Optional, set {@code null} if the span is not to be exported.
+	 */
+	private Span(String traceId, String spanId, String parentId, String name, SpanExporter exporter)
+	{
+		this.traceId = traceId;
+		this.spanId = spanId;
+		this.parentId = parentId;
+		this.name = name;
+		this.exporter = exporter;
+		this.startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Starts a span.
+	 *
+	 * @param parent The parent span. Optional, set {@code null} to start a new trace.
+	 * @param name The name of the operation
+	 * @param exporter Receives the span once it ended. Optional, set {@code null} if the span is not to be exported.
+	 * @return The new span.
+	 */
+	static Span start(Span parent, String name, SpanExporter exporter)
+	{
+		return new Span(parent != null ? parent.traceId : randomHex(16), randomHex(8), parent != null ? parent.spanId : null, name, exporter);
+	}
+
+	/**
+	 * Makes a stand-in for a span of another process, from its {@code traceparent} header, so that spans can be started as its children. The stand-in itself is
+	 * never exported.
+	 *
+	 * @param traceparent The {@code traceparent} header, e.g. from the {@code TRACEPARENT} environment variable set by a CI system
+	 * @return The stand-in, or {@code null} if {@code traceparent} is missing or malformed.
+	 */
+	public static Span remote(String traceparent)
+	{
+		if (traceparent == null)
+			return null;
+
+		Matcher m = TRACEPARENT.matcher(traceparent.trim());
+		return m.matches() ? new Span(m.group(1), m.group(2), null, "remote", null) : null;
+	}
+
+	/**
+	 * @return The current span of this thread, or {@code null} if there is none.
+	 */
+	public static Span current()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Makes this span the current span of its thread until it is closed.
+	 *
+	 * @return This span.
+	 */
+	Span makeCurrent()
+	{
+		previous = current.get();
+		scoped = true;
+		current.set(this);
+		return this;
+	}
+
+	/**
+	 * @return The ID of the trace this span belongs to.
+	 */
+	public String traceId()
+	{
+		return traceId;
+	}
+
+	/**
+	 * @return The ID of this span.
+	 */
+	public String spanId()
+	{
+		return spanId;
+	}
+
+	/**
+	 * @return The ID of the parent span, or {@code null} if this is a root span.
+	 */
+	public String parentId()
+	{
+		return parentId;
+	}
+
+	/**
+	 * @return The name of the operation.
+	 */
+	public String name()
+	{
+		return name;
+	}
+
+	/**
+	 * @return When the operation started, in microseconds since the epoch.
+	 */
+	public long startMicros()
+	{
+		return startMicros;
+	}
+
+	/**
+	 * @return How long the operation took in nanoseconds, or {@code -1} if it did not end yet.
+	 */
+	public synchronized long durationNanos()
+	{
+		return durationNanos;
+	}
+
+	/**
+	 * @return A copy of the attributes of the operation.
+	 */
+	public synchronized Map<String, String> attributes()
+	{
+		return new LinkedHashMap<>(attributes);
+	}
+
+	/**
+	 * Sets an attribute of the operation.
+	 *
+	 * @param key The name of the attribute
+	 * @param value The value of the attribute
+	 * @return This span.
+	 */
+	public synchronized Span set(String key, Object value)
+	{
+		attributes.put(key, String.valueOf(value));
+		return this;
+	}
+
+	/**
+	 * @return The {@code traceparent} header which makes the receiver's spans children of this one.
+	 */
+	public String traceparent()
+	{
+		return "00-" + traceId + "-" + spanId + "-01";
+	}
+
+	/**
+	 * Ends the operation and exports the span. Ending a span more than once has no effect.
+	 */
+	public void end()
+	{
+		synchronized (this)
+		{
+			if (durationNanos >= 0)
+				return;
+
+			durationNanos = System.nanoTime() - startNanos;
+		}
+
+		if (exporter != null)
+			exporter.export(this);
+	}
+
+	/**
+	 * Ends the operation, and gives the thread back its previous current span if this span was made current.
+	 */
+	@Override
+	public void close()
+	{
+		if (scoped && current.get() == this)
+		{
+			if (previous != null)
+				current.set(previous);
+			else
+				current.remove();
+		}
+		end();
+	}
+
+	/**
+	 * Generates a random ID.
+	 *
+	 * @param bytes The length of the ID in bytes
+	 * @return The ID, as lowercase hex digits. Never all zeros, which W3C trace-context reserves as invalid.
+	 */
+	private static String randomHex(int bytes)
+	{
+		StringBuilder b = new StringBuilder(bytes * 2);
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		for (int i = 0; i < bytes; i++)
+			b.append(String.format("%02x", i == 0 ? 1 + r.nextInt(255) : r.nextInt(256)));
+
+		return b.toString();
+	}
+}
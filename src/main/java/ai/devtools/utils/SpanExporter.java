@@ -0,0 +1,15 @@
+package ai.devtools.utils;
+
+/**
+ * Receives the spans of a {@link Tracer} as they end, e.g. to write them to a file or hand them to a tracing system.
+ */
+@FunctionalInterface
+public interface SpanExporter
+{
+	/**
+	 * Exports an ended span. Called on the thread which ended the span, so implementations should be quick and must not throw.
+	 *
+	 * @param span The span
+	 */
+	void export(Span span);
+}
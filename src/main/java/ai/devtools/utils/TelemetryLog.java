@@ -0,0 +1,712 @@
+package ai.devtools.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * A write-ahead log on local disk for training telemetry which could not be sent, so that it is not lost while the server is unreachable. Records are
+ * appended to memory-mapped segment files and carry a CRC32 of their contents, so a record torn by a crash is detected and skipped when the log is reopened.
+ * A {@link TelemetryReplayer} sends the records once the server is back, and marks each one done in place; a segment is deleted once all of its records are
+ * done.
+ * <p>
+ * The log is bounded: when it would grow past {@code maxBytes}, its oldest segments are deleted, records and all. The number of records dropped is kept in the
+ * directory's {@code evicted} file until {@link #clearEvicted()} is called, so the loss is known to whoever syncs the log later.
+ * <p>
+ * A directory is used by one process at a time, which holds a lock on its {@code .lock} file until the log is closed. A driver whose directory is in use, e.g.
+ * by a test running in parallel, spills to a subdirectory of its own, {@code pid-<process id>}, which {@code ai.devtools.BulkSync} syncs along with its
+ * parent.
+ * <p>
+ * Each record is laid out as its length (4 bytes), the CRC32 of its body (4 bytes), its state (1 byte, pending or done), and its body: the length of its json
+ * part (4 bytes), the json part holding the endpoint, API key, test case name and payload, and the PNG screenshot sent along, if any. A zero length marks the
+ * end of a segment.
+ */
+public class TelemetryLog implements Closeable
+{
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(TelemetryLog.class);
+
+	/**
+	 * The size of a record header: the length, the CRC32 and the state
+	 */
+	private static final int HEADER_BYTES = 9;
+
+	/**
+	 * The state of a record not sent yet
+	 */
+	private static final byte PENDING = 0;
+
+	/**
+	 * The state of a record sent to the server
+	 */
+	private static final byte DONE = 1;
+
+	/**
+	 * The suffix of segment files
+	 */
+	private static final String SUFFIX = ".seg";
+
+	/**
+	 * The name of the file locked by the process using a directory
+	 */
+	private static final String LOCK_FILE = ".lock";
+
+	/**
+	 * The name of the file holding the number of records dropped because the log was full
+	 */
+	private static final String EVICTED_FILE = "evicted";
+
+	/**
+	 * The prefix of the subdirectories spilled to by processes which found their directory in use
+	 */
+	public static final String PROCESS_DIR_PREFIX = "pid-";
+
+	/**
+	 * The logs opened so far, keyed by directory, so that drivers spilling to the same directory share it
+	 */
+	private static final Map<Path, TelemetryLog> logs = new ConcurrentHashMap<>();
+
+	/**
+	 * The directory holding the segment files
+	 */
+	private final Path dir;
+
+	/**
+	 * The size of a new segment file
+	 */
+	private final int segmentBytes;
+
+	/**
+	 * The most disk space the segment files may take
+	 */
+	private final long maxBytes;
+
+	/**
+	 * The lock file of the directory, open until the log is closed
+	 */
+	private final FileChannel lockFile;
+
+	/**
+	 * The lock held on {@code lockFile}, so no other process uses the directory
+	 */
+	private final FileLock lock;
+
+	/**
+	 * The segments, keyed by sequence number, oldest first
+	 */
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+	/**
+	 * The records not sent yet and not being sent, oldest first
+	 */
+	private final Deque<Record> pending = new ArrayDeque<>();
+
+	/**
+	 * The segment records are appended to, or {@code null} if a new one must be started
+	 */
+	private Segment active;
+
+	/**
+	 * The number of records dropped because the log was full, since {@link #clearEvicted()} was last called
+	 */
+	private long evicted;
+
+	/**
+	 * Constructor, creates a new TelemetryLog, picking up the records left pending in {@code dir} by earlier runs.
+	 *
+	 * @param dir The directory holding the segment files. Created if it does not exist.
+	 * @param segmentBytes The size of a new segment file
+	 * @param maxBytes The most disk space the segment files may take
+	 * @throws LockedException If the directory is in use by another log, in this process or another one
+	 * @throws IOException If the directory or its segment files could not be read
+	 */
+	public TelemetryLog(Path dir, int segmentBytes, long maxBytes) throws IOException
+	{
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.maxBytes = Math.max(maxBytes, segmentBytes);
+
+		Files.createDirectories(dir);
+		lockFile = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock l;
+		try
+		{
+			l = lockFile.tryLock();
+		}
+		catch (OverlappingFileLockException | IOException e)
+		{
+			l = null;
+		}
+		lock = l;
+		if (lock == null)
+		{
+			lockFile.close();
+			throw new LockedException(dir);
+		}
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX))
+		{
+			for (Path file : files)
+			{
+				String name = file.getFileName().toString();
+				try
+				{
+					segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), null);
+				}
+				catch (NumberFormatException e)
+				{
+					// not one of ours
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			close();
+			throw e;
+		}
+		for (Long seq : new ArrayList<>(segments.keySet()))
+			recover(seq);
+
+		Path evictedFile = dir.resolve(EVICTED_FILE);
+		if (Files.exists(evictedFile))
+		{
+			try
+			{
+				evicted = Long.parseLong(Files.readString(evictedFile).trim());
+			}
+			catch (NumberFormatException e)
+			{
+				log.warn("Ignoring the unreadable eviction count in {}", evictedFile);
+			}
+		}
+
+		if (!pending.isEmpty())
+			log.info("Found {} pending telemetry records in {}", pending.size(), dir);
+	}
+
+	/**
+	 * Gets the log for a directory, opening it if necessary. If another process uses the directory, the log of a subdirectory of this process is opened
+	 * instead.
+	 *
+	 * @param dir The directory holding the segment files
+	 * @param segmentBytes The size of a new segment file, only used if the log is opened.
+	 * @param maxBytes The most disk space the segment files may take, only used if the log is opened.
+	 * @return The log for {@code dir}.
+	 * @throws IOException If the directory or its segment files could not be read
+	 */
+	public static TelemetryLog of(Path dir, int segmentBytes, long maxBytes) throws IOException
+	{
+		Path key = dir.toAbsolutePath().normalize();
+		TelemetryLog l = logs.get(key);
+		if (l != null)
+			return l;
+
+		try
+		{
+			l = new TelemetryLog(key, segmentBytes, maxBytes);
+		}
+		catch (LockedException e)
+		{
+			Path own = key.resolve(PROCESS_DIR_PREFIX + ProcessHandle.current().pid());
+			log.info("{} is in use by another process, spilling to {}", key, own);
+			l = new TelemetryLog(own, segmentBytes, maxBytes);
+		}
+		TelemetryLog previous = logs.putIfAbsent(key, l);
+		return previous != null ? previous : l;
+	}
+
+	/**
+	 * Appends a record. It is on disk once this returns.
+	 *
+	 * @param endpoint The endpoint the record is for, e.g. {@code add_action_info}
+	 * @param apiKey The user's Smartdriver API key
+	 * @param testCaseName The test case name. Optional, set {@code null} if the endpoint does not take one.
+	 * @param payload The payload, without the API key and test case name
+	 * @param screenshot The PNG screenshot to send along. Optional, set {@code null} for none.
+	 * @return {@code true} if the record was appended.
+	 */
+	public synchronized boolean append(String endpoint, String apiKey, String testCaseName, JsonObject payload, byte[] screenshot)
+	{
+		JsonObject jo = CollectionUtils.keyValuesToJO("endpoint", endpoint, "api_key", apiKey, "payload", payload);
+		if (testCaseName != null)
+			jo.addProperty("test_case_name", testCaseName);
+
+		byte[] json = jo.toString().getBytes(StandardCharsets.UTF_8);
+		int length = 4 + json.length + (screenshot != null ? screenshot.length : 0);
+		try
+		{
+			if (active == null || active.buffer.remaining() < HEADER_BYTES + length + 4)
+			{
+				Segment full = active;
+				active = newSegment(HEADER_BYTES + length + 4);
+				if (full != null && full.pending == 0)
+					delete(full);
+			}
+
+			MappedByteBuffer b = active.buffer;
+			int offset = b.position();
+			CRC32 crc = new CRC32();
+			b.position(offset + HEADER_BYTES);
+			b.putInt(json.length).put(json);
+			if (screenshot != null)
+				b.put(screenshot);
+
+			crc.update(b.duplicate().position(offset + HEADER_BYTES).limit(offset + HEADER_BYTES + length));
+			b.putInt(offset + 4, (int) crc.getValue()).put(offset + 8, PENDING);
+			// the length goes last, so a torn record reads as the end of the segment
+			b.putInt(offset, length);
+			b.force();
+
+			Record r = new Record(active, offset, length);
+			active.pending++;
+			pending.addLast(r);
+			return true;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			log.warn("Could not spill telemetry to {}: {}", dir, e.getMessage());
+			active = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Takes the oldest pending records to send them. They stay on disk until {@link #complete(Record)} is called, and are handed out again after
+	 * {@link #release(Record)}.
+	 *
+	 * @param max The maximum number of records to take
+	 * @return The records, oldest first.
+	 */
+	public synchronized List<Record> claim(int max)
+	{
+		List<Record> claimed = new ArrayList<>();
+		while (claimed.size() < max && !pending.isEmpty())
+		{
+			Record r = pending.pollFirst();
+			r.segment.claimed++;
+			claimed.add(r);
+		}
+		return claimed;
+	}
+
+	/**
+	 * Marks a record as sent, deleting its segment if it has no other record left to send.
+	 *
+	 * @param r The record, as returned by {@link #claim(int)}
+	 */
+	public synchronized void complete(Record r)
+	{
+		Segment s = r.segment;
+		s.claimed--;
+		if (s.deleted)
+			return;
+
+		s.buffer.put(r.offset + 8, DONE);
+		if (--s.pending == 0 && s != active)
+			delete(s);
+	}
+
+	/**
+	 * Gives back a record which could not be sent, so that it is handed out again before newer records.
+	 *
+	 * @param r The record, as returned by {@link #claim(int)}
+	 */
+	public synchronized void release(Record r)
+	{
+		r.segment.claimed--;
+		if (!r.segment.deleted)
+			pending.addFirst(r);
+	}
+
+	/**
+	 * @return The number of records not sent yet.
+	 */
+	public synchronized int size()
+	{
+		int n = 0;
+		for (Segment s : segments.values())
+			n += s.pending;
+
+		return n;
+	}
+
+	/**
+	 * @return The disk space taken by the segment files, in bytes.
+	 */
+	public synchronized long bytes()
+	{
+		long n = 0;
+		for (Segment s : segments.values())
+			n += s.buffer.capacity();
+
+		return n;
+	}
+
+	/**
+	 * @return The number of records dropped because the log was full, by this run or earlier ones, since {@link #clearEvicted()} was last called.
+	 */
+	public synchronized long evicted()
+	{
+		return evicted;
+	}
+
+	/**
+	 * Forgets the records dropped because the log was full, once the loss was reported.
+	 */
+	public synchronized void clearEvicted()
+	{
+		evicted = 0;
+		try
+		{
+			Files.deleteIfExists(dir.resolve(EVICTED_FILE));
+		}
+		catch (IOException e)
+		{
+			log.debug("Could not clear the eviction count of {}: {}", dir, e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes every change to disk and lets other processes use the directory. The segment files stay mapped until they are garbage collected.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		for (Segment s : segments.values())
+			s.buffer.force();
+
+		try
+		{
+			lock.release();
+			lockFile.close();
+		}
+		catch (IOException e)
+		{
+			log.debug("Could not unlock {}: {}", dir, e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts a new segment, deleting the oldest ones if the log would grow too large.
+	 *
+	 * @param minBytes The minimum size of the segment, to fit a record larger than usual
+	 * @return The new segment.
+	 * @throws IOException If the segment file could not be created
+	 */
+	private Segment newSegment(int minBytes) throws IOException
+	{
+		int size = Math.max(segmentBytes, minBytes);
+		Iterator<Segment> oldest = new ArrayList<>(segments.values()).iterator();
+		while (bytes() + size > maxBytes && oldest.hasNext())
+		{
+			Segment s = oldest.next();
+			if (s.claimed > 0)
+				continue;
+
+			evicted += s.pending;
+			log.warn("Telemetry log {} is full, dropping {} records", dir, s.pending);
+			delete(s);
+			try
+			{
+				Files.writeString(dir.resolve(EVICTED_FILE), Long.toString(evicted));
+			}
+			catch (IOException e)
+			{
+				log.warn("Could not record the eviction count of {}: {}", dir, e.getMessage());
+			}
+		}
+
+		long seq = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		Segment s = new Segment(seq, map(file(seq), size));
+		segments.put(seq, s);
+		return s;
+	}
+
+	/**
+	 * Reopens a segment left by an earlier run, picking up its pending records. Reading stops at the first record which is torn or fails its CRC check.
+	 *
+	 * @param seq The sequence number of the segment
+	 */
+	private void recover(long seq)
+	{
+		Path file = file(seq);
+		try
+		{
+			Segment s = new Segment(seq, map(file, (int) Files.size(file)));
+			MappedByteBuffer b = s.buffer;
+			int offset = 0;
+			while (offset + HEADER_BYTES + 4 <= b.capacity())
+			{
+				int length = b.getInt(offset);
+				if (length <= 0 || offset + HEADER_BYTES + length > b.capacity())
+					break;
+
+				CRC32 crc = new CRC32();
+				crc.update(b.duplicate().position(offset + HEADER_BYTES).limit(offset + HEADER_BYTES + length));
+				if ((int) crc.getValue() != b.getInt(offset + 4))
+				{
+					log.warn("Skipping the rest of {}, a record failed its CRC check", file);
+					break;
+				}
+
+				if (b.get(offset + 8) == PENDING)
+				{
+					s.pending++;
+					pending.addLast(new Record(s, offset, length));
+				}
+				offset += HEADER_BYTES + length;
+			}
+
+			segments.put(seq, s);
+			if (s.pending == 0)
+				delete(s);
+			else
+			{
+				// keep appending to the newest segment
+				b.position(offset);
+				active = s;
+			}
+		}
+		catch (IOException e)
+		{
+			log.warn("Could not read telemetry segment {}: {}", file, e.getMessage());
+			segments.remove(seq);
+		}
+	}
+
+	/**
+	 * Deletes a segment and forgets its pending records.
+	 *
+	 * @param s The segment
+	 */
+	private void delete(Segment s)
+	{
+		s.deleted = true;
+		segments.remove(s.seq);
+		pending.removeIf(r -> r.segment == s);
+		if (active == s)
+			active = null;
+
+		try
+		{
+			Files.deleteIfExists(file(s.seq));
+		}
+		catch (IOException e)
+		{
+			log.debug("Could not delete telemetry segment {}: {}", file(s.seq), e.getMessage());
+		}
+	}
+
+	/**
+	 * @param seq The sequence number of a segment
+	 * @return The file of the segment.
+	 */
+	private Path file(long seq)
+	{
+		return dir.resolve(String.format("%020d%s", seq, SUFFIX));
+	}
+
+	/**
+	 * Maps a segment file into memory, creating it if necessary.
+	 *
+	 * @param file The segment file
+	 * @param size The size of the segment
+	 * @return The mapped segment file.
+	 * @throws IOException If the file could not be mapped
+	 */
+	private static MappedByteBuffer map(Path file, int size) throws IOException
+	{
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			return ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	/**
+	 * Thrown when opening a directory which is in use by another log.
+	 */
+	public static class LockedException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructor, creates a new LockedException.
+		 *
+		 * @param dir The directory
+		 */
+		public LockedException(Path dir)
+		{
+			super("Telemetry log " + dir + " is in use by another process");
+		}
+	}
+
+	/**
+	 * A segment file.
+	 */
+	private static class Segment
+	{
+		/**
+		 * The sequence number of the segment
+		 */
+		final long seq;
+
+		/**
+		 * The mapped segment file, positioned where the next record goes
+		 */
+		final MappedByteBuffer buffer;
+
+		/**
+		 * The number of records not sent yet
+		 */
+		int pending;
+
+		/**
+		 * The number of records being sent
+		 */
+		int claimed;
+
+		/**
+		 * Whether the segment file was deleted
+		 */
+		boolean deleted;
+
+		/**
+		 * Constructor, creates a new Segment.
+		 *
+		 * @param seq The sequence number of the segment
+		 * @param buffer The mapped segment file
+		 */
+		Segment(long seq, MappedByteBuffer buffer)
+		{
+			this.seq = seq;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * A record of the log.
+	 */
+	public static class Record
+	{
+		/**
+		 * The segment holding the record
+		 */
+		private final Segment segment;
+
+		/**
+		 * The offset of the record in its segment
+		 */
+		private final int offset;
+
+		/**
+		 * The length of the body of the record
+		 */
+		private final int length;
+
+		/**
+		 * The json part of the record, read lazily
+		 */
+		private JsonObject json;
+
+		/**
+		 * Constructor, creates a new Record.
+		 *
+		 * @param segment The segment holding the record
+		 * @param offset The offset of the record in its segment
+		 * @param length The length of the body of the record
+		 */
+		Record(Segment segment, int offset, int length)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return The json part of the record.
+		 */
+		private synchronized JsonObject json()
+		{
+			if (json == null)
+			{
+				int jsonLength = segment.buffer.getInt(offset + HEADER_BYTES);
+				byte[] bytes = new byte[jsonLength];
+				segment.buffer.duplicate().position(offset + HEADER_BYTES + 4).get(bytes);
+				json = JsonParser.parseString(new String(bytes, StandardCharsets.UTF_8)).getAsJsonObject();
+			}
+			return json;
+		}
+
+		/**
+		 * @return The endpoint the record is for.
+		 */
+		public String endpoint()
+		{
+			return json().get("endpoint").getAsString();
+		}
+
+		/**
+		 * Builds the payload to send, with the API key and test case name the record was made with.
+		 *
+		 * @return A new copy of the payload.
+		 */
+		public JsonObject payload()
+		{
+			JsonObject payload = json().getAsJsonObject("payload").deepCopy();
+			payload.addProperty("api_key", json().get("api_key").getAsString());
+			if (json().has("test_case_name"))
+				payload.addProperty("test_case_name", json().get("test_case_name").getAsString());
+
+			return payload;
+		}
+
+		/**
+		 * @return {@code true} if a screenshot is sent along with the record.
+		 */
+		public boolean hasScreenshot()
+		{
+			return 4 + segment.buffer.getInt(offset + HEADER_BYTES) < length;
+		}
+
+		/**
+		 * @return The PNG screenshot sent along, or {@code null} if there is none.
+		 */
+		public byte[] screenshot()
+		{
+			if (!hasScreenshot())
+				return null;
+
+			int start = offset + HEADER_BYTES + 4 + segment.buffer.getInt(offset + HEADER_BYTES);
+			int end = offset + HEADER_BYTES + length;
+
+			byte[] png = new byte[end - start];
+			segment.buffer.duplicate().position(start).get(png);
+			return png;
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * Drains a {@link TelemetryLog} in the background once the server is healthy again, sending at most {@code concurrency} records at a time. Screenshots are
+ * sent before the action info of each round, since the action info refers to them. A round stops at the first record the server could not take, and the
+ * replayer waits for the next round to try again. Only records the server found malformed ({@code 400} or {@code 422}) are dropped, so they cannot block the
+ * log; an answer which may change later, e.g. an expired API key, a missing endpoint or a server error, leaves the record in the log. A screenshot which this
+ * replayer already uploaded with the same payload, e.g. for the same label, is not uploaded again.
+ */
+public class TelemetryReplayer implements AutoCloseable
+{
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger log = LoggerFactory.getLogger(TelemetryReplayer.class);
+
+	/**
+	 * Counter used to give each replayer thread a unique name
+	 */
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	/**
+	 * The replayers started so far, one per log
+	 */
+	private static final Map<TelemetryLog, TelemetryReplayer> replayers = new ConcurrentHashMap<>();
+
+	/**
+	 * The log to drain
+	 */
+	private final TelemetryLog telemetryLog;
+
+	/**
+	 * The client to send the records with
+	 */
+	private final OkHttpClient client;
+
+	/**
+	 * The base URL of the server
+	 */
+	private final HttpUrl serverURL;
+
+	/**
+	 * Tells if the server is healthy enough to send records to
+	 */
+	private final BooleanSupplier healthy;
+
+	/**
+	 * The maximum number of records sent at a time
+	 */
+	private final int concurrency;
+
+	/**
+	 * Runs the rounds
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Sends the records of a round
+	 */
+	private final ExecutorService senders;
+
+	/**
+	 * The number of records sent
+	 */
+	private final AtomicLong replayed = new AtomicLong();
+
+	/**
+	 * The number of records the server refused, which were dropped
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * The number of screenshots which were not sent because they were uploaded already with the same payload
+	 */
+	private final AtomicLong deduplicated = new AtomicLong();
+
+	/**
+	 * The status codes telling that the server will never take a record
+	 */
+	private static final Set<Integer> MALFORMED = Set.of(400, 422);
+
+	/**
+	 * The screenshots uploaded so far, or being uploaded, keyed by their hash and payload
+	 */
+	private final Set<String> uploaded = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Constructor, creates a new TelemetryReplayer and starts draining the log.
+	 *
+	 * @param telemetryLog The log to drain
+	 * @param client The client to send the records with
+	 * @param serverURL The base URL of the server
+	 * @param healthy Tells if the server is healthy enough to send records to, e.g. whether the telemetry circuit breakers are closed
+	 * @param concurrency The maximum number of records sent at a time
+	 * @param intervalMillis How long to wait between rounds, in milliseconds. Set 0 to only send records when {@link #drain()} is called.
+	 */
+	public TelemetryReplayer(TelemetryLog telemetryLog, OkHttpClient client, HttpUrl serverURL, BooleanSupplier healthy, int concurrency, long intervalMillis)
+	{
+		this.telemetryLog = telemetryLog;
+		this.client = client;
+		this.serverURL = serverURL;
+		this.healthy = healthy;
+		this.concurrency = Math.max(1, concurrency);
+
+		int id = threadCount.incrementAndGet();
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "devtools-ai-replay-" + id));
+		senders = Executors.newFixedThreadPool(this.concurrency, r -> daemon(r, "devtools-ai-replay-" + id + "-sender"));
+		if (intervalMillis > 0)
+			scheduler.scheduleWithFixedDelay(this::drain, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the replayer of a log, starting it if necessary. Replayers started this way run for as long as the process, since the log may be shared by several
+	 * drivers.
+	 *
+	 * @param telemetryLog The log to drain
+	 * @param client The client to send the records with, only used if the replayer is started.
+	 * @param serverURL The base URL of the server, only used if the replayer is started.
+	 * @param healthy Tells if the server is healthy enough to send records to, only used if the replayer is started.
+	 * @param concurrency The maximum number of records sent at a time, only used if the replayer is started.
+	 * @param intervalMillis How long to wait between rounds, in milliseconds, only used if the replayer is started.
+	 * @return The replayer of {@code telemetryLog}.
+	 */
+	public static TelemetryReplayer of(TelemetryLog telemetryLog, OkHttpClient client, HttpUrl serverURL, BooleanSupplier healthy, int concurrency,
+			long intervalMillis)
+	{
+		return replayers.computeIfAbsent(telemetryLog, l -> new TelemetryReplayer(l, client, serverURL, healthy, concurrency, intervalMillis));
+	}
+
+	/**
+	 * @return The number of records sent.
+	 */
+	public long replayed()
+	{
+		return replayed.get();
+	}
+
+	/**
+	 * @return The number of records the server refused, which were dropped.
+	 */
+	public long dropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * @return The number of screenshots which were not sent because they were uploaded already with the same payload.
+	 */
+	public long deduplicated()
+	{
+		return deduplicated.get();
+	}
+
+	/**
+	 * Sends pending records until the log is empty or the server fails to take one.
+	 */
+	public void drain()
+	{
+		try
+		{
+			while (healthy.getAsBoolean())
+			{
+				List<TelemetryLog.Record> round = telemetryLog.claim(concurrency * 4);
+				if (round.isEmpty() || !send(round))
+					return;
+			}
+		}
+		catch (Throwable e)
+		{
+			log.debug("Error replaying telemetry: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops draining the log. Records not sent yet stay on disk for the next run.
+	 */
+	@Override
+	public void close()
+	{
+		scheduler.shutdownNow();
+		senders.shutdownNow();
+		replayers.remove(telemetryLog, this);
+	}
+
+	/**
+	 * Sends a round of records, screenshots first.
+	 *
+	 * @param round The records, oldest first
+	 * @return {@code true} if every record was sent.
+	 */
+	private boolean send(List<TelemetryLog.Record> round)
+	{
+		List<TelemetryLog.Record> screenshots = new ArrayList<>();
+		List<TelemetryLog.Record> rest = new ArrayList<>();
+		for (TelemetryLog.Record r : round)
+			(r.hasScreenshot() ? screenshots : rest).add(r);
+
+		Set<TelemetryLog.Record> failed = sendAll(screenshots);
+		if (failed.isEmpty())
+			failed = sendAll(rest);
+		else
+			failed.addAll(rest);
+
+		// give them back newest first, so they keep their order
+		for (int i = round.size() - 1; i >= 0; i--)
+			if (failed.contains(round.get(i)))
+				telemetryLog.release(round.get(i));
+
+		return failed.isEmpty();
+	}
+
+	/**
+	 * Sends records concurrently.
+	 *
+	 * @param records The records
+	 * @return The records which the server could not take, to be given back to the log.
+	 */
+	private Set<TelemetryLog.Record> sendAll(List<TelemetryLog.Record> records)
+	{
+		List<CompletableFuture<Boolean>> sent = new ArrayList<>();
+		for (TelemetryLog.Record r : records)
+			sent.add(CompletableFuture.supplyAsync(() -> sendOne(r), senders));
+
+		Set<TelemetryLog.Record> failed = new HashSet<>();
+		for (int i = 0; i < sent.size(); i++)
+			if (!sent.get(i).join())
+				failed.add(records.get(i));
+
+		return failed;
+	}
+
+	/**
+	 * Sends a record, and marks it done if the server took it or found it malformed. A record the server could not take is left for the caller to give back.
+	 *
+	 * @param r The record
+	 * @return {@code true} if the server took the record, or found it malformed.
+	 */
+	private boolean sendOne(TelemetryLog.Record r)
+	{
+		byte[] png = r.screenshot();
+		Screenshot screenshot = png != null ? new Screenshot(png) : null;
+		// the same screen may be uploaded for several labels, each of which the server has to see
+		String key = screenshot != null ? screenshot.hash() + " " + r.endpoint() + " " + r.payload() : null;
+		// a duplicate may go once its twin is being sent, since the twin stays in the log until the server took it
+		if (key != null && !uploaded.add(key))
+		{
+			deduplicated.incrementAndGet();
+			telemetryLog.complete(r);
+			return true;
+		}
+
+		try (Response res = screenshot != null ? NetUtils.basicPOST(client, serverURL, r.endpoint(), r.payload(), screenshot, null)
+				: NetUtils.basicPOST(client, serverURL, r.endpoint(), r.payload()))
+		{
+			if (res.code() >= 400 && !MALFORMED.contains(res.code()))
+				return retryLater(key);
+
+			if (MALFORMED.contains(res.code()))
+			{
+				log.debug("Server refused replayed {}: {}", r.endpoint(), res.code());
+				dropped.incrementAndGet();
+				if (key != null)
+					uploaded.remove(key);
+			}
+			else
+				replayed.incrementAndGet();
+
+			telemetryLog.complete(r);
+			return true;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			return retryLater(key);
+		}
+	}
+
+	/**
+	 * Lets a record the server could not take be sent again, screenshot included.
+	 *
+	 * @param key The key the screenshot of the record was deduplicated by, or {@code null} if it has none
+	 * @return {@code false}.
+	 */
+	private boolean retryLater(String key)
+	{
+		if (key != null)
+			uploaded.remove(key);
+		return false;
+	}
+
+	/**
+	 * Creates a daemon thread.
+	 *
+	 * @param r The task of the thread
+	 * @param name The name of the thread
+	 * @return The thread.
+	 */
+	private static Thread daemon(Runnable r, String name)
+	{
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+}
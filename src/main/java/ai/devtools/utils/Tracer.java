@@ -0,0 +1,105 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+import java.util.List;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Traces the calls to the Smartdriver server. Each call gets a span named after its endpoint, a child of the span which was current on the thread making
+ * the request, and carries a W3C {@code traceparent} header so that the server's spans join the same trace. Drivers also open a span around each lookup, so
+ * a latency waterfall can go from the test step through the SDK down to inference on the server.
+ */
+public class Tracer implements Interceptor
+{
+	/**
+	 * The base URL of the server, to name spans by endpoint
+	 */
+	private final HttpUrl serverURL;
+
+	/**
+	 * Receives the spans as they end
+	 */
+	private final SpanExporter exporter;
+
+	/**
+	 * The parent of spans started while no span is current, e.g. a CI job's span, or {@code null} to start a new trace for each of them
+	 */
+	private final Span root;
+
+	/**
+	 * Constructor, creates a new Tracer.
+	 *
+	 * @param serverURL The base URL of the server
+	 * @param exporter Receives the spans as they end
+	 * @param rootTraceparent The {@code traceparent} of the parent of spans started while no span is current, e.g. from the {@code TRACEPARENT} environment
+	 *           variable. Optional, set {@code null} to start a new trace for each of them.
+	 */
+	public Tracer(HttpUrl serverURL, SpanExporter exporter, String rootTraceparent)
+	{
+		this.serverURL = serverURL;
+		this.exporter = exporter;
+		this.root = Span.remote(rootTraceparent);
+	}
+
+	/**
+	 * Derives a client whose calls are traced. The derived client shares its connection pool and dispatcher with {@code client}. Install the tracer first, so
+	 * its spans cover the time calls spend in the other interceptors.
+	 *
+	 * @param client The client to derive from
+	 * @return A client whose calls are traced.
+	 */
+	public OkHttpClient install(OkHttpClient client)
+	{
+		return client.newBuilder().addInterceptor(this).build();
+	}
+
+	/**
+	 * Starts a span, a child of the current span of this thread, and makes it current until it is closed:
+	 * <pre>
+	 * try (Span step = tracer.span("log in"))
+	 * {
+	 * 	driver.findByAI("login_button").click();
+	 * }
+	 * </pre>
+	 *
+	 * @param name The name of the operation
+	 * @return The new span.
+	 */
+	public Span span(String name)
+	{
+		Span parent = Span.current();
+		return Span.start(parent != null ? parent : root, name, exporter).makeCurrent();
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException
+	{
+		Request request = chain.request();
+		Span parent = request.tag(Span.class);
+		if (parent == null)
+			parent = Span.current();
+
+		List<String> path = ServerPool.relativePath(request.url(), serverURL);
+		Span span = Span.start(parent != null ? parent : root, path != null ? String.join("/", path) : request.url().encodedPath(), exporter);
+		try
+		{
+			Response r = chain.proceed(request.newBuilder().header("traceparent", span.traceparent()).build());
+			span.set("http.status_code", r.code());
+			return r;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			span.set("error", e.toString());
+			throw e;
+		}
+		finally
+		{
+			span.end();
+		}
+	}
+}
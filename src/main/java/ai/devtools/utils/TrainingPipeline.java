@@ -0,0 +1,94 @@
+package ai.devtools.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of background workers which performs the server side of training (frozen checks, screenshot uploads and action info) for elements that were
+ * already found by Selenium. When the queue is full, tasks run on the submitting thread so that no training signal is dropped.
+ */
+public class TrainingPipeline
+{
+	/**
+	 * The logger for this class
+	 */
+	private static Logger log = LoggerFactory.getLogger(TrainingPipeline.class);
+
+	/**
+	 * Counter used to give each worker thread a unique name
+	 */
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	/**
+	 * The executor which runs the queued training tasks
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Constructor, creates a new TrainingPipeline.
+	 *
+	 * @param threads The number of worker threads to use
+	 * @param queueSize The maximum number of tasks which may be waiting for a worker
+	 */
+	public TrainingPipeline(int threads, int queueSize)
+	{
+		executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+			Thread t = new Thread(r, "devtools-ai-training-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}, new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queues a training task. Errors thrown by {@code task} are logged and otherwise ignored, as training must never fail a test.
+	 *
+	 * @param task The task to run in the background
+	 */
+	public void submit(Runnable task)
+	{
+		executor.execute(() -> {
+			try
+			{
+				task.run();
+			}
+			catch (Throwable e)
+			{
+				log.debug("Background training task failed: {}", e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * @return The number of tasks which are queued or currently running.
+	 */
+	public int pending()
+	{
+		return executor.getQueue().size() + executor.getActiveCount();
+	}
+
+	/**
+	 * Stops accepting new tasks and waits for the queued ones to complete.
+	 *
+	 * @param timeoutMillis The maximum amount of time to wait, in milliseconds
+	 * @return {@code true} if every queued task completed before the timeout elapsed.
+	 */
+	public boolean shutdown(long timeoutMillis)
+	{
+		executor.shutdown();
+		try
+		{
+			return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
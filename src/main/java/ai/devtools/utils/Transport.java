@@ -0,0 +1,42 @@
+package ai.devtools.utils;
+
+import java.io.IOException;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Carries the requests of a driver to the Smartdriver server. Requests are still made with an {@code OkHttpClient}, so compression, circuit breaking,
+ * scheduling, deadlines and the like work the same whatever the transport; the transport is the last step of the client's chain, and replaces its network
+ * stack.
+ *
+ * @see OkHttpTransport
+ * @see JdkTransport
+ * @see InProcessTransport
+ */
+public interface Transport
+{
+	/**
+	 * Sends a request and waits for the answer.
+	 *
+	 * @param request The request
+	 * @param call The call the request belongs to. Implementations should give up once it is cancelled, and honor its timeout.
+	 * @return The answer.
+	 * @throws IOException Network error, or if the call was cancelled
+	 */
+	Response send(Request request, Call call) throws IOException;
+
+	/**
+	 * Derives a client whose requests are carried by this transport. The derived client shares its dispatcher with {@code client}. Install the transport after
+	 * every other interceptor, since none installed after it are run.
+	 *
+	 * @param client The client to derive from
+	 * @return A client which sends its requests with this transport.
+	 */
+	default OkHttpClient install(OkHttpClient client)
+	{
+		return client.newBuilder().addInterceptor(chain -> send(chain.request(), chain.call())).build();
+	}
+}
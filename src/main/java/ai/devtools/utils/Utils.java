@@ -20,7 +20,10 @@ public class Utils {
     }
 
     public static JsonObject collectStackTrace() {
-        StackTraceElement[] st = Thread.currentThread().getStackTrace();
+        return collectStackTrace(Thread.currentThread().getStackTrace());
+    }
+
+    public static JsonObject collectStackTrace(StackTraceElement[] st) {
         JsonArray jsStFilenames = new JsonArray();
         JsonArray jsStTraces = new JsonArray();
 
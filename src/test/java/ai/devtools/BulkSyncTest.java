@@ -0,0 +1,117 @@
+package ai.devtools;
+
+import ai.devtools.utils.CollectionUtils;
+import ai.devtools.utils.StandInServer;
+import ai.devtools.utils.TelemetryLog;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+public class BulkSyncTest {
+
+    private static final byte[] PNG = { (byte) 0x89, 'P', 'N', 'G', 1, 2, 3, 4, 5 };
+
+    @TempDir
+    Path dir;
+
+    private void archive(int steps) throws Exception {
+        archive(dir, steps);
+    }
+
+    private static void archive(Path dir, int steps) throws Exception {
+        try (TelemetryLog archive = new TelemetryLog(dir, 4096, 1 << 20)) {
+            for (int i = 0; i < steps; i++) {
+                // every step was taken on the same screen, on one of two buttons
+                archive.append("upload_screenshot", "key", "nightly", CollectionUtils.keyValuesToJO("label", "button_" + i % 2), PNG);
+                archive.append("add_action_info", "key", "nightly", CollectionUtils.keyValuesToJO("label", "button_" + i, "x", i), null);
+            }
+        }
+    }
+
+    @Test
+    void uploadsEachScreenshotOncePerLabel() throws Exception {
+        archive(5);
+        try (StandInServer server = new StandInServer()) {
+            server.handle("upload_screenshot", payload -> CollectionUtils.keyValuesToJO("success", true));
+            server.handle("add_action_info", payload -> CollectionUtils.keyValuesToJO("success", true));
+
+            int left = BulkSync.sync(dir, new OkHttpClient(), server.url(), 4, 1);
+
+            assert left == 0;
+            assert server.received("upload_screenshot").size() == 2;
+            assert server.received("add_action_info").size() == 5;
+            assert "nightly".equals(server.received("add_action_info").get(0).get("test_case_name").getAsString());
+        }
+    }
+
+    @Test
+    void syncsTheArchivesOfDriversWhichFoundTheDirectoryInUse() throws Exception {
+        archive(1);
+        archive(dir.resolve(TelemetryLog.PROCESS_DIR_PREFIX + "123"), 2);
+        try (StandInServer server = new StandInServer()) {
+            server.handle("upload_screenshot", payload -> CollectionUtils.keyValuesToJO("success", true));
+            server.handle("add_action_info", payload -> CollectionUtils.keyValuesToJO("success", true));
+
+            int left = BulkSync.sync(dir, new OkHttpClient(), server.url(), 4, 1);
+            assert left == 0;
+            assert server.received("add_action_info").size() == 3;
+        }
+    }
+
+    @Test
+    void recordsDroppedFromAFullArchiveAreReportedOnce() throws Exception {
+        try (TelemetryLog archive = new TelemetryLog(dir, 1024, 2048)) {
+            for (int i = 0; i < 6; i++)
+                archive.append("upload_screenshot", "key", "nightly", CollectionUtils.keyValuesToJO("label", "button_" + i), new byte[600]);
+        }
+        try (StandInServer server = new StandInServer()) {
+            server.handle("upload_screenshot", payload -> CollectionUtils.keyValuesToJO("success", true));
+
+            int left = BulkSync.sync(dir, new OkHttpClient(), server.url(), 4, 1);
+            assert left > 0;
+            assert left == 6 - server.received("upload_screenshot").size();
+
+            left = BulkSync.sync(dir, new OkHttpClient(), server.url(), 4, 1);
+            assert left == 0;
+        }
+    }
+
+    @Test
+    void aMissingArchiveIsAnError() throws Exception {
+        Path missing = dir.resolve("mistyped");
+        try {
+            BulkSync.sync(missing, new OkHttpClient(), HttpUrl.parse("http://127.0.0.1:1"), 4, 1);
+            assert false;
+        } catch (NoSuchFileException e) {
+            assert !Files.exists(missing);
+        }
+    }
+
+    @Test
+    void anInterruptedSyncResumes() throws Exception {
+        archive(3);
+        HttpUrl gone;
+        try (StandInServer server = new StandInServer()) {
+            gone = server.url();
+        }
+
+        // duplicates of a screenshot which was being sent may be retired already
+        int left = BulkSync.sync(dir, new OkHttpClient(), gone, 4, 1);
+        assert left >= 4;
+
+        try (StandInServer server = new StandInServer()) {
+            server.handle("upload_screenshot", payload -> CollectionUtils.keyValuesToJO("success", true));
+            server.handle("add_action_info", payload -> CollectionUtils.keyValuesToJO("success", true));
+
+            left = BulkSync.sync(dir, new OkHttpClient(), server.url(), 4, 1);
+            assert left == 0;
+            assert server.received("upload_screenshot").size() == 2;
+            assert server.received("add_action_info").size() == 3;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package ai.devtools.utils;
+
+import org.junit.jupiter.api.Test;
+
+public class ActionInfoBatcherTest {
+
+    @Test
+    void sendsFortyFieldsInAFewRequests() throws Throwable {
+        try (StandInServer server = new StandInServer().withBatchEndpoint()
+                .handle("add_action_info", payload -> CollectionUtils.keyValuesToJO("success", true))) {
+            ActionInfoBatcher batcher = new ActionInfoBatcher(NetUtils.basicClient().build(), server.url(), "abcd", "some_tc", 20, 60000);
+            for (int i = 0; i < 40; i++)
+                batcher.add(CollectionUtils.keyValuesToJO("label", "field_" + i));
+            batcher.close();
+
+            int sent = server.received("add_action_info_batch").stream().mapToInt(p -> p.getAsJsonArray("action_infos").size()).sum();
+            assert sent == 40;
+            assert server.received("add_action_info_batch").size() <= 4;
+            assert server.received("add_action_info_batch").get(0).get("test_case_name").getAsString().equals("some_tc");
+            assert server.received("add_action_info").isEmpty();
+        }
+    }
+
+    @Test
+    void fallsBackToSingleRequestsWithoutBatchEndpoint() throws Throwable {
+        try (StandInServer server = new StandInServer().handle("add_action_info", payload -> CollectionUtils.keyValuesToJO("success", true))) {
+            ActionInfoBatcher batcher = new ActionInfoBatcher(NetUtils.basicClient().build(), server.url(), "abcd", "some_tc", 20, 60000);
+            for (int i = 0; i < 3; i++)
+                batcher.add(CollectionUtils.keyValuesToJO("label", "field_" + i));
+            batcher.close();
+
+            assert server.received("add_action_info").size() == 3;
+            assert server.received("add_action_info").get(0).get("api_key").getAsString().equals("abcd");
+        }
+    }
+}
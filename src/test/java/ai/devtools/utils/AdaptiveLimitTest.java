@@ -0,0 +1,49 @@
+package ai.devtools.utils;
+
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveLimitTest {
+
+    private static final long MS = 1000000;
+
+    @Test
+    void growsWhileLatencyStaysLowAndBacksOffWhenItClimbs() throws Exception {
+        AdaptiveLimit limit = new AdaptiveLimit(10, 2, 64, 2, 0.5, 2);
+        for (int i = 0; i < 200; i++) {
+            limit.onSample(0, 10 * MS, true, limit.limit());
+        }
+        int grown = limit.limit();
+        assert grown > 10;
+
+        limit.onSample(0, 50 * MS, true, grown);
+        assert limit.limit() == grown / 2;
+
+        // the same slow episode is only counted once per round trip
+        limit.onSample(0, 50 * MS, true, grown);
+        assert limit.limit() == grown / 2;
+
+        Thread.sleep(60);
+        limit.onSample(0, 50 * MS, false, grown);
+        assert limit.limit() == grown / 4;
+    }
+
+    @Test
+    void keepsABaselinePerClass() {
+        AdaptiveLimit limit = new AdaptiveLimit(10, 2, 64, 2, 0.5, 2);
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(0, 500 * MS, true, 0);
+            limit.onSample(1, 5 * MS, true, 0);
+        }
+        limit.onSample(0, 600 * MS, true, 0);
+        assert limit.limit() == 10;
+        limit.onSample(1, 50 * MS, true, 0);
+        assert limit.limit() == 5;
+    }
+
+    @Test
+    void aFixedLimitNeverChanges() {
+        AdaptiveLimit limit = AdaptiveLimit.fixed(8);
+        limit.onSample(0, 1, false, 8);
+        assert limit.limit() == 8;
+    }
+}
@@ -0,0 +1,124 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CassetteTest {
+
+    private static final byte[] PNG = { (byte) 0x89, 'P', 'N', 'G', 1, 2, 3, 4, 5 };
+
+    @Test
+    void replaysWithoutTheServer() throws Exception {
+        Path file = Files.createTempFile("cassette", ".jsonl");
+        Files.delete(file);
+        AtomicInteger detects = new AtomicInteger();
+        HttpUrl url;
+
+        try (StandInServer server = new StandInServer()) {
+            server.handle("detect", payload -> CollectionUtils.keyValuesToJO("success", true, "x", detects.incrementAndGet()));
+            url = server.url();
+            OkHttpClient recording = new Cassette(file, Cassette.Mode.RECORD, Cassette.VOLATILE_FIELDS).install(new OkHttpClient());
+
+            JsonObject payload = CollectionUtils.keyValuesToJO("label", "login_button", "api_key", "key1");
+            JsonObject first = JsonUtils.responseAsJson(NetUtils.basicPOST(recording, url, "detect", payload, new Screenshot(PNG)));
+            JsonObject second = JsonUtils.responseAsJson(NetUtils.basicPOST(recording, url, "detect", payload, new Screenshot(PNG)));
+            assert first.get("x").getAsInt() == 1;
+            assert second.get("x").getAsInt() == 2;
+        }
+
+        Cassette cassette = new Cassette(file, Cassette.Mode.REPLAY, Cassette.VOLATILE_FIELDS);
+        OkHttpClient replaying = cassette.install(new OkHttpClient());
+        assert cassette.size() == 1;
+
+        // the api key is volatile, and the screenshot matches whether it is sent as base64 or as a binary part
+        JsonObject payload = CollectionUtils.keyValuesToJO("label", "login_button", "api_key", "key2");
+        JsonObject binary = JsonUtils.responseAsJson(NetUtils.multipartPOST(replaying, url, "detect", payload, PNG));
+        JsonObject base64 = JsonUtils.responseAsJson(NetUtils.basicPOST(replaying, url, "detect", payload, new Screenshot(PNG)));
+        JsonObject again = JsonUtils.responseAsJson(NetUtils.basicPOST(replaying, url, "detect", payload, new Screenshot(PNG)));
+        assert binary.get("x").getAsInt() == 1;
+        assert base64.get("x").getAsInt() == 2;
+        assert again.get("x").getAsInt() == 2;
+        assert detects.get() == 2;
+
+        Files.delete(file);
+    }
+
+    @Test
+    void replaysRevalidations() throws Exception {
+        Path file = Files.createTempFile("cassette", ".jsonl");
+        Files.delete(file);
+        HttpUrl url = HttpUrl.parse("http://in-process");
+        JsonObject payload = CollectionUtils.keyValuesToJO("label", "login_button");
+
+        // answers 304 to a request which already has the current version
+        OkHttpClient recording = new Cassette(file, Cassette.Mode.RECORD, Cassette.VOLATILE_FIELDS).install(new OkHttpClient()).newBuilder().addInterceptor(chain -> {
+            boolean current = "\"v1\"".equals(chain.request().header("If-None-Match"));
+            return new Response.Builder().request(chain.request()).protocol(Protocol.HTTP_1_1).code(current ? 304 : 200).message("").header("ETag", "\"v1\"")
+                    .body(ResponseBody.create(current ? "" : "{\"success\":true}", MediaType.parse("application/json"))).build();
+        }).build();
+        NetUtils.basicPOST(recording, url, "detect", payload).close();
+        NetUtils.basicPOST(recording, url, "detect", payload, Headers.of(Map.of("If-None-Match", "\"v1\""))).close();
+
+        OkHttpClient replaying = new Cassette(file, Cassette.Mode.REPLAY, Cassette.VOLATILE_FIELDS).install(new OkHttpClient());
+        try (Response fresh = NetUtils.basicPOST(replaying, url, "detect", payload)) {
+            assert fresh.code() == 200;
+            assert "\"v1\"".equals(fresh.header("ETag"));
+        }
+        try (Response revalidated = NetUtils.basicPOST(replaying, url, "detect", payload, Headers.of(Map.of("If-None-Match", "\"v1\"")))) {
+            assert revalidated.code() == 304;
+        }
+
+        Files.delete(file);
+    }
+
+    @Test
+    void unrecordedRequestsFail() throws Exception {
+        Path file = Files.createTempFile("cassette", ".jsonl");
+        OkHttpClient replaying = new Cassette(file, Cassette.Mode.REPLAY, Cassette.VOLATILE_FIELDS).install(new OkHttpClient());
+
+        try {
+            NetUtils.basicPOST(replaying, HttpUrl.parse("http://127.0.0.1:1"), "detect", CollectionUtils.keyValuesToJO("label", "login_button"));
+            assert false;
+        } catch (IOException e) {
+            assert e.getMessage().contains("No recorded answer");
+        }
+
+        Files.delete(file);
+    }
+
+    @Test
+    void anOpenCassetteCannotBeUsedInTheOtherMode() throws Exception {
+        Path file = Files.createTempFile("cassette", ".jsonl");
+        Cassette recording = Cassette.of(file, Cassette.Mode.RECORD, Cassette.VOLATILE_FIELDS);
+
+        Cassette shared = Cassette.of(file, Cassette.Mode.RECORD, Cassette.volatileFields("run_id"));
+        assert shared == recording;
+        try {
+            Cassette.of(file, Cassette.Mode.REPLAY, Cassette.VOLATILE_FIELDS);
+            assert false;
+        } catch (IllegalStateException e) {
+            assert e.getMessage().contains("RECORD");
+        }
+
+        Files.delete(file);
+    }
+
+    @Test
+    void extraVolatileFieldsAreParsed() {
+        assert Cassette.volatileFields("timestamp, run_id").containsAll(List.of("timestamp", "run_id", "api_key"));
+    }
+}
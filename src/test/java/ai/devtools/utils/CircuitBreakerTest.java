@@ -0,0 +1,70 @@
+package ai.devtools.utils;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+public class CircuitBreakerTest {
+
+    @Test
+    void opensAfterConsecutiveFailuresAndClosesAfterASuccessfulProbe() throws Exception {
+        CircuitBreaker b = new CircuitBreaker("check_frozen", new CircuitBreaker.Policy(3, 100, 0));
+        for (int i = 0; i < 3; i++) {
+            boolean acquired = b.tryAcquire();
+            assert acquired;
+            b.onResult(false, 1);
+        }
+
+        assert b.state() == CircuitBreaker.State.OPEN;
+        boolean whileOpen = b.tryAcquire();
+        assert !whileOpen;
+
+        Thread.sleep(150);
+        boolean probe = b.tryAcquire();
+        assert probe;
+        assert b.state() == CircuitBreaker.State.HALF_OPEN;
+        boolean whileProbing = b.tryAcquire();
+        assert !whileProbing;
+        b.onResult(true, 1);
+
+        assert b.state() == CircuitBreaker.State.CLOSED;
+        assert b.opened() == 1 && b.halfOpened() == 1 && b.closed() == 1 && b.rejected() == 2;
+    }
+
+    @Test
+    void countsSlowCallsAsFailures() {
+        CircuitBreaker b = new CircuitBreaker("upload_screenshot", new CircuitBreaker.Policy(2, 1000, 50));
+        b.tryAcquire();
+        b.onResult(true, 500);
+        b.tryAcquire();
+        b.onResult(true, 500);
+
+        assert b.isOpen();
+    }
+
+    @Test
+    void skipsTelemetryCallsToADownServer() throws Exception {
+        StandInServer server = new StandInServer();
+        server.close();
+
+        CircuitBreakers breakers = new CircuitBreakers(server.url(), new CircuitBreaker.Policy(2, 60000, 0), new CircuitBreaker.Policy(2, 60000, 0));
+        OkHttpClient client = breakers.install(ClientRegistry.basic());
+        for (int i = 0; i < 2; i++) {
+            try (Response r = NetUtils.basicPOST(client, server.url(), "check_frozen", CollectionUtils.keyValuesToJO("label", "x"))) {
+                assert false;
+            } catch (IOException e) {
+                assert !(e instanceof CircuitBreaker.OpenException);
+            }
+        }
+
+        assert breakers.isOpen(CircuitBreakers.TELEMETRY);
+        assert !breakers.get("detect").isOpen();
+        try (Response r = NetUtils.basicPOST(client, server.url(), "check_frozen", CollectionUtils.keyValuesToJO("label", "x"))) {
+            assert false;
+        } catch (CircuitBreaker.OpenException e) {
+            assert breakers.get("check_frozen").rejected() == 1;
+        }
+    }
+}
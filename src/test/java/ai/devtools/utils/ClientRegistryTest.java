@@ -0,0 +1,52 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ClientRegistryTest {
+
+    @Test
+    void synchronousCallsAreLimitedPerHost() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch twoStarted = new CountDownLatch(2);
+        OkHttpClient client = new InProcessTransport((endpoint, payload, screenshot) -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            twoStarted.countDown();
+            try {
+                boolean released = release.await(5, TimeUnit.SECONDS);
+                assert released;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            return CollectionUtils.keyValuesToJO("success", true);
+        }).install(new OkHttpClient.Builder().addInterceptor(new ClientRegistry.RequestLimit(8, 2)).build());
+
+        ExecutorService pool = Executors.newFixedThreadPool(5);
+        for (int i = 0; i < 5; i++)
+            pool.submit(() -> {
+                NetUtils.basicPOST(client, HttpUrl.parse("http://in-process"), "detect", new JsonObject()).close();
+                return null;
+            });
+
+        boolean started = twoStarted.await(5, TimeUnit.SECONDS);
+        assert started;
+        assert inFlight.get() == 2;
+        release.countDown();
+        pool.shutdown();
+        boolean terminated = pool.awaitTermination(5, TimeUnit.SECONDS);
+        assert terminated;
+
+        assert maxInFlight.get() == 2;
+    }
+}
@@ -0,0 +1,78 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class DeadlineTest {
+
+    private static StandInServer slow() throws Exception {
+        return new StandInServer().handle("detect", p -> {
+            try {
+                Thread.sleep(3000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return CollectionUtils.keyValuesToJO("success", true);
+        });
+    }
+
+    @Test
+    void nestedDeadlinesNeverExtendTheOuterOne() {
+        try (Deadline outer = Deadline.start(1000)) {
+            try (Deadline inner = Deadline.start(60000)) {
+                assert Deadline.current() == inner;
+                assert inner.remainingMillis() <= 1000;
+            }
+            try (Deadline inherited = Deadline.start(0)) {
+                assert inherited.remainingMillis() <= 1000;
+            }
+            assert Deadline.current() == outer;
+        }
+        assert Deadline.current() == null;
+        assert !Deadline.isCancelled();
+    }
+
+    @Test
+    void cancelsTheCallWhenTheDeadlinePasses() throws Exception {
+        try (StandInServer server = slow(); Deadline d = Deadline.start(300)) {
+            long start = System.nanoTime();
+            try {
+                NetUtils.basicPOST(ClientRegistry.basic(), server.url(), "detect", new JsonObject()).close();
+                assert false;
+            } catch (Deadline.ExceededException e) {
+                assert (System.nanoTime() - start) / 1000000 < 2000;
+            }
+
+            try {
+                NetUtils.basicPOST(ClientRegistry.basic(), server.url(), "detect", new JsonObject()).close();
+                assert false;
+            } catch (Deadline.ExceededException e) {
+                assert Deadline.isCancelled();
+            }
+        }
+    }
+
+    @Test
+    void cancelsTheCallWhenTheThreadIsInterrupted() throws Exception {
+        try (StandInServer server = slow()) {
+            AtomicReference<Throwable> thrown = new AtomicReference<>();
+            Thread t = new Thread(() -> {
+                try (Deadline d = Deadline.start(0)) {
+                    NetUtils.basicPOST(ClientRegistry.basic(), server.url(), "detect", new JsonObject()).close();
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            });
+            t.start();
+            Thread.sleep(200);
+            t.interrupt();
+            t.join(2000);
+
+            assert !t.isAlive();
+            assert thrown.get() instanceof InterruptedIOException;
+        }
+    }
+}
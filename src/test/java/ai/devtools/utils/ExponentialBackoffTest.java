@@ -0,0 +1,37 @@
+package ai.devtools.utils;
+
+import org.junit.jupiter.api.Test;
+
+public class ExponentialBackoffTest {
+
+    @Test
+    void delaysDoubleWithinTheJitterBoundsUpToTheCap() {
+        ExponentialBackoff backoff = new ExponentialBackoff(10, 100, 1000, 0);
+        long[] caps = {100, 200, 400, 800, 1000, 1000};
+        for (int i = 0; i < caps.length; i++) {
+            for (int n = 0; n < 50; n++) {
+                long delay = backoff.nextDelay(i + 1, 0, false);
+                assert delay >= caps[i] / 2 && delay <= caps[i] : delay;
+            }
+        }
+    }
+
+    @Test
+    void givesUpAfterTheMaximumNumberOfAttempts() {
+        ExponentialBackoff backoff = new ExponentialBackoff(3, 10, 100, 0);
+
+        assert backoff.nextDelay(1, 0, false) >= 0;
+        assert backoff.nextDelay(2, 0, false) >= 0;
+        assert backoff.nextDelay(3, 0, false) < 0;
+        assert new ExponentialBackoff(1, 10, 100, 0).nextDelay(1, 0, false) < 0;
+    }
+
+    @Test
+    void givesUpWhenTheNextAttemptWouldStartAfterTheBudget() {
+        ExponentialBackoff backoff = new ExponentialBackoff(10, 1000, 1000, 5000);
+
+        assert backoff.nextDelay(1, 0, false) >= 0;
+        assert backoff.nextDelay(2, 4600, false) < 0;
+        assert backoff.nextDelay(2, 5000, false) < 0;
+    }
+}
@@ -0,0 +1,36 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+public class FrozenStatusCacheTest {
+
+    @Test
+    void prefetchLoadsEveryLabelOfTheTestCase() throws Throwable {
+        FrozenStatusCache.clear();
+        try (StandInServer server = new StandInServer().handle("check_frozen_bulk", payload -> {
+            JsonObject labels = CollectionUtils.keyValuesToJO("el_login", true, "el_password", false);
+            JsonObject res = CollectionUtils.keyValuesToJO("success", true);
+            res.add("labels", labels);
+            return res;
+        })) {
+            int count = FrozenStatusCache.prefetch(NetUtils.basicClient().build(), server.url(), "abcd", "some_tc", 60000);
+
+            assert count == 2;
+            assert server.received("check_frozen_bulk").get(0).get("test_case_name").getAsString().equals("some_tc");
+            assert FrozenStatusCache.get("abcd", "el_login");
+            assert !FrozenStatusCache.get("abcd", "el_password");
+            assert FrozenStatusCache.get("another key", "el_login") == null;
+        }
+    }
+
+    @Test
+    void entriesExpire() throws Throwable {
+        FrozenStatusCache.clear();
+        FrozenStatusCache.put("abcd", "el_login", true, 20);
+        assert FrozenStatusCache.get("abcd", "el_login");
+
+        Thread.sleep(50);
+        assert FrozenStatusCache.get("abcd", "el_login") == null;
+    }
+}
@@ -0,0 +1,66 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HedgerTest {
+
+    private static final Screenshot SCREENSHOT = new Screenshot(new byte[] {1, 2, 3});
+
+    /**
+     * A server whose 21st detect request takes two seconds to answer, all others answer right away.
+     */
+    private static StandInServer slowOnce() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        return new StandInServer().handle("detect", p -> {
+            if (count.incrementAndGet() == 21) {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return CollectionUtils.keyValuesToJO("success", true);
+        });
+    }
+
+    private static long send(OkHttpClient client, StandInServer server, Hedger hedger, int times) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < times; i++) {
+            try (Response r = NetUtils.basicPOST(client, server.url(), "detect", new JsonObject(), SCREENSHOT, hedger)) {
+                assert JsonUtils.booleanFromJson(JsonUtils.responseAsJson(r), "success");
+            }
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Test
+    void hedgesASlowRequestAndTakesTheFirstAnswer() throws Exception {
+        try (StandInServer server = slowOnce()) {
+            Hedger hedger = new Hedger(95, 0.5, 50);
+            OkHttpClient client = ClientRegistry.basic();
+            send(client, server, hedger, 20);
+
+            assert send(client, server, hedger, 1) < 1500;
+            assert hedger.hedges() == 1;
+            assert hedger.hedgeWins() == 1;
+        }
+    }
+
+    @Test
+    void doesNotHedgePastTheBudget() throws Exception {
+        try (StandInServer server = slowOnce()) {
+            Hedger hedger = new Hedger(95, 0, 50);
+            OkHttpClient client = ClientRegistry.basic();
+            send(client, server, hedger, 20);
+
+            assert send(client, server, hedger, 1) >= 2000;
+            assert hedger.hedges() == 0;
+            assert server.received("detect").size() == 21;
+        }
+    }
+}
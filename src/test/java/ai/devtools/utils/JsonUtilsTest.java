@@ -0,0 +1,48 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+public class JsonUtilsTest {
+
+    private boolean closed;
+
+    private Response response(String body) {
+        BufferedSource source = Okio.buffer(new ForwardingSource(new Buffer().writeUtf8(body)) {
+            @Override
+            public void close() throws IOException {
+                closed = true;
+                super.close();
+            }
+        });
+        return new Response.Builder().request(new Request.Builder().url("http://localhost/detect").build()).protocol(Protocol.HTTP_1_1)
+                .code(200).message("OK").body(ResponseBody.create(source, MediaType.get("application/json"), -1)).build();
+    }
+
+    @Test
+    void keepsOnlyTheRequestedFields() {
+        JsonObject jo = JsonUtils.responseAsJson(response("{\"success\": true, \"predicted_element\": {\"x\": 1, \"y\": [1, 2]}, \"is_frozen\": false}"), "success", "is_frozen");
+
+        assert jo.get("success").getAsBoolean();
+        assert !jo.get("is_frozen").getAsBoolean();
+        assert !jo.has("predicted_element");
+        assert closed;
+    }
+
+    @Test
+    void closesTheResponseWhenParsingFails() {
+        assert JsonUtils.responseAsJson(response("<html>502 Bad Gateway</html>")) == null;
+        assert closed;
+    }
+}
@@ -0,0 +1,92 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PredictionCacheTest {
+
+    private static Response response(int code, String etag, String body) {
+        Response.Builder b = new Response.Builder().request(new Request.Builder().url("http://localhost/detect").build()).protocol(Protocol.HTTP_1_1)
+                .code(code).message("").body(ResponseBody.create(body, MediaType.get("application/json")));
+        if (etag != null) {
+            b.header("ETag", etag);
+        }
+        return b.build();
+    }
+
+    @Test
+    void unchangedModelIsRevalidated() throws Exception {
+        PredictionCache cache = new PredictionCache(10);
+        List<Headers> sent = new ArrayList<>();
+        String key = SingleFlight.key("detect", "login_button", "abc", null, "test");
+
+        JsonObject first = cache.fetch(key, "login_button", headers -> {
+            sent.add(headers);
+            return response(200, "\"v1\"", "{\"success\": true, \"x\": 10}");
+        });
+        JsonObject second = cache.fetch(key, "login_button", headers -> {
+            sent.add(headers);
+            return response(304, "\"v1\"", "");
+        });
+
+        assert sent.get(0) == null;
+        assert "\"v1\"".equals(sent.get(1).get("If-None-Match"));
+        assert second.get("x").getAsInt() == 10;
+        assert second != first;
+        assert cache.revalidated() == 1;
+    }
+
+    @Test
+    void modelVersionIsUsedWithoutETag() throws Exception {
+        PredictionCache cache = new PredictionCache(10);
+        List<Headers> sent = new ArrayList<>();
+
+        for (int i = 0; i < 2; i++) {
+            cache.fetch("key", "login_button", headers -> {
+                sent.add(headers);
+                return response(200, null, "{\"success\": true, \"model_version\": 7}");
+            });
+        }
+
+        assert "W/\"7\"".equals(sent.get(1).get("If-None-Match"));
+    }
+
+    @Test
+    void retrainedLabelIsForgotten() throws Exception {
+        PredictionCache cache = new PredictionCache(10);
+        List<Headers> sent = new ArrayList<>();
+
+        cache.fetch("key", "login_button", headers -> response(200, "\"v1\"", "{\"success\": true}"));
+        cache.invalidate("login_button");
+        cache.fetch("key", "login_button", headers -> {
+            sent.add(headers);
+            return response(200, "\"v2\"", "{\"success\": true}");
+        });
+
+        assert sent.get(0) == null;
+    }
+
+    @Test
+    void failedAnswersAreNotCached() throws Exception {
+        PredictionCache cache = new PredictionCache(10);
+        List<Headers> sent = new ArrayList<>();
+
+        for (int i = 0; i < 2; i++) {
+            cache.fetch("key", "login_button", headers -> {
+                sent.add(headers);
+                return response(200, "\"v1\"", "{\"success\": false}");
+            });
+        }
+
+        assert sent.get(1) == null;
+    }
+}
@@ -0,0 +1,54 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+
+public class RequestCompressionTest {
+
+    private static JsonObject payload(int size) {
+        return CollectionUtils.keyValuesToJO("label", "login_button", "stack_trace", "at ai.devtools.Example.test(Example.java:42)\n".repeat(size / 44 + 1));
+    }
+
+    private static ServerCapabilities gzipCapable(StandInServer server) {
+        ServerCapabilities capabilities = ServerCapabilities.of(server.url());
+        capabilities.update(CollectionUtils.keyValuesToJO("success", true, "gzip_requests", true));
+        return capabilities;
+    }
+
+    @Test
+    void compressesOnlyPayloadsAboveTheThreshold() throws Exception {
+        try (StandInServer server = new StandInServer().handle("detect", p -> CollectionUtils.keyValuesToJO("success", true))) {
+            OkHttpClient client = RequestCompression.install(ClientRegistry.basic(), gzipCapable(server), 4096, 1);
+
+            try (Response r = NetUtils.basicPOST(client, server.url(), "detect", payload(100))) {
+                assert r.code() == 200;
+            }
+            try (Response r = NetUtils.basicPOST(client, server.url(), "detect", payload(100000))) {
+                assert r.code() == 200;
+            }
+
+            assert server.gzipped() == 1;
+            assert server.received("detect").get(1).get("stack_trace").getAsString().equals(payload(100000).get("stack_trace").getAsString());
+        }
+    }
+
+    @Test
+    void fallsBackToPlainRequestsWhenTheServerRejectsGzip() throws Exception {
+        try (StandInServer server = new StandInServer().rejectGzip().handle("detect", p -> CollectionUtils.keyValuesToJO("success", true))) {
+            ServerCapabilities capabilities = gzipCapable(server);
+            OkHttpClient client = RequestCompression.install(ClientRegistry.basic(), capabilities, 4096, 1);
+
+            for (int i = 0; i < 2; i++) {
+                try (Response r = NetUtils.basicPOST(client, server.url(), "detect", payload(100000))) {
+                    assert r.code() == 200;
+                }
+            }
+
+            assert server.gzipped() == 1;
+            assert server.received("detect").size() == 2;
+            assert !capabilities.gzipRequests();
+        }
+    }
+}
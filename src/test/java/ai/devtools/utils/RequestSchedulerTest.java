@@ -0,0 +1,157 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+public class RequestSchedulerTest {
+
+    private static final HttpUrl SERVER = HttpUrl.parse("http://in-process");
+
+    private final List<String> order = new CopyOnWriteArrayList<>();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    // answers every call once release is counted down, except for the immediate endpoints
+    private OkHttpClient client(RequestScheduler scheduler, String... immediate) {
+        return client(scheduler, new OkHttpClient(), immediate);
+    }
+
+    private OkHttpClient client(RequestScheduler scheduler, OkHttpClient base, String... immediate) {
+        List<String> answerAtOnce = List.of(immediate);
+        return new InProcessTransport((endpoint, payload, screenshot) -> {
+            order.add(endpoint);
+            try {
+                if (!answerAtOnce.contains(endpoint)) {
+                    boolean released = release.await(5, TimeUnit.SECONDS);
+                    assert released;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return CollectionUtils.keyValuesToJO("success", true);
+        }).install(scheduler.install(base));
+    }
+
+    private static Void post(OkHttpClient client, String endpoint) throws IOException {
+        try (Response r = NetUtils.basicPOST(client, SERVER, endpoint, new JsonObject())) {
+            assert r.code() == 200;
+        }
+        return null;
+    }
+
+    private static void until(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assert System.nanoTime() < deadline : "timed out";
+            Thread.sleep(5);
+        }
+    }
+
+    private void finish(ExecutorService pool, List<Future<Void>> calls) throws Exception {
+        release.countDown();
+        pool.shutdown();
+        boolean terminated = pool.awaitTermination(5, TimeUnit.SECONDS);
+        assert terminated;
+        for (Future<Void> f : calls)
+            f.get();
+    }
+
+    @Test
+    void trainingCannotTakeTheSlotsOfLookups() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(SERVER, 4, 4, 1);
+        OkHttpClient client = client(scheduler, "detect");
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<Void>> calls = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 4; i++)
+            calls.add(pool.submit(() -> post(client, "upload_screenshot")));
+        until(() -> scheduler.running(RequestScheduler.Priority.TRAINING) == 1 && scheduler.waiting(RequestScheduler.Priority.TRAINING) == 3);
+
+        // answered while every training call is still held
+        post(client, "detect");
+        assert scheduler.running(RequestScheduler.Priority.TRAINING) == 1;
+
+        finish(pool, calls);
+    }
+
+    @Test
+    void waitingTrainingDoesNotHoldTheSharedClientsRequestSlots() throws Exception {
+        ClientRegistry.Settings previous = ClientRegistry.settings();
+        ClientRegistry.configure(new ClientRegistry.Settings().maxRequestsPerHost(4));
+        ExecutorService pool = Executors.newFixedThreadPool(5);
+        List<Future<Void>> calls = new CopyOnWriteArrayList<>();
+        try {
+            RequestScheduler scheduler = new RequestScheduler(SERVER, 32, 16, 1);
+            OkHttpClient client = client(scheduler, ClientRegistry.basic(), "detect");
+
+            for (int i = 0; i < 4; i++)
+                calls.add(pool.submit(() -> post(client, "upload_screenshot")));
+            until(() -> scheduler.running(RequestScheduler.Priority.TRAINING) == 1 && scheduler.waiting(RequestScheduler.Priority.TRAINING) == 3);
+
+            // answered while every training call is still held, well before the held calls give up
+            pool.submit(() -> post(client, "detect")).get(2, TimeUnit.SECONDS);
+            assert scheduler.running(RequestScheduler.Priority.TRAINING) == 1;
+
+            finish(pool, calls);
+        } finally {
+            release.countDown();
+            pool.shutdownNow();
+            ClientRegistry.configure(previous);
+        }
+    }
+
+    @Test
+    void waitingLookupsGoBeforeWaitingTraining() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(SERVER, 1, 1, 1);
+        OkHttpClient client = client(scheduler);
+
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        List<Future<Void>> calls = new CopyOnWriteArrayList<>();
+        calls.add(pool.submit(() -> post(client, "upload_screenshot")));
+        until(() -> order.size() == 1);
+        calls.add(pool.submit(() -> post(client, "upload_screenshot")));
+        until(() -> scheduler.waiting(RequestScheduler.Priority.TRAINING) == 1);
+        calls.add(pool.submit(() -> post(client, "detect")));
+        until(() -> scheduler.waiting(RequestScheduler.Priority.CLASSIFY) == 1);
+
+        finish(pool, calls);
+
+        assert order.equals(List.of("upload_screenshot", "detect", "upload_screenshot")) : order;
+        assert scheduler.delayed(RequestScheduler.Priority.CLASSIFY) == 1;
+    }
+
+    @Test
+    void refusesCallsOnceTheQueueIsFull() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(SERVER, AdaptiveLimit.fixed(1), 1, 1, 1);
+        OkHttpClient client = client(scheduler);
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        List<Future<Void>> calls = new CopyOnWriteArrayList<>();
+        calls.add(pool.submit(() -> post(client, "detect")));
+        until(() -> order.size() == 1);
+        calls.add(pool.submit(() -> post(client, "detect")));
+        until(() -> scheduler.queueDepth() == 1);
+
+        try {
+            NetUtils.basicPOST(client, SERVER, "detect", new JsonObject()).close();
+            assert false;
+        } catch (IOException e) {
+            assert scheduler.rejected() == 1;
+        }
+
+        finish(pool, calls);
+    }
+}
@@ -0,0 +1,63 @@
+package ai.devtools.utils;
+
+import org.junit.jupiter.api.Test;
+
+public class ScreenshotIndexTest {
+
+    @Test
+    void countsHitsAndMisses() {
+        ScreenshotIndex index = new ScreenshotIndex();
+        index.add("4b1bc9c1d7b4c1e1f2d0a1a4b1c9e7f0");
+
+        assert index.contains("4b1bc9c1d7b4c1e1f2d0a1a4b1c9e7f0");
+        assert !index.contains("00000000000000000000000000000000");
+        assert index.contains("4b1bc9c1d7b4c1e1f2d0a1a4b1c9e7f0");
+
+        assert index.hits() == 2;
+        assert index.misses() == 1;
+        assert Math.abs(index.hitRatio() - 2.0 / 3) < 1e-9;
+    }
+
+    @Test
+    void aScreenshotKnownForOneLabelIsUnknownForAnother() {
+        ScreenshotIndex index = new ScreenshotIndex();
+        index.add("4b1bc9c1d7b4c1e1f2d0a1a4b1c9e7f0", "login_button");
+
+        boolean sameLabel = index.contains("4b1bc9c1d7b4c1e1f2d0a1a4b1c9e7f0", "login_button");
+        boolean otherLabel = index.contains("4b1bc9c1d7b4c1e1f2d0a1a4b1c9e7f0", "logout_button");
+        assert sameLabel;
+        assert !otherLabel;
+    }
+
+    @Test
+    void forgetsTheLeastRecentlyUsedHashesWithoutBloomFilter() {
+        ScreenshotIndex index = new ScreenshotIndex(3, 0);
+        index.add("a");
+        index.add("b");
+        index.add("c");
+        assert index.contains("a");
+        index.add("d");
+
+        assert index.exactSize() == 3;
+        assert index.contains("a");
+        assert !index.contains("b");
+        assert index.contains("d");
+    }
+
+    @Test
+    void bloomFilterTakesOverPastTheExactCapacity() {
+        ScreenshotIndex index = new ScreenshotIndex(100, 10000);
+        for (int i = 0; i < 10000; i++)
+            index.add("hash_" + i);
+
+        assert index.exactSize() == 100;
+        for (int i = 0; i < 10000; i++)
+            assert index.contains("hash_" + i);
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++)
+            if (index.contains("other_" + i))
+                falsePositives++;
+        assert falsePositives < 100 : falsePositives;
+    }
+}
@@ -0,0 +1,60 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.junit.jupiter.api.Test;
+import org.openqa.selenium.Dimension;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Random;
+
+public class ScreenshotTest {
+
+    private static byte[] png(int size) {
+        byte[] b = new byte[size];
+        new Random(size).nextBytes(b);
+        return b;
+    }
+
+    @Test
+    void hashMatchesTheMd5OfTheBase64String() throws Exception {
+        for (int size : new int[] {0, 1, 2, 3, 100000}) {
+            byte[] png = png(size);
+            byte[] md5 = MessageDigest.getInstance("MD5").digest(Base64.getEncoder().encodeToString(png).getBytes(StandardCharsets.UTF_8));
+
+            assert new Screenshot(png).hash().equals(String.format("%032X", new BigInteger(1, md5)).toLowerCase());
+        }
+    }
+
+    @Test
+    void readsTheDimensionFromThePngHeader() throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(1366, 768, BufferedImage.TYPE_INT_RGB), "png", png);
+
+        assert new Screenshot(png.toByteArray()).dimension().equals(new Dimension(1366, 768));
+    }
+
+    @Test
+    void jsonBodyStreamsTheScreenshotIntoThePayload() throws Exception {
+        byte[] png = png(200001);
+        JsonObject jo = new JsonObject();
+        jo.addProperty("label", "login_button");
+
+        RequestBody body = new Screenshot(png).jsonBody(jo);
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+
+        assert sink.size() == body.contentLength();
+        JsonObject sent = JsonParser.parseString(sink.readUtf8()).getAsJsonObject();
+        assert sent.get("label").getAsString().equals("login_button");
+        assert sent.get("screenshot").getAsString().equals(Base64.getEncoder().encodeToString(png));
+    }
+}
@@ -0,0 +1,94 @@
+package ai.devtools.utils;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ServerPoolTest {
+
+    private static StandInServer node() throws Exception {
+        return new StandInServer().handle("detect", p -> CollectionUtils.keyValuesToJO("success", true))
+                .handle("upload_screenshot", p -> CollectionUtils.keyValuesToJO("success", true));
+    }
+
+    @Test
+    void parsesCommaSeparatedAndListSettings() {
+        List<HttpUrl> l = ServerPool.parseURLs("http://a:8080/, http://b:8080/smartdriver");
+
+        assert l.equals(Arrays.asList(HttpUrl.get("http://a:8080/"), HttpUrl.get("http://b:8080/smartdriver")));
+        assert ServerPool.parseURLs(Arrays.asList("http://a:8080/", "http://b:8080/smartdriver")).equals(l);
+    }
+
+    @Test
+    void balancesStatelessEndpointsAndPinsTheRest() throws Exception {
+        try (StandInServer a = node(); StandInServer b = node()) {
+            ServerPool pool = new ServerPool(Arrays.asList(a.url(), b.url()), ServerPool.Policy.LEAST_OUTSTANDING);
+            OkHttpClient client = pool.install(ClientRegistry.basic(), false);
+
+            for (int i = 0; i < 40; i++) {
+                try (Response r = NetUtils.basicPOST(client, a.url(), "detect", CollectionUtils.keyValuesToJO("label", "x"))) {
+                    assert r.code() == 200;
+                }
+                try (Response r = NetUtils.basicPOST(client, a.url(), "upload_screenshot", CollectionUtils.keyValuesToJO("label", "x"))) {
+                    assert r.code() == 200;
+                }
+            }
+
+            assert a.received("detect").size() > 0 && b.received("detect").size() > 0;
+            assert a.received("upload_screenshot").isEmpty() || b.received("upload_screenshot").isEmpty();
+            assert a.received("upload_screenshot").size() + b.received("upload_screenshot").size() == 40;
+        }
+    }
+
+    @Test
+    void ejectsANodeWhichStopsAnswering() throws Exception {
+        try (StandInServer a = node()) {
+            HttpUrl gone;
+            try (StandInServer b = node()) {
+                gone = b.url();
+            }
+            ServerPool pool = new ServerPool(Arrays.asList(a.url(), gone), ServerPool.Policy.EWMA);
+            OkHttpClient client = pool.install(ClientRegistry.basic(), false);
+
+            for (int i = 0; i < 20; i++) {
+                try (Response r = NetUtils.basicPOST(client, a.url(), "detect", CollectionUtils.keyValuesToJO("label", "x"))) {
+                    assert r.code() == 200;
+                }
+            }
+
+            assert a.received("detect").size() == 20;
+            assert pool.nodes().get(1).isEjected();
+        }
+    }
+
+    @Test
+    void canceledCallsAreNotChargedToTheNode() throws Exception {
+        ServerPool pool = new ServerPool(Arrays.asList(HttpUrl.get("http://a:8080/"), HttpUrl.get("http://b:8080/")), ServerPool.Policy.EWMA);
+        AtomicInteger attempts = new AtomicInteger();
+        // like a losing hedge, canceled while in flight
+        OkHttpClient client = pool.install(new OkHttpClient(), false).newBuilder().addInterceptor(chain -> {
+            attempts.incrementAndGet();
+            chain.call().cancel();
+            throw new IOException("Canceled");
+        }).build();
+
+        for (int i = 0; i < 20; i++) {
+            try {
+                NetUtils.basicPOST(client, HttpUrl.get("http://a:8080/"), "detect", CollectionUtils.keyValuesToJO("label", "x")).close();
+                assert false;
+            } catch (IOException e) {
+                // expected
+            }
+        }
+
+        assert attempts.get() == 20;
+        for (ServerPool.Node n : pool.nodes())
+            assert !n.isEjected() && n.ejections() == 0;
+    }
+}
@@ -0,0 +1,96 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+public class ServerSessionTest {
+
+    private static JsonObject payload(ServerSession session) {
+        JsonObject payload = new JsonObject();
+        session.identify(payload, "key", "test");
+        session.callSite().addTo(payload);
+        return payload;
+    }
+
+    @Test
+    void sendsFullPayloadsUntilTheServerHandsOutASession() {
+        ServerSession session = new ServerSession(true);
+        JsonObject ping = new JsonObject();
+        session.request(ping);
+        assert JsonUtils.booleanFromJson(ping, "request_session");
+
+        for (int i = 0; i < 2; i++) {
+            JsonObject p = payload(session);
+            assert p.get("api_key").getAsString().equals("key");
+            assert p.get("test_case_name").getAsString().equals("test");
+            assert p.has("stack_trace") && !p.has("stack_trace_id");
+        }
+    }
+
+    @Test
+    void sendsEachCallSiteInFullOnlyOnce() {
+        ServerSession session = new ServerSession(true);
+        session.onCheckIn(CollectionUtils.keyValuesToJO("success", true, "session_token", "abc"));
+
+        JsonObject first = null, second = null;
+        for (int i = 0; i < 2; i++) {
+            JsonObject p = payload(session);
+            if (i == 0) first = p; else second = p;
+            session.onAnswer(p, 200);
+        }
+
+        assert first.get("session").getAsString().equals("abc") && !first.has("api_key") && !first.has("test_case_name");
+        assert first.has("stack_trace");
+        assert !second.has("stack_trace");
+        assert second.get("stack_trace_id").getAsInt() == first.get("stack_trace_id").getAsInt();
+        assert session.interned() == 1;
+    }
+
+    @Test
+    void keepsSendingTheFullTraceUntilTheServerTookIt() {
+        ServerSession session = new ServerSession(true);
+        session.onCheckIn(CollectionUtils.keyValuesToJO("success", true, "session_token", "abc"));
+
+        JsonObject[] sent = new JsonObject[3];
+        for (int i = 0; i < 3; i++) {
+            sent[i] = payload(session);
+            session.onAnswer(sent[i], i == 0 ? 503 : 200);
+        }
+
+        // the first send failed, so the server may not know the ID yet
+        assert sent[1].has("stack_trace");
+        assert sent[1].get("stack_trace_id").getAsInt() == sent[0].get("stack_trace_id").getAsInt();
+        assert !sent[2].has("stack_trace");
+        assert sent[2].get("stack_trace_id").getAsInt() == sent[0].get("stack_trace_id").getAsInt();
+        assert session.callSites() == 1;
+    }
+
+    @Test
+    void fallsBackToFullPayloadsOnceTheServerRejectsTheSession() {
+        ServerSession session = new ServerSession(true);
+        session.onCheckIn(CollectionUtils.keyValuesToJO("success", true, "session_token", "abc"));
+
+        JsonObject p = null;
+        for (int i = 0; i < 2; i++) {
+            p = payload(session);
+            session.onAnswer(p, 200);
+        }
+        assert !p.has("stack_trace");
+        session.onAnswer(p, 410);
+
+        JsonObject fallback = payload(session);
+        assert session.token() == null;
+        assert session.callSites() == 0;
+        assert fallback.get("api_key").getAsString().equals("key") && !fallback.has("session");
+        assert fallback.has("stack_trace") && !fallback.has("stack_trace_id");
+    }
+
+    @Test
+    void ignoresTheSessionWhenDisabled() {
+        ServerSession session = new ServerSession(false);
+        session.onCheckIn(CollectionUtils.keyValuesToJO("success", true, "session_token", "abc"));
+
+        assert session.token() == null;
+        assert payload(session).has("api_key");
+    }
+}
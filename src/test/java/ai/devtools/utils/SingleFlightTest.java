@@ -0,0 +1,109 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Test
+    void identicalConcurrentRequestsAreSentOnce() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        AtomicInteger sent = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        String key = SingleFlight.key("detect", "login_button", "abc", null, "test");
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<JsonObject>> answers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            answers.add(pool.submit(() -> singleFlight.execute(key, () -> {
+                sent.incrementAndGet();
+                await(release);
+                return CollectionUtils.keyValuesToJO("success", true);
+            })));
+        }
+        Thread.sleep(200);
+        release.countDown();
+
+        for (Future<JsonObject> f : answers) {
+            assert JsonUtils.booleanFromJson(f.get(), "success");
+        }
+        pool.shutdown();
+
+        assert sent.get() == 1;
+        assert singleFlight.coalesced() == 7;
+        assert answers.get(0).get() != answers.get(1).get();
+    }
+
+    @Test
+    void anErrorReleasesTheKey() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        try {
+            singleFlight.execute("key", () -> {
+                throw new AssertionError("boom");
+            });
+            assert false;
+        } catch (AssertionError e) {
+            assert "boom".equals(e.getMessage());
+        }
+
+        JsonObject answer = CollectionUtils.keyValuesToJO("success", true);
+        JsonObject r = singleFlight.execute("key", () -> answer);
+        assert r == answer;
+        assert singleFlight.coalesced() == 0;
+    }
+
+    @Test
+    void differentThresholdsAreNotCoalesced() {
+        assert !SingleFlight.key("detect", "login_button", "abc", null, "test").equals(SingleFlight.key("detect", "login_button", "abc", 0.5f, "test"));
+        assert !SingleFlight.key("detect", "login_button", "abc", null, "test").equals(SingleFlight.key("exists_screenshot", "login_button", "abc", null, "test"));
+    }
+
+    @Test
+    void waitersSendTheirOwnRequestIfTheOneInFlightFails() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        String key = SingleFlight.key("detect", "login_button", "abc", null, null);
+
+        Thread leader = new Thread(() -> {
+            try {
+                singleFlight.execute(key, () -> {
+                    started.countDown();
+                    await(release);
+                    throw new IOException("network down");
+                });
+            } catch (Exception e) {
+                // expected
+            }
+        });
+        leader.start();
+        started.await();
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<JsonObject> waiter = pool.submit(() -> singleFlight.execute(key, () -> CollectionUtils.keyValuesToJO("success", true)));
+        Thread.sleep(100);
+        release.countDown();
+
+        assert JsonUtils.booleanFromJson(waiter.get(), "success");
+        assert singleFlight.coalesced() == 0;
+        pool.shutdown();
+    }
+}
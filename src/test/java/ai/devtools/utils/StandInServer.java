@@ -0,0 +1,105 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A minimal local stand-in for the Smartdriver server, so the networking code can be tested offline.
+ * Endpoints answer json posts with the json returned by their handler, unknown endpoints answer 404.
+ */
+public class StandInServer implements AutoCloseable {
+    private final HttpServer server;
+    private final Map<String, List<JsonObject>> received = new ConcurrentHashMap<>();
+    private final AtomicInteger gzipped = new AtomicInteger();
+    private volatile boolean rejectGzip;
+
+    public StandInServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    /**
+     * Registers the stand-in for {@code add_action_info_batch}, which accepts every action info in the batch.
+     */
+    public StandInServer withBatchEndpoint() {
+        return handle("add_action_info_batch", payload -> CollectionUtils.keyValuesToJO("success", true,
+                "count", payload.getAsJsonArray("action_infos").size()));
+    }
+
+    public StandInServer handle(String endpoint, Function<JsonObject, JsonObject> handler) {
+        received.put(endpoint, new CopyOnWriteArrayList<>());
+        server.createContext("/" + endpoint, exchange -> {
+            if (!exchange.getRequestURI().getPath().equals("/" + endpoint)) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            InputStream in = exchange.getRequestBody();
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                gzipped.incrementAndGet();
+                if (rejectGzip) {
+                    exchange.sendResponseHeaders(415, -1);
+                    exchange.close();
+                    return;
+                }
+                in = new GZIPInputStream(in);
+            }
+            JsonObject payload = JsonParser.parseReader(new InputStreamReader(in, StandardCharsets.UTF_8)).getAsJsonObject();
+            received.get(endpoint).add(payload);
+
+            byte[] body = handler.apply(payload).toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Answers gzip compressed requests with 415, like a server which does not support them.
+     */
+    public StandInServer rejectGzip() {
+        rejectGzip = true;
+        return this;
+    }
+
+    /**
+     * @return The number of gzip compressed requests received so far.
+     */
+    public int gzipped() {
+        return gzipped.get();
+    }
+
+    public List<JsonObject> received(String endpoint) {
+        return received.get(endpoint);
+    }
+
+    public HttpUrl url() {
+        return HttpUrl.parse("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,226 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class TelemetryLogTest {
+
+    private static final byte[] PNG = { (byte) 0x89, 'P', 'N', 'G', 1, 2, 3, 4, 5 };
+
+    @TempDir
+    Path dir;
+
+    private static JsonObject actionInfo(int i) {
+        return CollectionUtils.keyValuesToJO("label", "button_" + i, "x", i);
+    }
+
+    @Test
+    void recordsAreHandedOutOldestFirst() throws Exception {
+        TelemetryLog log = new TelemetryLog(dir, 4096, 1 << 20);
+        log.append("upload_screenshot", "key", "test", CollectionUtils.keyValuesToJO("label", "button_0"), PNG);
+        log.append("add_action_info", "key", "test", actionInfo(1), null);
+
+        List<TelemetryLog.Record> records = log.claim(10);
+
+        assert records.size() == 2;
+        assert "upload_screenshot".equals(records.get(0).endpoint());
+        assert Arrays.equals(PNG, records.get(0).screenshot());
+        assert "key".equals(records.get(0).payload().get("api_key").getAsString());
+        assert "test".equals(records.get(0).payload().get("test_case_name").getAsString());
+        assert !records.get(1).hasScreenshot();
+        assert records.get(1).payload().get("x").getAsInt() == 1;
+
+        log.release(records.get(1));
+        log.complete(records.get(0));
+        assert log.size() == 1;
+        assert log.claim(10).get(0).payload().get("x").getAsInt() == 1;
+    }
+
+    @Test
+    void pendingRecordsSurviveAReopen() throws Exception {
+        TelemetryLog log = new TelemetryLog(dir, 4096, 1 << 20);
+        for (int i = 0; i < 3; i++)
+            log.append("add_action_info", "key", null, actionInfo(i), null);
+        log.complete(log.claim(1).get(0));
+        log.close();
+
+        TelemetryLog reopened = new TelemetryLog(dir, 4096, 1 << 20);
+
+        List<TelemetryLog.Record> records = reopened.claim(10);
+        assert records.size() == 2;
+        assert records.get(0).payload().get("x").getAsInt() == 1;
+        assert !records.get(0).payload().has("test_case_name");
+    }
+
+    @Test
+    void aCorruptedRecordEndsItsSegment() throws Exception {
+        TelemetryLog log = new TelemetryLog(dir, 4096, 1 << 20);
+        for (int i = 0; i < 3; i++)
+            log.append("add_action_info", "key", "test", actionInfo(i), null);
+        log.close();
+
+        // flip a byte in the body of the second record
+        Path segment = segments().get(0);
+        int second;
+        try (RandomAccessFile f = new RandomAccessFile(segment.toFile(), "rw")) {
+            second = 9 + f.readInt();
+            f.seek(second + 20);
+            int b = f.read();
+            f.seek(second + 20);
+            f.write(b ^ 0xff);
+        }
+
+        TelemetryLog reopened = new TelemetryLog(dir, 4096, 1 << 20);
+
+        assert reopened.size() == 1;
+        assert reopened.claim(10).get(0).payload().get("x").getAsInt() == 0;
+    }
+
+    @Test
+    void theOldestSegmentsAreEvictedWhenTheLogIsFull() throws Exception {
+        TelemetryLog log = new TelemetryLog(dir, 1024, 4096);
+        byte[] screenshot = new byte[600];
+        for (int i = 0; i < 12; i++) {
+            boolean appended = log.append("upload_screenshot", "key", "test", actionInfo(i), screenshot);
+            assert appended;
+        }
+
+        assert log.bytes() <= 4096;
+        assert log.evicted() > 0;
+        assert log.size() + log.evicted() == 12;
+        assert segments().size() * 1024 <= 4096;
+        List<TelemetryLog.Record> records = log.claim(20);
+        assert records.get(records.size() - 1).payload().get("x").getAsInt() == 11;
+    }
+
+    @Test
+    void doneSegmentsAreDeleted() throws Exception {
+        TelemetryLog log = new TelemetryLog(dir, 1024, 1 << 20);
+        byte[] screenshot = new byte[600];
+        for (int i = 0; i < 3; i++)
+            log.append("upload_screenshot", "key", "test", actionInfo(i), screenshot);
+        assert segments().size() == 3;
+
+        log.claim(10).forEach(log::complete);
+
+        // the active segment is kept to append to
+        assert segments().size() == 1;
+        assert log.size() == 0;
+    }
+
+    @Test
+    void aDirectoryInUseIsSpilledBeside() throws Exception {
+        TelemetryLog owner = new TelemetryLog(dir, 4096, 1 << 20);
+        try {
+            new TelemetryLog(dir, 4096, 1 << 20);
+            assert false;
+        } catch (TelemetryLog.LockedException e) {
+            assert e.getMessage().contains("in use");
+        }
+
+        TelemetryLog other = TelemetryLog.of(dir, 4096, 1 << 20);
+        other.append("add_action_info", "key", "test", actionInfo(0), null);
+
+        assert other != owner;
+        assert owner.size() == 0;
+        assert Files.exists(dir.resolve(TelemetryLog.PROCESS_DIR_PREFIX + ProcessHandle.current().pid()));
+
+        owner.close();
+        new TelemetryLog(dir, 4096, 1 << 20).close();
+    }
+
+    @Test
+    void theReplayerSendsScreenshotsFirstOnceTheServerIsBack() throws Exception {
+        List<String> sent = new CopyOnWriteArrayList<>();
+        AtomicBoolean up = new AtomicBoolean(false);
+        OkHttpClient client = new InProcessTransport((endpoint, payload, screenshot) -> {
+            if (!up.get())
+                throw new IOException("unreachable");
+            sent.add(endpoint + (screenshot != null ? "+png" : ""));
+            return "unknown".equals(endpoint) ? null : CollectionUtils.keyValuesToJO("success", true);
+        }).install(new OkHttpClient());
+
+        TelemetryLog log = new TelemetryLog(dir, 4096, 1 << 20);
+        log.append("add_action_info", "key", "test", actionInfo(0), null);
+        log.append("upload_screenshot", "key", "test", CollectionUtils.keyValuesToJO("label", "button_0"), PNG);
+        log.append("unknown", "key", "test", new JsonObject(), null);
+
+        try (TelemetryReplayer replayer = new TelemetryReplayer(log, client, HttpUrl.parse("http://in-process"), () -> true, 2, 60000)) {
+            replayer.drain();
+            assert log.size() == 3;
+            assert sent.isEmpty();
+
+            up.set(true);
+            replayer.drain();
+
+            // an unknown endpoint may be deployed later
+            assert log.size() == 1;
+            assert replayer.replayed() == 2;
+            assert replayer.dropped() == 0;
+            assert "upload_screenshot+png".equals(sent.get(0));
+            assert sent.containsAll(Arrays.asList("add_action_info", "unknown"));
+        }
+    }
+
+    @Test
+    void aFailedRoundKeepsItsOrder() throws Exception {
+        OkHttpClient client = new InProcessTransport((endpoint, payload, screenshot) -> {
+            throw new IOException("unreachable");
+        }).install(new OkHttpClient());
+
+        TelemetryLog log = new TelemetryLog(dir, 1 << 16, 1 << 20);
+        for (int i = 0; i < 8; i++)
+            log.append("add_action_info", "key", "test", actionInfo(i), null);
+
+        try (TelemetryReplayer replayer = new TelemetryReplayer(log, client, HttpUrl.parse("http://in-process"), () -> true, 4, 60000)) {
+            replayer.drain();
+        }
+
+        List<TelemetryLog.Record> records = log.claim(10);
+        assert records.size() == 8;
+        for (int i = 0; i < 8; i++)
+            assert records.get(i).payload().get("x").getAsInt() == i;
+    }
+
+    @Test
+    void theReplayerOnlyDropsMalformedRecords() throws Exception {
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(chain -> new Response.Builder().request(chain.request()).protocol(Protocol.HTTP_1_1)
+                .code(chain.request().url().encodedPath().equals("/bad") ? 422 : 401).message("").body(ResponseBody.create(new byte[0], null)).build()).build();
+
+        TelemetryLog log = new TelemetryLog(dir, 4096, 1 << 20);
+        log.append("bad", "key", "test", new JsonObject(), null);
+        log.append("add_action_info", "key", "test", actionInfo(0), null);
+
+        try (TelemetryReplayer replayer = new TelemetryReplayer(log, client, HttpUrl.parse("http://in-process"), () -> true, 2, 60000)) {
+            replayer.drain();
+
+            // the API key may be renewed, so the action info waits for it
+            assert replayer.dropped() == 1;
+            assert log.size() == 1;
+            assert log.claim(10).get(0).payload().get("x").getAsInt() == 0;
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".seg")).sorted().collect(Collectors.toList());
+        }
+    }
+}
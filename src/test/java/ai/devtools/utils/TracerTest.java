@@ -0,0 +1,73 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class TracerTest {
+
+    private static final HttpUrl SERVER = HttpUrl.parse("http://in-process");
+
+    private final List<Span> exported = new CopyOnWriteArrayList<>();
+
+    private final List<String> traceparents = new CopyOnWriteArrayList<>();
+
+    private OkHttpClient client(Tracer tracer) {
+        OkHttpClient client = tracer.install(new OkHttpClient()).newBuilder().addInterceptor(chain -> {
+            traceparents.add(chain.request().header("traceparent"));
+            return chain.proceed(chain.request());
+        }).build();
+        return new InProcessTransport((endpoint, payload, screenshot) -> CollectionUtils.keyValuesToJO("success", true)).install(client);
+    }
+
+    @Test
+    void callsAreChildrenOfTheCurrentSpan() throws Exception {
+        Tracer tracer = new Tracer(SERVER, exported::add, null);
+        OkHttpClient client = client(tracer);
+
+        Span step;
+        try (Span s = tracer.span("log in")) {
+            step = s;
+            assert Span.current() == step;
+            NetUtils.basicPOST(client, SERVER, "detect", new JsonObject()).close();
+            // calls under a deadline run on a dispatcher thread
+            try (Deadline d = Deadline.start(5000)) {
+                NetUtils.basicPOST(client, SERVER, "exists_screenshot", new JsonObject()).close();
+            }
+        }
+
+        assert Span.current() == null;
+        assert exported.size() == 3;
+        assert exported.get(2) == step;
+        assert "detect".equals(exported.get(0).name());
+        assert "exists_screenshot".equals(exported.get(1).name());
+        for (int i = 0; i < 2; i++) {
+            assert exported.get(i).traceId().equals(step.traceId());
+            assert exported.get(i).parentId().equals(step.spanId());
+            assert "200".equals(exported.get(i).attributes().get("http.status_code"));
+            assert exported.get(i).traceparent().equals(traceparents.get(i));
+        }
+    }
+
+    @Test
+    void rootSpansJoinTheRemoteTrace() throws Exception {
+        String traceparent = "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01";
+        Tracer tracer = new Tracer(SERVER, exported::add, traceparent);
+
+        NetUtils.basicPOST(client(tracer), SERVER, "ping", new JsonObject()).close();
+
+        assert "0af7651916cd43dd8448eb211c80319c".equals(exported.get(0).traceId());
+        assert "b7ad6b7169203331".equals(exported.get(0).parentId());
+        assert traceparents.get(0).matches("00-0af7651916cd43dd8448eb211c80319c-[0-9a-f]{16}-01");
+    }
+
+    @Test
+    void malformedTraceparentsAreIgnored() {
+        assert Span.remote("garbage") == null;
+        assert Span.remote(null) == null;
+    }
+}
@@ -0,0 +1,35 @@
+package ai.devtools.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TrainingPipelineTest {
+
+    @Test
+    void runsEveryTaskBeforeShutdown() {
+        /*
+        A queue smaller than the number of tasks forces the pipeline to run the overflow on the caller,
+        nothing should be dropped and a failing task should not stop the others.
+         */
+        TrainingPipeline pipeline = new TrainingPipeline(1, 2);
+        AtomicInteger done = new AtomicInteger();
+
+        pipeline.submit(() -> {
+            throw new IllegalStateException("training failed");
+        });
+        for (int i = 0; i < 20; i++) {
+            pipeline.submit(() -> {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                }
+                done.incrementAndGet();
+            });
+        }
+
+        assert pipeline.shutdown(10000);
+        assert done.get() == 20;
+        assert pipeline.pending() == 0;
+    }
+}
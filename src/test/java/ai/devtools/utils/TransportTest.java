@@ -0,0 +1,81 @@
+package ai.devtools.utils;
+
+import com.google.gson.JsonObject;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TransportTest {
+
+    private static final byte[] PNG = { (byte) 0x89, 'P', 'N', 'G', 1, 2, 3, 4, 5 };
+
+    @Test
+    void jdkTransportTalksToTheServer() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            server.handle("exists_screenshot", payload -> CollectionUtils.keyValuesToJO("success", true, "label", payload.get("label").getAsString()));
+            OkHttpClient client = new JdkTransport(Duration.ofSeconds(5), null).install(new OkHttpClient());
+
+            JsonObject r = JsonUtils.responseAsJson(NetUtils.basicPOST(client, server.url(), "exists_screenshot",
+                    CollectionUtils.keyValuesToJO("label", "login_button")));
+
+            assert "login_button".equals(r.get("label").getAsString());
+            assert server.received("exists_screenshot").size() == 1;
+        }
+    }
+
+    @Test
+    void inProcessTransportSkipsSerialisation() throws Exception {
+        List<JsonObject> payloads = new ArrayList<>();
+        List<Screenshot> screenshots = new ArrayList<>();
+        JsonObject answer = CollectionUtils.keyValuesToJO("success", true, "x", 10);
+        OkHttpClient client = new InProcessTransport((endpoint, payload, screenshot) -> {
+            payloads.add(payload);
+            screenshots.add(screenshot);
+            return "detect".equals(endpoint) ? answer : null;
+        }).install(new OkHttpClient());
+
+        JsonObject payload = CollectionUtils.keyValuesToJO("label", "login_button");
+        Screenshot screenshot = new Screenshot(PNG);
+        JsonObject r = JsonUtils.responseAsJson(NetUtils.basicPOST(client, HttpUrl.parse("http://in-process"), "detect", payload, screenshot));
+
+        assert payloads.get(0) == payload;
+        assert screenshots.get(0) == screenshot;
+        assert r == answer;
+        int unknown = NetUtils.basicPOST(client, HttpUrl.parse("http://in-process"), "unknown", payload).code();
+        assert unknown == 404;
+    }
+
+    @Test
+    void inProcessEndpointsAreRelativeToTheBaseURL() throws Exception {
+        List<String> endpoints = new ArrayList<>();
+        List<JsonObject> payloads = new ArrayList<>();
+        HttpUrl base = HttpUrl.parse("http://in-process/smartdriver/");
+        OkHttpClient client = new InProcessTransport(base, (endpoint, payload, screenshot) -> {
+            endpoints.add(endpoint);
+            payloads.add(payload);
+            return CollectionUtils.keyValuesToJO("success", true);
+        }).install(new OkHttpClient());
+
+        NetUtils.basicPOST(client, base, "detect", CollectionUtils.keyValuesToJO("label", "login_button")).close();
+        NetUtils.basicPOST(client, base, "add_action_info", new HashMap<>(Map.of("json", "{\"label\":\"login_button\"}"))).close();
+
+        assert endpoints.equals(List.of("detect", "add_action_info")) : endpoints;
+        assert "login_button".equals(payloads.get(1).get("label").getAsString());
+    }
+
+    @Test
+    void inProcessAnswersCanBeReadAsText() throws Exception {
+        OkHttpClient client = new InProcessTransport((endpoint, payload, screenshot) -> CollectionUtils.keyValuesToJO("success", true))
+                .install(new OkHttpClient());
+
+        String body = NetUtils.basicPOST(client, HttpUrl.parse("http://in-process"), "ping", new JsonObject()).body().string();
+
+        assert "{\"success\":true}".equals(body);
+    }
+}